@@ -0,0 +1,80 @@
+package dendron.bench;
+
+import dendron.machine.BatchMachine;
+import dendron.machine.Program;
+import dendron.tree.ParseTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The quadratic formula from DendronTest's last program, run over a
+ * million rows of coefficients by the BatchMachine. A block size of 1
+ * dispatches every instruction once per row, as running the Program
+ * row by row would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmarks {
+
+  private static final String ROOTS =
+      ":= root / + _ b # - * b b * * 4 a c * 2 a " +
+      ":= root2 / - _ b # - * b b * * 4 a c * 2 a";
+
+  @Param("1000000")
+  public int rows;
+
+  @Param({"1", "1024"})
+  public int blockSize;
+
+  @Param("1")
+  public int threads;
+
+  private BatchMachine machine;
+  private int[] a;
+  private int[] b;
+  private int[] c;
+
+  @Setup(Level.Trial)
+  public void prepare() {
+    Program program =
+        new ParseTree(Arrays.asList(ROOTS.split(" "))).compileProgram();
+    machine = new BatchMachine(program, List.of("a", "b", "c"),
+        List.of("root", "root2"))
+        .setBlockSize(blockSize)
+        .setThreads(threads);
+    Random random = new Random(1);
+    a = new int[rows];
+    b = new int[rows];
+    c = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      a[i] = random.nextInt(20) + 1;
+      b[i] = random.nextInt(2001) - 1000;
+      c[i] = random.nextInt(200) - 100;
+    }
+  }
+
+  @Benchmark
+  public BatchMachine.Result roots() {
+    return machine.run(a, b, c);
+  }
+}
@@ -0,0 +1,123 @@
+package dendron.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * The Machine as it was before it had an int[] stack: instruction
+ * objects dispatched through an interface, a java.util.Stack of boxed
+ * Integers and a HashMap of variables by name. It is kept only as the
+ * "before" side of {@link StackBenchmarks}.
+ */
+final class BoxedStackMachine {
+
+  /** one instruction, as the original Machine.Instruction */
+  interface Step {
+    void execute(BoxedStackMachine m);
+  }
+
+  private final List<Step> program;
+  private final PrintStream out;
+  private Stack<Integer> stack;
+  private Map<String, Integer> table;
+
+  private BoxedStackMachine(List<Step> program, PrintStream out) {
+    this.program = program;
+    this.out = out;
+  }
+
+  /**
+   * Read an assembly file and repeat its code.
+   *
+   * @param file a .denm file
+   * @param copies how many times over to run its code
+   * @param out where PRINT goes
+   * @return a machine ready to run the code
+   */
+  static BoxedStackMachine load(Path file, int copies, PrintStream out) {
+    List<Step> steps = new ArrayList<>();
+    try {
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        String[] words = line.trim().split("\\s+");
+        if (!words[0].isEmpty()) {
+          steps.add(step(words[0], words.length > 1 ? words[1] : null));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    List<Step> program = new ArrayList<>(steps.size() * copies);
+    for (int i = 0; i < copies; i++) {
+      program.addAll(steps);
+    }
+    return new BoxedStackMachine(program, out);
+  }
+
+  private static Step step(String op, String operand) {
+    switch (op) {
+      case "PUSH": {
+        int value = Integer.parseInt(operand);
+        return m -> m.stack.push(value);
+      }
+      case "LOAD":
+        return m -> m.stack.push(m.table.get(operand));
+      case "STORE":
+        return m -> m.table.put(operand, m.stack.pop());
+      case "ADD":
+        return m -> {
+          int op2 = m.stack.pop();
+          int op1 = m.stack.pop();
+          m.stack.push(op1 + op2);
+        };
+      case "SUB":
+        return m -> {
+          int op2 = m.stack.pop();
+          int op1 = m.stack.pop();
+          m.stack.push(op1 - op2);
+        };
+      case "MUL":
+        return m -> {
+          int op2 = m.stack.pop();
+          int op1 = m.stack.pop();
+          m.stack.push(op1 * op2);
+        };
+      case "DIV":
+        return m -> {
+          int op2 = m.stack.pop();
+          int op1 = m.stack.pop();
+          m.stack.push(op1 / op2);
+        };
+      case "NEG":
+        return m -> m.stack.push(-m.stack.pop());
+      case "SQRT":
+        return m -> m.stack.push((int) Math.sqrt(m.stack.pop()));
+      case "PRINT":
+        return m -> m.out.println("*** " + m.stack.pop());
+      default:
+        throw new IllegalArgumentException("unknown instruction " + op);
+    }
+  }
+
+  /**
+   * Run the code on a fresh stack and table.
+   *
+   * @return the number of items left on the stack
+   */
+  int run() {
+    stack = new Stack<>();
+    table = new HashMap<>();
+    for (Step step : program) {
+      step.execute(this);
+    }
+    return stack.size();
+  }
+}
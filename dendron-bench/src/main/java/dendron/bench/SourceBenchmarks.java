@@ -0,0 +1,32 @@
+package dendron.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The stage benchmarks over the programs in source/, assembling the
+ * matching programs in assy/.
+ */
+@State(Scope.Benchmark)
+public class SourceBenchmarks extends StageBenchmarks {
+
+  @Param({
+      "asgn-big-const-expr", "asgn-big-var-expr", "asgn-dif", "asgn-sqrt",
+      "asgn-sum", "print-big-const-expr", "print-big-var-expr"
+  })
+  public String program;
+
+  @Override
+  List<String> tokens() {
+    return Workloads.source(program);
+  }
+
+  @Override
+  Path assembly() {
+    return Workloads.assembly(program);
+  }
+}
@@ -0,0 +1,79 @@
+package dendron.bench;
+
+import dendron.machine.InstructionReader;
+import dendron.machine.Machine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The assy/*-big-* programs, their code repeated until each run is
+ * millions of instructions, on the Machine's instruction list before
+ * and after the operand stack became an int[]. The "before" side is
+ * {@link BoxedStackMachine}, which keeps the old java.util.Stack of
+ * Integers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackBenchmarks {
+
+  private static final PrintStream DISCARD =
+      new PrintStream(OutputStream.nullOutputStream());
+
+  @Param({
+      "asgn-big-const-expr", "asgn-big-var-expr",
+      "print-big-const-expr", "print-big-var-expr"
+  })
+  public String program;
+
+  @Param("100000")
+  public int copies;
+
+  private BoxedStackMachine before;
+  private List<Machine.Instruction> code;
+  private Machine machine;
+
+  @Setup(Level.Trial)
+  public void prepare() {
+    Path file = Workloads.assembly(program);
+    before = BoxedStackMachine.load(file, copies, DISCARD);
+    List<Machine.Instruction> once = InstructionReader.assemble(file.toString());
+    code = new ArrayList<>(once.size() * copies);
+    for (int i = 0; i < copies; i++) {
+      code.addAll(once);
+    }
+    machine = new Machine(DISCARD);
+  }
+
+  @Benchmark
+  public int boxedStack() {
+    return before.run();
+  }
+
+  @Benchmark
+  public int intStack() {
+    machine.run(code);
+    return machine.stackSize();
+  }
+}
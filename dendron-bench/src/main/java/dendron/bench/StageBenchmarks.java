@@ -0,0 +1,109 @@
+package dendron.bench;
+
+import dendron.machine.InstructionReader;
+import dendron.machine.Machine;
+import dendron.machine.Program;
+import dendron.tree.ParseTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark for each stage a Dendron program goes through:
+ * parsing its tokens, interpreting the tree, compiling it to
+ * instructions or to a compact Program, running the Program and
+ * assembling its listing. Subclasses choose the program.
+ * <p>
+ * Everything the stages print is thrown away, so the benchmarks
+ * measure the work and not the console.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class StageBenchmarks {
+
+  private static final PrintStream DISCARD =
+      new PrintStream(OutputStream.nullOutputStream());
+
+  private PrintStream stdout;
+  private List<String> tokens;
+  private ParseTree tree;
+  private Program program;
+  private Machine machine;
+  private String assemblyFile;
+
+  /**
+   * @return the tokens of the program to measure
+   */
+  abstract List<String> tokens();
+
+  /**
+   * @return an assembly file for the program, or null to assemble
+   *         the listing of its compiled code
+   */
+  abstract Path assembly();
+
+  @Setup(Level.Trial)
+  public void prepare() {
+    stdout = System.out;
+    System.setOut(DISCARD);
+    tokens = tokens();
+    tree = new ParseTree(tokens);
+    program = tree.compileProgram();
+    machine = new Machine(DISCARD);
+    Path file = assembly();
+    assemblyFile = (file != null ? file : Workloads.listing(tree.compile()))
+        .toString();
+  }
+
+  @TearDown(Level.Trial)
+  public void restore() {
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public ParseTree parse() {
+    return new ParseTree(tokens);
+  }
+
+  @Benchmark
+  public void interpret() {
+    tree.interpret();
+  }
+
+  @Benchmark
+  public List<Machine.Instruction> compile() {
+    return tree.compile();
+  }
+
+  @Benchmark
+  public Program compileProgram() {
+    return tree.compileProgram();
+  }
+
+  @Benchmark
+  public void execute() {
+    machine.run(program);
+  }
+
+  @Benchmark
+  public Program assemble() {
+    return InstructionReader.assembleProgram(assemblyFile);
+  }
+}
@@ -0,0 +1,35 @@
+package dendron.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The stage benchmarks over generated programs, scaled by the number
+ * of statements and the depth of each statement's expression.
+ */
+@State(Scope.Benchmark)
+public class SyntheticBenchmarks extends StageBenchmarks {
+
+  @Param({"100", "10000"})
+  public int statements;
+
+  @Param({"2", "6"})
+  public int depth;
+
+  @Param("1")
+  public long seed;
+
+  @Override
+  List<String> tokens() {
+    return Workloads.synthetic(statements, depth, seed);
+  }
+
+  @Override
+  Path assembly() {
+    return null;
+  }
+}
@@ -0,0 +1,104 @@
+package dendron.bench;
+
+import dendron.machine.Machine;
+import dendron.tree.ProgramGenerator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The programs the benchmarks run: those in the project's source/ and
+ * assy/ directories, and synthetic ones of any size.
+ */
+final class Workloads {
+
+  private Workloads() {
+  }
+
+  /**
+   * @return the project directory, from dendron.root if it is set,
+   *         or else the current directory or its parent, whichever
+   *         holds source/
+   */
+  static Path root() {
+    String root = System.getProperty("dendron.root");
+    if (root != null) {
+      return Paths.get(root);
+    }
+    Path here = Paths.get("").toAbsolutePath();
+    return Files.isDirectory(here.resolve("source")) ? here : here.getParent();
+  }
+
+  /**
+   * @param name a program in source/, without its .txt extension
+   * @return the program's tokens
+   */
+  static List<String> source(String name) {
+    try {
+      String text = new String(
+          Files.readAllBytes(root().resolve("source").resolve(name + ".txt")),
+          StandardCharsets.UTF_8);
+      return new ArrayList<>(Arrays.asList(text.trim().split("\\s+")));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param name a program in assy/, without its .denm extension
+   * @return the assembly file, or null if there is none
+   */
+  static Path assembly(String name) {
+    Path file = root().resolve("assy").resolve(name + ".denm");
+    return Files.isRegularFile(file) ? file : null;
+  }
+
+  /**
+   * Make up a program with the project's generator.
+   *
+   * @param statements how many statements to generate
+   * @param depth how deep each statement's expression is
+   * @param seed the random seed, so that runs can be compared
+   * @return the program's tokens
+   * @see ProgramGenerator
+   */
+  static List<String> synthetic(int statements, int depth, long seed) {
+    return new ProgramGenerator(seed)
+        .setStatements(statements)
+        .setDepth(depth)
+        .generate()
+        .getTokens();
+  }
+
+  /**
+   * Write a program out as assembly code, one instruction per line.
+   * Listings spell DIV and NEG out in full, which the assembler does
+   * not accept, so those two are abbreviated.
+   *
+   * @param code the program
+   * @return a temporary .denm file, deleted when the JVM exits
+   */
+  static Path listing(List<Machine.Instruction> code) {
+    try {
+      Path file = Files.createTempFile("dendron-bench", ".denm");
+      file.toFile().deleteOnExit();
+      List<String> lines = new ArrayList<>(code.size());
+      for (Machine.Instruction instr : code) {
+        String line = instr.toString();
+        lines.add(line.equals("DIVIDE") ? "DIV" :
+            line.equals("NEGATE") ? "NEG" : line);
+      }
+      Files.write(file, lines, StandardCharsets.UTF_8);
+      return file;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
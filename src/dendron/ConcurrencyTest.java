@@ -0,0 +1,197 @@
+package dendron;
+
+import dendron.machine.InstructionReader;
+import dendron.machine.Machine;
+import dendron.machine.Program;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stress test of Machines running side by side. Every .denm program in
+ * a directory is assembled once, then run many times over, each run
+ * on its own Machine and in both the Program and the instruction list
+ * form, by a fixed pool of threads and then, if the JVM
+ * has them, by virtual threads. Each run's output is compared with the
+ * program's .out golden file.
+ * <p>
+ * A program whose output differs from its golden file even when it
+ * runs alone is reported once and then checked against its lone
+ * output, so that a bad golden file is not taken for a race.
+ */
+public class ConcurrencyTest {
+
+  private static class Case {
+    final String name;
+    final Program program;
+    final List<Machine.Instruction> code;
+    final String expected;
+
+    Case(String name, Program program, String expected) {
+      this.name = name;
+      this.program = program;
+      this.code = program.toInstructions();
+      this.expected = expected;
+    }
+
+    /**
+     * @return true if both forms of the program print what they should
+     */
+    boolean check() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+      new Machine(out).run(code);
+      out.flush();
+      return run(program).equals(expected) &&
+          bytes.toString(StandardCharsets.UTF_8).equals(expected);
+    }
+  }
+
+  private static String run(Program program) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+    new Machine(out).run(program);
+    out.flush();
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Load the programs and their expected output.
+   */
+  private static List<Case> load(Path directory) throws IOException {
+    List<Case> cases = new ArrayList<>();
+    try (DirectoryStream<Path> files =
+             Files.newDirectoryStream(directory, "*.denm")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        Path golden = file.resolveSibling(
+            name.substring(0, name.length() - 5) + ".out");
+        if (!Files.isRegularFile(golden)) {
+          continue;
+        }
+        Program program = InstructionReader.assembleProgram(file.toString());
+        if (program == null) {
+          System.out.println(name + ": does not assemble");
+          continue;
+        }
+        String expected =
+            new String(Files.readAllBytes(golden), StandardCharsets.UTF_8);
+        String alone = run(program);
+        if (!alone.equals(expected)) {
+          System.out.println(name + ": differs from its golden file " +
+              "even when run alone; checking against that output");
+          expected = alone;
+        }
+        cases.add(new Case(name, program, expected));
+      }
+    }
+    return cases;
+  }
+
+  /**
+   * @return an executor that starts a virtual thread per task, or null
+   *         if the JVM has no virtual threads
+   */
+  private static ExecutorService virtualThreads() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Run every case the given number of times on an executor.
+   *
+   * @return the number of runs whose output was wrong
+   */
+  private static int stress(String label, ExecutorService executor,
+                            List<Case> cases, int rounds)
+      throws InterruptedException {
+    List<Callable<String>> runs = new ArrayList<>();
+    for (int round = 0; round < rounds; round++) {
+      for (Case c : cases) {
+        runs.add(() -> c.check() ? null : c.name);
+      }
+    }
+    long start = System.nanoTime();
+    int failures = 0;
+    try {
+      for (Future<String> result : executor.invokeAll(runs)) {
+        try {
+          String failed = result.get();
+          if (failed != null) {
+            if (failures++ < 10) {
+              System.out.println(label + ": wrong output from " + failed);
+            }
+          }
+        } catch (ExecutionException e) {
+          if (failures++ < 10) {
+            System.out.println(label + ": " + e.getCause());
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    System.out.printf("%s: %d runs, %d wrong, %.1f ms%n", label,
+        runs.size(), failures, (System.nanoTime() - start) / 1e6);
+    return failures;
+  }
+
+  /**
+   * Run the stress test.
+   *
+   * @param args optionally -threads n (the default is 4 per processor)
+   *             and -rounds n, the number of times each program runs
+   *             in each mode (the default is 200), then the directory
+   *             of programs (the default is assy)
+   * @throws IOException if the programs cannot be read
+   * @throws InterruptedException if interrupted while waiting for runs
+   */
+  public static void main(String[] args)
+      throws IOException, InterruptedException {
+    int threads = 4 * Runtime.getRuntime().availableProcessors();
+    int rounds = 200;
+    int i = 0;
+    for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+      if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("-rounds")) {
+        rounds = Integer.parseInt(args[i + 1]);
+      } else {
+        break;
+      }
+    }
+    if (args.length - i > 1) {
+      System.err.println("Usage: java ConcurrencyTest [-threads n] " +
+          "[-rounds n] [directory]");
+      System.exit(2);
+    }
+    List<Case> cases = load(Paths.get(i < args.length ? args[i] : "assy"));
+
+    int failures = stress("fixed pool of " + threads,
+        Executors.newFixedThreadPool(threads), cases, rounds);
+    ExecutorService virtual = virtualThreads();
+    if (virtual == null) {
+      System.out.println("virtual threads: not available in this JVM");
+    } else {
+      failures += stress("virtual threads", virtual, cases, rounds);
+    }
+    System.exit(failures == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,222 @@
+package dendron;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An error in a Dendron program, found while parsing it or while
+ * running it. Besides the kind of error and its details, it records
+ * where the error happened and, when the engine can tell, the
+ * variables as they stood at that moment, so that a program hosting
+ * Dendron can report the error and carry on.
+ * <p>
+ * Positions count from zero. Statements are those of the program as
+ * run, after any optimization passes. Instructions are counted in the
+ * program the engine ran, so superinstructions count as one.
+ *
+ * @see Errors#report(Errors.Type, Object)
+ */
+public class DendronException extends RuntimeException {
+
+  /**
+   * An error in the form of a program: it cannot be parsed.
+   */
+  public static class Syntax extends DendronException {
+    private static final long serialVersionUID = 1L;
+
+    Syntax(Errors.Type type, Object info) {
+      super(type, info);
+    }
+  }
+
+  /**
+   * An error that stops a program while it runs.
+   */
+  public static class Execution extends DendronException {
+    private static final long serialVersionUID = 1L;
+
+    Execution(Errors.Type type, Object info) {
+      super(type, info);
+    }
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  private final Errors.Type type;
+  private final Object info;
+  private int statement = -1;
+  private int token = -1;
+  private int instruction = -1;
+  private int row = -1;
+  private Map<String, Integer> variables;
+
+  private DendronException(Errors.Type type, Object info) {
+    super(info == null ? type.getMessage() : type.getMessage() + ": " + info);
+    this.type = type;
+    this.info = info;
+  }
+
+  /**
+   * Make the right kind of exception for an error.
+   *
+   * @param type the kind of error
+   * @param info if not null, the details
+   * @return a Syntax exception for errors in the form of a program,
+   *         and an Execution exception for the rest
+   */
+  static DendronException of(Errors.Type type, Object info) {
+    switch (type) {
+      case ILLEGAL_VALUE:
+      case PREMATURE_END:
+      case EXTRA_TOKENS:
+        return new Syntax(type, info);
+      default:
+        return new Execution(type, info);
+    }
+  }
+
+  /**
+   * @return the kind of error
+   */
+  public Errors.Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the details given when the error was reported, or null
+   */
+  public Object getInfo() {
+    return info;
+  }
+
+  /**
+   * @return the index of the statement the error is in, or -1
+   */
+  public int getStatement() {
+    return statement;
+  }
+
+  /**
+   * @return the index in the token list of the token being parsed when
+   *         the error was found, the index just past the statement if
+   *         it ended too soon, or -1
+   */
+  public int getToken() {
+    return token;
+  }
+
+  /**
+   * @return the index of the machine instruction that failed, or -1
+   */
+  public int getInstruction() {
+    return instruction;
+  }
+
+  /**
+   * @return the input row being computed when the error happened, in
+   *         a batch run, or -1
+   */
+  public int getRow() {
+    return row;
+  }
+
+  /**
+   * @return the values of the program's variables when it stopped,
+   *         leaving out those not yet assigned, or null if the engine
+   *         could not tell
+   */
+  public Map<String, Integer> getVariables() {
+    return variables == null ? null : Collections.unmodifiableMap(variables);
+  }
+
+  /**
+   * Record the statement the error is in, unless already known.
+   *
+   * @param statement the statement's index
+   * @return this exception
+   */
+  public DendronException atStatement(int statement) {
+    if (this.statement < 0) {
+      this.statement = statement;
+    }
+    return this;
+  }
+
+  /**
+   * Record the token being parsed, unless already known.
+   *
+   * @param token the token's index
+   * @return this exception
+   */
+  public DendronException atToken(int token) {
+    if (this.token < 0) {
+      this.token = token;
+    }
+    return this;
+  }
+
+  /**
+   * Record the instruction that failed, unless already known.
+   *
+   * @param instruction the instruction's index
+   * @return this exception
+   */
+  public DendronException atInstruction(int instruction) {
+    if (this.instruction < 0) {
+      this.instruction = instruction;
+    }
+    return this;
+  }
+
+  /**
+   * Record the input row being computed, unless already known.
+   *
+   * @param row the row's index
+   * @return this exception
+   */
+  public DendronException atRow(int row) {
+    if (this.row < 0) {
+      this.row = row;
+    }
+    return this;
+  }
+
+  /**
+   * Record the program's variables, unless already known.
+   *
+   * @param variables the assigned variables by name
+   * @return this exception
+   */
+  public DendronException withVariables(Map<String, Integer> variables) {
+    if (this.variables == null) {
+      this.variables = variables;
+    }
+    return this;
+  }
+
+  /**
+   * @return the message followed by whatever is known of the position
+   */
+  public String describe() {
+    StringBuilder text = new StringBuilder(getMessage());
+    String separator = " (";
+    if (statement >= 0) {
+      text.append(separator).append("statement ").append(statement);
+      separator = ", ";
+    }
+    if (token >= 0) {
+      text.append(separator).append("token ").append(token);
+      separator = ", ";
+    }
+    if (instruction >= 0) {
+      text.append(separator).append("instruction ").append(instruction);
+      separator = ", ";
+    }
+    if (row >= 0) {
+      text.append(separator).append("row ").append(row);
+      separator = ", ";
+    }
+    return separator.equals(", ") ? text.append(')').toString() :
+        text.toString();
+  }
+}
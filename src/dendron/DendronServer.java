@@ -0,0 +1,502 @@
+package dendron;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dendron.machine.Assembler;
+import dendron.machine.Machine;
+import dendron.machine.Program;
+import dendron.tree.ParseTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Dendron programs sent over HTTP, so that many small programs
+ * share one warmed-up JVM instead of each starting its own.
+ * <p>
+ * POST a program to /run. The body is Dendron source, or with
+ * ?format=assembly the machine code a .denm file holds. Source is
+ * parsed and compiled through ParseTree; either way the Program runs
+ * on the stack Machine. The reply is a JSON object:
+ * <pre>
+ *   {"printed":[7,2],"variables":{"a":3,"b":4},"stack":0,"cached":false}
+ * </pre>
+ * A program with errors gets status 400 for syntax or assembly errors,
+ * or 422 for an error while it ran, and a reply listing them:
+ * <pre>
+ *   {"errors":[{"type":"DIVIDE_BY_ZERO","message":"divide by zero: 1 / 0",
+ *     "statement":-1,"token":-1,"instruction":4,"variables":{"a":1}}]}
+ * </pre>
+ * A program nested too deeply for the compiler's stack gets status
+ * 413, and any other failure in the server 500; every request gets a
+ * reply and is counted in the statistics.
+ * GET /stats reports the request counts, throughput and latency
+ * percentiles over the most recent requests.
+ * <p>
+ * Compiled Programs are kept in a bounded cache, least recently used
+ * first out, keyed by the SHA-256 of the request body and its format.
+ * Each request is handled on a virtual thread when the JVM has them,
+ * and otherwise on a fixed pool of platform threads.
+ */
+public class DendronServer {
+
+  /** the port used when none is given */
+  public static final int DEFAULT_PORT = 8357;
+
+  /** the number of Programs cached when no size is given */
+  public static final int DEFAULT_CACHE = 256;
+
+  /** the largest request body accepted, in bytes */
+  public static final int MAX_BODY = 1 << 22;
+
+  /** how many of the latest requests the percentiles are taken over */
+  private static final int WINDOW = 1 << 14;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Map<String, Program> cache;
+
+  private final long started = System.nanoTime();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** the latest request latencies, in nanoseconds, as a ring */
+  private final long[] latencies = new long[WINDOW];
+  private long latencyCount;
+
+  /**
+   * Create a server on the loopback interface. It does not accept
+   * requests until started.
+   *
+   * @param port the port to listen on; 0 picks a free one
+   * @param cacheSize how many compiled Programs to keep
+   * @param threads how many requests may run at once if the JVM has
+   *                no virtual threads
+   * @throws IOException if the port cannot be bound
+   */
+  public DendronServer(int port, int cacheSize, int threads)
+      throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    executor = newExecutor(threads);
+    server.setExecutor(executor);
+    server.createContext("/run", this::run);
+    server.createContext("/stats", this::stats);
+    cache = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * @param threads the pool size to fall back on
+   * @return an executor that starts a virtual thread per task, if the
+   *         JVM has them, or else a fixed pool
+   */
+  static ExecutorService newExecutor(int threads) {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads);
+    }
+  }
+
+  /**
+   * Start accepting requests.
+   */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * Stop accepting requests, give those in progress a moment to finish,
+   * then stop.
+   *
+   * @param delay the most seconds to wait for requests in progress
+   */
+  public void stop(int delay) {
+    server.stop(delay);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(delay, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * A PrintStream that keeps only the values the Machine prints.
+   */
+  private static class Capture extends PrintStream {
+    final List<Integer> printed = new ArrayList<>();
+
+    Capture() {
+      super(OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public void println(String line) {
+      if (line.startsWith("*** ")) {
+        printed.add(Integer.parseInt(line.substring(4)));
+      }
+    }
+  }
+
+  /**
+   * Handle POST /run.
+   */
+  private void run(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    int status = 500;
+    StringBuilder json = new StringBuilder();
+    try {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        status = 405;
+        json.append("{\"errors\":[{\"type\":\"METHOD\",\"message\":\"use POST\"}]}");
+      } else {
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+          status = 413;
+          json.append("{\"errors\":[{\"type\":\"SIZE\",\"message\":")
+              .append(quote("the program is over " + MAX_BODY + " bytes"))
+              .append("}]}");
+        } else {
+          status = evaluate(body, isAssembly(exchange), json);
+        }
+      }
+    } catch (StackOverflowError e) {
+      status = 413;
+      json.setLength(0);
+      json.append("{\"errors\":[{\"type\":\"DEPTH\",\"message\":")
+          .append(quote("the program is nested too deeply to compile"))
+          .append("}]}");
+    } catch (Throwable e) {
+      status = 500;
+      json.setLength(0);
+      json.append("{\"errors\":[{\"type\":\"INTERNAL\",\"message\":")
+          .append(quote(String.valueOf(e))).append("}]}");
+    } finally {
+      try {
+        send(exchange, status, json);
+      } finally {
+        record(System.nanoTime() - start, status != 200);
+      }
+    }
+  }
+
+  private static boolean isAssembly(HttpExchange exchange) {
+    String query = exchange.getRequestURI().getQuery();
+    return query != null &&
+        Arrays.asList(query.split("&")).contains("format=assembly");
+  }
+
+  /**
+   * Compile, or find in the cache, and run one program.
+   *
+   * @param body the program's text
+   * @param assembly true for machine code, false for source
+   * @param json where the reply goes
+   * @return the HTTP status
+   */
+  private int evaluate(byte[] body, boolean assembly, StringBuilder json) {
+    String key = key(body, assembly);
+    Program program;
+    synchronized (cache) {
+      program = cache.get(key);
+    }
+    boolean cached = program != null;
+    if (cached) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      program = assembly ? assemble(body, json) : compile(body, json);
+      if (program == null) {
+        return 400;
+      }
+      synchronized (cache) {
+        cache.put(key, program);
+      }
+    }
+
+    Capture out = new Capture();
+    Machine machine = new Machine(out);
+    try {
+      machine.run(program);
+    } catch (DendronException e) {
+      json.append("{\"errors\":[");
+      error(e, json);
+      json.append("]}");
+      return 422;
+    }
+    json.append("{\"printed\":[");
+    for (int i = 0; i < out.printed.size(); i++) {
+      json.append(i == 0 ? "" : ",").append(out.printed.get(i));
+    }
+    json.append("],\"variables\":");
+    variables(machine.getFrame().toMap(false), json);
+    json.append(",\"stack\":").append(machine.stackSize())
+        .append(",\"cached\":").append(cached).append('}');
+    return 200;
+  }
+
+  /**
+   * @return the compiled program, or null after putting the syntax
+   *         errors in json
+   */
+  private static Program compile(byte[] body, StringBuilder json) {
+    String text = new String(body, StandardCharsets.UTF_8).trim();
+    List<String> tokens = text.isEmpty() ? Collections.emptyList() :
+        Arrays.asList(text.split("\\s+"));
+    List<DendronException> errors = new ArrayList<>();
+    ParseTree tree = new ParseTree(tokens, errors);
+    if (!errors.isEmpty()) {
+      json.append("{\"errors\":[");
+      for (int i = 0; i < errors.size(); i++) {
+        json.append(i == 0 ? "" : ",");
+        error(errors.get(i), json);
+      }
+      json.append("]}");
+      return null;
+    }
+    return tree.compileProgram();
+  }
+
+  /**
+   * @return the assembled program, or null after putting the
+   *         assembler's diagnostics in json
+   */
+  private static Program assemble(byte[] body, StringBuilder json) {
+    Assembler assembler = new Assembler(1);
+    Program program = assembler.assemble(ByteBuffer.wrap(body), "request");
+    if (assembler.getDiagnostics().isEmpty()) {
+      return program;
+    }
+    json.append("{\"errors\":[");
+    List<String> diagnostics = assembler.getDiagnostics();
+    for (int i = 0; i < diagnostics.size(); i++) {
+      json.append(i == 0 ? "" : ",")
+          .append("{\"type\":\"ASSEMBLY\",\"message\":")
+          .append(quote(diagnostics.get(i))).append('}');
+    }
+    json.append("]}");
+    return null;
+  }
+
+  private static void error(DendronException e, StringBuilder json) {
+    json.append("{\"type\":").append(quote(e.getType().name()))
+        .append(",\"message\":").append(quote(e.getMessage()))
+        .append(",\"statement\":").append(e.getStatement())
+        .append(",\"token\":").append(e.getToken())
+        .append(",\"instruction\":").append(e.getInstruction());
+    if (e.getVariables() != null) {
+      json.append(",\"variables\":");
+      variables(e.getVariables(), json);
+    }
+    json.append('}');
+  }
+
+  private static void variables(Map<String, Integer> table,
+                                StringBuilder json) {
+    json.append('{');
+    String separator = "";
+    for (Map.Entry<String, Integer> entry : new TreeMap<>(table).entrySet()) {
+      json.append(separator).append(quote(entry.getKey()))
+          .append(':').append(entry.getValue());
+      separator = ",";
+    }
+    json.append('}');
+  }
+
+  /**
+   * Handle GET /stats.
+   */
+  private void stats(HttpExchange exchange) throws IOException {
+    long[] window;
+    long count;
+    synchronized (latencies) {
+      count = latencyCount;
+      window = Arrays.copyOf(latencies, (int) Math.min(count, WINDOW));
+    }
+    Arrays.sort(window);
+    double seconds = (System.nanoTime() - started) / 1e9;
+    long total = requests.get();
+    StringBuilder json = new StringBuilder();
+    json.append("{\"requests\":").append(total)
+        .append(",\"errors\":").append(failures.get())
+        .append(",\"cacheHits\":").append(hits.get())
+        .append(",\"cacheMisses\":").append(misses.get())
+        .append(",\"uptimeSeconds\":")
+        .append(String.format("%.3f", seconds))
+        .append(",\"requestsPerSecond\":")
+        .append(String.format("%.1f", total / seconds))
+        .append(",\"latencyMicros\":{\"samples\":").append(window.length)
+        .append(",\"p50\":").append(percentile(window, 50))
+        .append(",\"p90\":").append(percentile(window, 90))
+        .append(",\"p99\":").append(percentile(window, 99))
+        .append(",\"p999\":").append(percentile(window, 99.9))
+        .append(",\"max\":").append(percentile(window, 100))
+        .append("}}");
+    send(exchange, 200, json);
+  }
+
+  /**
+   * @param sorted latencies in nanoseconds, in ascending order
+   * @return the latency at a percentile, in microseconds, by the
+   *         nearest-rank method, or 0 if there are none
+   */
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(p / 100 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1] / 1000;
+  }
+
+  private void record(long nanos, boolean failed) {
+    requests.incrementAndGet();
+    if (failed) {
+      failures.incrementAndGet();
+    }
+    synchronized (latencies) {
+      latencies[(int) (latencyCount++ % WINDOW)] = nanos;
+    }
+  }
+
+  /**
+   * @return the body, or null if it is longer than MAX_BODY
+   */
+  private static byte[] readBody(InputStream in) throws IOException {
+    try (InputStream body = in) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int n; (n = body.read(buffer)) >= 0; ) {
+        bytes.write(buffer, 0, n);
+        if (bytes.size() > MAX_BODY) {
+          return null;
+        }
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status,
+                           CharSequence json) throws IOException {
+    byte[] reply = json.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, reply.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(reply);
+    }
+  }
+
+  private static String key(byte[] body, boolean assembly) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update((byte) (assembly ? 'a' : 's'));
+      byte[] digest = sha.digest(body);
+      StringBuilder key = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        key.append(Character.forDigit((b >> 4) & 0xF, 16))
+            .append(Character.forDigit(b & 0xF, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required by every JVM", e);
+    }
+  }
+
+  /**
+   * @return a string as a JSON string literal
+   */
+  static String quote(String s) {
+    StringBuilder json = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format("\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  /**
+   * Run a server until the JVM is stopped.
+   *
+   * @param args optionally -port n (the default is 8357; 0 picks a free
+   *             port), -cache n, the number of compiled Programs to
+   *             keep (the default is 256), and -threads n, the number
+   *             of requests to run at once when there are no virtual
+   *             threads (the default is 4 per processor)
+   * @throws IOException if the port cannot be bound
+   */
+  public static void main(String[] args) throws IOException {
+    int port = DEFAULT_PORT;
+    int cacheSize = DEFAULT_CACHE;
+    int threads = 4 * Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 == args.length) {
+        usage();
+      }
+      switch (args[i]) {
+        case "-port":
+          port = Integer.parseInt(args[i + 1]);
+          break;
+        case "-cache":
+          cacheSize = Integer.parseInt(args[i + 1]);
+          break;
+        case "-threads":
+          threads = Integer.parseInt(args[i + 1]);
+          break;
+        default:
+          usage();
+      }
+    }
+    DendronServer server = new DendronServer(port, cacheSize, threads);
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+    System.err.println("Dendron server listening on http://localhost:" +
+        server.getPort() + "/run");
+  }
+
+  private static void usage() {
+    System.err.println("Usage: java DendronServer [-port n] [-cache n] " +
+        "[-threads n]");
+    System.exit(2);
+  }
+}
@@ -1,10 +1,20 @@
 package dendron;
 
+import dendron.machine.JitProgram;
 import dendron.machine.Machine;
+import dendron.machine.OutputSink;
+import dendron.machine.Program;
+import dendron.machine.RegisterMachine;
+import dendron.machine.RegisterProgram;
 import dendron.tree.ParseTree;
+import dendron.tree.ProgramCache;
+import dendron.tree.StreamingProgram;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 /**
@@ -14,7 +24,7 @@ import java.util.*;
  */
 public class DendronTest {
 
-  private static List<List<String>> programs = Arrays.asList(
+  static List<List<String>> programs = Arrays.asList(
       new LinkedList<>(Arrays.asList(":=", "x", "55")),
       new LinkedList<>(Arrays.asList(
           ":=", "able", "77",
@@ -64,11 +74,36 @@ public class DendronTest {
    *             to that number; if other args, consider them tokens
    *             of a Dendron program and run tests on that program;
    *             if no arguments, read the source program from standard
-   *             input.
+   *             input. If the first argument is -stream, interpret the
+   *             program in the named file (or standard input if no
+   *             file is named) one statement at a time as it is read.
+   *             The dendron.engine system property chooses the back end
+   *             that runs the compiled code: "stack" (the default) for
+   *             the stack Machine, "register" for the RegisterMachine
+   *             or "jit" for the Program translated to JVM bytecode.
+   *             Setting the dendron.interpreter system property to
+   *             "specialized" interprets the tree through specialized
+   *             closures instead of walking its nodes.
+   *             Setting dendron.cache to a directory keeps parse trees
+   *             and compiled Programs there, keyed by the tokens, so
+   *             running the same program again skips compiling it;
+   *             dendron.cache.size bounds the directory in bytes.
+   *             Setting dendron.output to "buffered", "async" or
+   *             "discard" sends standard output through an OutputSink.
+   *             A program error stops the JVM with status
+   *             {@link Errors#DENDRON_ABORT}, except when running a
+   *             directory of tests, where it ends only that test.
    */
   public static void main(String... args) {
     List<String> tokenList;
 
+    OutputSink.install();
+
+    if (args.length > 0 && args[0].equals("-stream")) {
+      stream(args.length > 1 ? args[1] : null);
+      return;
+    }
+
     if (args.length == 0) {
       tokenList = new LinkedList<>();
       try (Scanner text = new Scanner(System.in)) {
@@ -89,7 +124,6 @@ public class DendronTest {
         // Illegal test number.
         // Assume argument is a directory of tests.
         //
-        String[] dummy = new String[0];
         File dir = new File(args[0]);
         File[] files = dir.listFiles();
         if (files == null) {
@@ -108,7 +142,12 @@ public class DendronTest {
               System.err.println(fnfe);
               continue;
             }
-            DendronTest.main(tokenList.toArray(dummy));
+            try {
+              run(tokenList);
+            } catch (DendronException e) {
+              System.out.flush();
+              System.err.println(e.describe());
+            }
             System.out.println("\n_________________________" +
                 "_________________________" +
                 "_________________________");
@@ -126,17 +165,86 @@ public class DendronTest {
       tokenList = new LinkedList<>(Arrays.asList(args));
     }
 
-    ParseTree tree = new ParseTree(tokenList);
+    try {
+      run(tokenList);
+    } catch (DendronException e) {
+      Errors.exit(e);
+    }
+  }
+
+  /**
+   * Display, interpret, compile and execute one program. Without a
+   * cache, every syntax error is found; all but the last are printed
+   * on standard error with their positions, and the last is thrown.
+   *
+   * @param tokenList the program's tokens
+   * @throws DendronException if the program has an error
+   */
+  private static void run(List<String> tokenList) {
+    ProgramCache cache = null;
+    try {
+      cache = ProgramCache.fromProperties();
+    } catch (IOException ioe) {
+      System.err.println(ioe);
+    }
+    List<DendronException> errors = new ArrayList<>();
+    ParseTree tree = cache == null ?
+        new ParseTree(tokenList, errors) : cache.tree(tokenList);
+    if (!errors.isEmpty()) {
+      for (DendronException error : errors.subList(0, errors.size() - 1)) {
+        System.err.println(error.describe());
+      }
+      throw errors.get(errors.size() - 1);
+    }
 
     tree.displayProgram();
 
-    tree.interpret();
+    if (System.getProperty("dendron.interpreter", "tree").equals("specialized")) {
+      tree.specialize().interpret();
+    } else {
+      tree.interpret();
+    }
+
+    String engine = System.getProperty("dendron.engine", "stack");
+    if (engine.equals("register")) {
+      RegisterProgram program = tree.compileRegisters();
 
-    List<Machine.Instruction> program = tree.compile();
+      RegisterMachine.displayInstructions(program);
 
+      RegisterMachine.execute(program);
+      return;
+    }
 
-    Machine.displayInstructions(program);
+    Program program = cache == null ?
+        tree.compileProgram() : cache.program(tokenList, tree);
+    if (cache != null) {
+      cache.report(System.err);
+    }
+
+    Machine.displayInstructions(program, true);
+
+    if (engine.equals("jit")) {
+      JitProgram.compile(program).execute();
+      return;
+    }
 
     Machine.execute(program);
   }
+
+  /**
+   * Interpret a program without holding all of it in memory.
+   *
+   * @param fileName the source file, or null for standard input
+   */
+  private static void stream(String fileName) {
+    try (InputStream in = fileName == null ?
+        System.in : new FileInputStream(fileName)) {
+      new StreamingProgram(in).interpret();
+    } catch (DendronException e) {
+      Errors.exit(e);
+    } catch (IOException ioe) {
+      System.err.println(ioe);
+      System.exit(1);
+    }
+  }
 }
@@ -0,0 +1,99 @@
+package dendron;
+
+import dendron.machine.Machine;
+import dendron.machine.Program;
+import dendron.machine.RegisterMachine;
+import dendron.machine.RegisterProgram;
+import dendron.tree.Optimization;
+import dendron.tree.ParseTree;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Check that very deep expressions can be parsed, optimized, compiled
+ * to the instruction list, the compact Program and register code, and
+ * run, without exhausting the Java call stack. It
+ * builds := v + + ... + 1 1 ... 1, nested down the left, and
+ * := v + 1 + 1 ... + 1 1, nested down the right, and checks that both
+ * sum to one more than their depth, with each optimization pass.
+ */
+public class DepthTest {
+
+  /**
+   * @param depth how many additions deep the expression is
+   * @param leftDeep true to nest down the left operands
+   * @return the tokens of a program assigning the sum to v
+   */
+  static List<String> program(int depth, boolean leftDeep) {
+    List<String> tokens = new ArrayList<>(2 * depth + 3);
+    tokens.add(":=");
+    tokens.add("v");
+    for (int i = 0; i < depth; i++) {
+      tokens.add("+");
+      if (!leftDeep) {
+        tokens.add("1");
+      }
+    }
+    tokens.add("1");
+    if (leftDeep) {
+      for (int i = 0; i < depth; i++) {
+        tokens.add("1");
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Run the check, with no optimization and then with each one on its
+   * own.
+   *
+   * @param args optionally the depth; the default is 100000
+   */
+  public static void main(String[] args) {
+    int depth = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    List<Set<Optimization>> settings = new ArrayList<>();
+    settings.add(EnumSet.noneOf(Optimization.class));
+    for (Optimization pass : Optimization.values()) {
+      settings.add(EnumSet.of(pass));
+    }
+    boolean ok = true;
+    for (Set<Optimization> passes : settings) {
+      String optimized = passes.isEmpty() ? "no optimization" :
+          passes.iterator().next().name().toLowerCase().replace('_', '-');
+      for (boolean leftDeep : new boolean[]{true, false}) {
+        String label = (leftDeep ? "left-deep" : "right-deep") +
+            " depth " + depth + ", " + optimized;
+        try {
+          ParseTree tree = new ParseTree(program(depth, leftDeep));
+          tree.setOptimizations(passes);
+          List<Machine.Instruction> code = tree.compile();
+          Program program = tree.compileProgram();
+          RegisterProgram registers = tree.compileRegisters();
+          Machine machine = new Machine(discard);
+          machine.run(code);
+          int fromList = machine.getFrame().toMap().get("v");
+          machine.run(program);
+          int fromProgram = machine.getFrame().toMap().get("v");
+          RegisterMachine registerMachine = new RegisterMachine(discard);
+          registerMachine.run(registers);
+          int fromRegisters = registerMachine.getFrame().toMap().get("v");
+          boolean right = fromList == depth + 1 &&
+              fromProgram == depth + 1 && fromRegisters == depth + 1;
+          System.out.println(label + ": " + code.size() +
+              " instructions, v = " + fromProgram + (right ? "" : " WRONG"));
+          ok &= right;
+        } catch (StackOverflowError e) {
+          System.out.println(label + ": stack overflow");
+          ok = false;
+        }
+      }
+    }
+    System.exit(ok ? 0 : 1);
+  }
+}
@@ -1,5 +1,8 @@
 package dendron;
 
+import dendron.machine.Frame;
+
+import java.io.PrintStream;
 import java.util.Map;
 
 /**
@@ -10,6 +13,7 @@ import java.util.Map;
  *     <li>uninitialized variable in expression</li>
  *     <li>premature end of statement</li>
  *     <li>extra tokens at end of statement</li>
+ *     <li>machine stack underflow</li>
  * </ul>
  *
  * @author James Heliotis
@@ -17,8 +21,9 @@ import java.util.Map;
 public class Errors {
 
     /**
-     * The exit status returned by the Java virtual machine if an
-     * error is reported via this class
+     * The exit status returned by the Java virtual machine when a
+     * command-line tool stops because of an error
+     * @see #exit(DendronException)
      */
     public static final int DENDRON_ABORT = 1;
 
@@ -27,26 +32,61 @@ public class Errors {
         ILLEGAL_VALUE( "illegal value encountered in source" ),
         UNINITIALIZED( "uninitialized variable in expression" ),
         PREMATURE_END( "premature end of statement" ),
-        EXTRA_TOKENS( "extra tokens at end of statement" );
+        EXTRA_TOKENS( "extra tokens at end of statement" ),
+        STACK_UNDERFLOW( "machine stack underflow" );
 
         private final String message;
 
         Type( String message ) {
             this.message = message;
         }
+
+        /**
+         * @return the description of this kind of error
+         */
+        public String getMessage() {
+            return message;
+        }
     }
 
     /**
-     * Report an error and stop the program. All output goes to standard error.
+     * Report an error by throwing a {@link DendronException} that
+     * describes it. Callers that know where the error happened add
+     * that to the exception as it passes through them.
      *
-     * @param type The kind of error, printed first
-     * @param info if not null, an additional value to be printed after a colon
+     * @param type The kind of error
+     * @param info if not null, an additional value describing the error
+     * @throws DendronException always: a DendronException.Syntax for
+     *         errors in the form of a program, else a
+     *         DendronException.Execution
      */
     public static void report( Type type, Object info ) {
-        System.err.print( type.message );
-        if ( info != null ) {
-            System.err.print( ": " + info );
-        }
+        throw error( type, info );
+    }
+
+    /**
+     * Make the exception that {@link #report(Type, Object)} throws,
+     * for callers that add more to it before throwing it themselves.
+     *
+     * @param type The kind of error
+     * @param info if not null, an additional value describing the error
+     * @return a DendronException.Syntax for errors in the form of a
+     *         program, else a DendronException.Execution
+     */
+    public static DendronException error( Type type, Object info ) {
+        return DendronException.of( type, info );
+    }
+
+    /**
+     * Stop the program because of an error, as the command-line tools
+     * do. Standard output is flushed first; the message goes to
+     * standard error.
+     *
+     * @param error the error
+     */
+    public static void exit( DendronException error ) {
+        System.out.flush();
+        System.err.print( error.getMessage() );
         System.exit( DENDRON_ABORT );
     }
 
@@ -55,9 +95,52 @@ public class Errors {
      * @param table the program's symbol table
      */
     public static void dump( Map< String, Integer > table ) {
-        System.out.println( "Symbol Table Contents\n=====================\n" );
+        dump( table, System.out );
+    }
+
+    /**
+     * Show on the given stream the values of all the variables in the table.
+     * @param table the program's symbol table
+     * @param out where the listing goes
+     */
+    public static void dump( Map< String, Integer > table, PrintStream out ) {
+        out.println( "Symbol Table Contents\n=====================\n" );
         for ( String ident: table.keySet() ) {
-            System.out.printf( "%12s : %11d\n", ident, table.get( ident ) );
+            out.printf( "%12s : %11d\n", ident, table.get( ident ) );
         }
     }
+
+    /**
+     * Show on standard output the values of all the assigned variables
+     * in a slot-indexed frame, by name. The listing order is the same
+     * as for the name-keyed table. Compiler temporaries are only shown
+     * if the dendron.showTemporaries system property is true.
+     * @param frame the program's variable storage
+     */
+    public static void dump( Frame frame ) {
+        dump( frame, System.out );
+    }
+
+    /**
+     * Show on the given stream the values of all the assigned variables
+     * in a slot-indexed frame, by name. Compiler temporaries are only
+     * shown if the dendron.showTemporaries system property is true.
+     * @param frame the program's variable storage
+     * @param out where the listing goes
+     */
+    public static void dump( Frame frame, PrintStream out ) {
+        dump( frame, out, Boolean.getBoolean( "dendron.showTemporaries" ) );
+    }
+
+    /**
+     * Show on the given stream the values of the assigned variables
+     * in a slot-indexed frame, by name.
+     * @param frame the program's variable storage
+     * @param out where the listing goes
+     * @param temporaries whether to show compiler temporaries too
+     */
+    public static void dump( Frame frame, PrintStream out,
+                             boolean temporaries ) {
+        dump( frame.toMap( temporaries ), out );
+    }
 }
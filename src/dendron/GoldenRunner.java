@@ -0,0 +1,450 @@
+package dendron;
+
+import dendron.machine.Assembler;
+import dendron.machine.JitProgram;
+import dendron.machine.Machine;
+import dendron.machine.Program;
+import dendron.machine.RegisterMachine;
+import dendron.machine.RegisterProgram;
+import dendron.tree.ParseTree;
+import dendron.tree.SpecializedProgram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Run every program in some directories through several engines at
+ * once, and check what each run prints against the golden output.
+ * <p>
+ * Source programs (.txt) go through the engines that start from the
+ * parse tree, and assembly programs (.denm) through the assembler and
+ * the Machine. The golden output for name.txt or name.denm is name.out
+ * in any of the directories. It holds what the Machine prints; for the
+ * interpreters, which announce themselves differently and print with
+ * "===" rather than "***", it is translated first.
+ * <p>
+ * Each run prints into its own buffer, so runs on different threads
+ * cannot mix their output, and a program error ends only the run it
+ * happens in. Runs are spread over a work-stealing pool.
+ */
+public class GoldenRunner {
+
+  /**
+   * The ways a program can be run.
+   */
+  public enum Engine {
+    /** ParseTree.interpret() */
+    TREE,
+    /** the specialized closure interpreter */
+    SPECIALIZED,
+    /** the compiled Program on the stack Machine */
+    MACHINE,
+    /** the register machine */
+    REGISTER,
+    /** the Program translated to JVM bytecode */
+    JIT,
+    /** a .denm file assembled and run on the stack Machine */
+    ASSEMBLY
+  }
+
+  /**
+   * How a run turned out.
+   */
+  public enum Status {
+    /** the output matched the golden file */
+    PASS,
+    /** the output differed from the golden file */
+    FAIL,
+    /** the program stopped with an error */
+    ERROR,
+    /** there is no golden file to compare with */
+    UNCHECKED
+  }
+
+  /**
+   * What happened when one program went through one engine.
+   * Times are in nanoseconds, and -1 for stages that were not reached
+   * or that the engine does not have.
+   */
+  public static class Result {
+    private final Path file;
+    private final Engine engine;
+    private Status status;
+    private String detail = "";
+    private long parse = -1;
+    private long compile = -1;
+    private long execute = -1;
+
+    Result(Path file, Engine engine) {
+      this.file = file;
+      this.engine = engine;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public Engine getEngine() {
+      return engine;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the error, or where the output first differed
+     */
+    public String getDetail() {
+      return detail;
+    }
+
+    public long getParseNanos() {
+      return parse;
+    }
+
+    public long getCompileNanos() {
+      return compile;
+    }
+
+    public long getExecuteNanos() {
+      return execute;
+    }
+  }
+
+  /** what each thread is printing into, if it is doing a run */
+  private static final ThreadLocal<PrintStream> OUTPUT = new ThreadLocal<>();
+
+  /**
+   * Standard output while runs are in progress: each thread's bytes
+   * go to its run's buffer, or if it has none to the real output.
+   */
+  private static class Dispatcher extends OutputStream {
+    private final OutputStream fallback;
+
+    Dispatcher(OutputStream fallback) {
+      this.fallback = fallback;
+    }
+
+    private OutputStream target() {
+      PrintStream out = OUTPUT.get();
+      return out != null ? out : fallback;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target().flush();
+    }
+  }
+
+  private final Set<Engine> engines;
+  private final int threads;
+
+  /**
+   * @param engines the engines to run each program through
+   * @param threads how many runs may be in progress at once
+   */
+  public GoldenRunner(Set<Engine> engines, int threads) {
+    this.engines = EnumSet.copyOf(engines);
+    this.threads = threads;
+  }
+
+  /**
+   * Run every program in the directories through the engines.
+   * While this runs, standard output is redirected.
+   *
+   * @param directories where the programs and golden files are
+   * @return one result per program and engine, by file then engine
+   * @throws IOException if a directory cannot be listed
+   */
+  public List<Result> run(List<Path> directories) throws IOException {
+    List<Path> programs = new ArrayList<>();
+    Map<String, Path> golden = new HashMap<>();
+    for (Path directory : directories) {
+      try (DirectoryStream<Path> files =
+               Files.newDirectoryStream(directory, "*.{txt,denm,out}")) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          if (name.endsWith(".out")) {
+            golden.putIfAbsent(baseName(file), file);
+          } else {
+            programs.add(file);
+          }
+        }
+      }
+    }
+    programs.sort(Comparator.comparing(Path::toString));
+
+    List<Callable<Result>> runs = new ArrayList<>();
+    for (Path program : programs) {
+      boolean assembly = program.toString().endsWith(".denm");
+      Path out = golden.get(baseName(program));
+      for (Engine engine : engines) {
+        if ((engine == Engine.ASSEMBLY) == assembly) {
+          runs.add(() -> run(program, engine, out));
+        }
+      }
+    }
+
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new Dispatcher(stdout), true));
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<Result> results = new ArrayList<>(runs.size());
+      for (Future<Result> result : pool.invokeAll(runs)) {
+        results.add(result.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdown();
+      System.setOut(stdout);
+    }
+  }
+
+  /**
+   * Run one program through one engine, capturing what it prints.
+   */
+  private static Result run(Path program, Engine engine, Path golden) {
+    Result result = new Result(program, engine);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+    OUTPUT.set(out);
+    try {
+      long start = System.nanoTime();
+      if (engine == Engine.ASSEMBLY) {
+        Assembler assembler = new Assembler();
+        Program code = assembler.assemble(program);
+        result.parse = System.nanoTime() - start;
+        if (!assembler.getDiagnostics().isEmpty()) {
+          result.detail = assembler.getDiagnostics().get(0);
+        }
+        start = System.nanoTime();
+        new Machine(out).run(code);
+        result.execute = System.nanoTime() - start;
+      } else {
+        String text = new String(Files.readAllBytes(program),
+            StandardCharsets.UTF_8).trim();
+        List<String> tokens = text.isEmpty() ?
+            new ArrayList<>() : Arrays.asList(text.split("\\s+"));
+        ParseTree tree = new ParseTree(tokens);
+        result.parse = System.nanoTime() - start;
+        start = System.nanoTime();
+        Runnable execute;
+        switch (engine) {
+          case TREE:
+            execute = tree::interpret;
+            break;
+          case SPECIALIZED:
+            SpecializedProgram specialized = tree.specialize();
+            execute = specialized::interpret;
+            break;
+          case MACHINE:
+            Program code = tree.compileProgram();
+            execute = () -> new Machine(out).run(code);
+            break;
+          case REGISTER:
+            RegisterProgram registers = tree.compileRegisters();
+            execute = () -> new RegisterMachine(out).run(registers);
+            break;
+          default:
+            JitProgram jit = JitProgram.compile(tree.compileProgram());
+            execute = () -> jit.run(out);
+        }
+        if (engine != Engine.TREE) {
+          result.compile = System.nanoTime() - start;
+        }
+        start = System.nanoTime();
+        execute.run();
+        result.execute = System.nanoTime() - start;
+      }
+    } catch (DendronException e) {
+      result.status = Status.ERROR;
+      result.detail = e.describe();
+      return result;
+    } catch (IOException | RuntimeException | StackOverflowError e) {
+      result.status = Status.ERROR;
+      result.detail = e.getMessage() != null ? e.getMessage() : e.toString();
+      return result;
+    } finally {
+      OUTPUT.remove();
+    }
+    if (golden == null) {
+      result.status = Status.UNCHECKED;
+      return result;
+    }
+    try {
+      String expected = new String(Files.readAllBytes(golden),
+          StandardCharsets.UTF_8);
+      if (engine == Engine.TREE || engine == Engine.SPECIALIZED) {
+        expected = interpreterForm(expected);
+      }
+      String difference =
+          difference(expected, bytes.toString(StandardCharsets.UTF_8));
+      result.status = difference == null ? Status.PASS : Status.FAIL;
+      if (difference != null) {
+        result.detail = difference;
+      }
+    } catch (IOException e) {
+      result.status = Status.ERROR;
+      result.detail = golden + ": " + e.getMessage();
+    }
+    return result;
+  }
+
+  /**
+   * @param machine what the Machine prints for a program
+   * @return what the tree interpreters print for the same program
+   */
+  static String interpreterForm(String machine) {
+    String[] lines = machine.split("\n", -1);
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].equals("Executing compiled code...")) {
+        lines[i] = "Interpreting the parse tree...";
+      } else if (lines[i].startsWith("Machine: execution ended with")) {
+        lines[i] = "Interpretation complete.";
+      } else if (lines[i].startsWith("*** ")) {
+        lines[i] = "=== " + lines[i].substring(4);
+      }
+    }
+    return String.join("\n", lines);
+  }
+
+  /**
+   * @return null if the two outputs are the same, ignoring line
+   *         terminators, or else where they first differ
+   */
+  private static String difference(String expected, String actual) {
+    String[] want = expected.replace("\r\n", "\n").split("\n", -1);
+    String[] got = actual.replace("\r\n", "\n").split("\n", -1);
+    for (int i = 0; i < Math.max(want.length, got.length); i++) {
+      String w = i < want.length ? want[i] : "<end of output>";
+      String g = i < got.length ? got[i] : "<end of output>";
+      if (!w.equals(g)) {
+        return "line " + (i + 1) + ": expected \"" + w + "\", got \"" + g + "\"";
+      }
+    }
+    return null;
+  }
+
+  private static String baseName(Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  /**
+   * Print a line per run, with its status and timings in milliseconds,
+   * then totals, then the details of every run that did not pass.
+   *
+   * @param results the results of {@link #run}
+   * @param wall how long the whole run took, in nanoseconds
+   * @param report where the report goes
+   */
+  public static void report(List<Result> results, long wall,
+                            PrintStream report) {
+    report.printf("%-28s %-12s %-9s %9s %11s %11s\n",
+        "file", "engine", "status", "parse ms", "compile ms", "execute ms");
+    Map<Status, Integer> counts = new HashMap<>();
+    for (Result result : results) {
+      report.printf("%-28s %-12s %-9s %9s %11s %11s\n",
+          result.file.getFileName(), result.engine, result.status,
+          millis(result.parse), millis(result.compile),
+          millis(result.execute));
+      counts.merge(result.status, 1, Integer::sum);
+    }
+    report.printf("\n%d runs: %d passed, %d failed, %d errors, %d unchecked;" +
+            " %.3f s\n", results.size(),
+        counts.getOrDefault(Status.PASS, 0),
+        counts.getOrDefault(Status.FAIL, 0),
+        counts.getOrDefault(Status.ERROR, 0),
+        counts.getOrDefault(Status.UNCHECKED, 0), wall / 1e9);
+    for (Result result : results) {
+      if (result.status == Status.FAIL || result.status == Status.ERROR) {
+        report.println(result.file + " " + result.engine + " " +
+            result.status + ": " + result.detail);
+      }
+    }
+  }
+
+  private static String millis(long nanos) {
+    return nanos < 0 ? "-" : String.format("%.3f", nanos / 1e6);
+  }
+
+  /**
+   * Run the programs in some directories and report on them.
+   *
+   * @param args optionally -engines followed by a comma-separated list
+   *             of engine names (the default is tree,machine,assembly)
+   *             and -threads followed by a number (the default is one
+   *             per processor), then one or more directories
+   * @throws IOException if a directory cannot be listed
+   */
+  public static void main(String[] args) throws IOException {
+    Set<Engine> engines =
+        EnumSet.of(Engine.TREE, Engine.MACHINE, Engine.ASSEMBLY);
+    int threads = Runtime.getRuntime().availableProcessors();
+    int i = 0;
+    for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+      if (args[i].equals("-engines")) {
+        engines = EnumSet.noneOf(Engine.class);
+        for (String name : args[i + 1].split(",")) {
+          engines.add(Engine.valueOf(name.trim().toUpperCase()));
+        }
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else {
+        break;
+      }
+    }
+    if (i == args.length) {
+      System.err.println("Usage: java GoldenRunner [-engines list] " +
+          "[-threads n] directory...");
+      System.exit(2);
+    }
+    List<Path> directories = new ArrayList<>();
+    for (; i < args.length; i++) {
+      directories.add(Paths.get(args[i]));
+    }
+    long start = System.nanoTime();
+    List<Result> results = new GoldenRunner(engines, threads).run(directories);
+    report(results, System.nanoTime() - start, System.out);
+    for (Result result : results) {
+      if (result.status == Status.FAIL || result.status == Status.ERROR) {
+        System.exit(1);
+      }
+    }
+  }
+}
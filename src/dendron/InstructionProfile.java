@@ -0,0 +1,213 @@
+package dendron;
+
+import dendron.machine.InstructionReader;
+import dendron.machine.Machine;
+import dendron.machine.Superinstructions;
+import dendron.tree.ParseTree;
+import dendron.tree.ProgramGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Count how often each instruction, and each sequence of two and three
+ * instructions, occurs in a set of programs, and how many fewer
+ * instructions the {@link Superinstructions} pass leaves. This is the
+ * tool the superinstruction set was chosen with. The programs have no
+ * branches, so the counts are also the number of dispatches a run
+ * makes.
+ * <p>
+ * The programs are the assembly (.denm) and source (.txt) files in the
+ * directories given, the DendronTest programs and some programs from
+ * the {@link ProgramGenerator}. Each group is reported separately,
+ * then all of them together.
+ */
+public class InstructionProfile {
+
+  private final String label;
+  private final Map<String, Integer> singles = new HashMap<>();
+  private final Map<String, Integer> pairs = new HashMap<>();
+  private final Map<String, Integer> triples = new HashMap<>();
+  private final Superinstructions fusion = new Superinstructions();
+  private int programs;
+  private int before;
+  private int after;
+
+  private InstructionProfile(String label) {
+    this.label = label;
+  }
+
+  /**
+   * Count one program's instructions and fuse it.
+   *
+   * @param code the program, without superinstructions
+   */
+  private void add(List<Machine.Instruction> code) {
+    String[] ops = new String[code.size()];
+    for (int i = 0; i < ops.length; i++) {
+      ops[i] = code.get(i).toString().split("\\s+")[0];
+      singles.merge(ops[i], 1, Integer::sum);
+      if (i >= 1) {
+        pairs.merge(ops[i - 1] + " / " + ops[i], 1, Integer::sum);
+      }
+      if (i >= 2) {
+        triples.merge(ops[i - 2] + " / " + ops[i - 1] + " / " + ops[i],
+            1, Integer::sum);
+      }
+    }
+    programs++;
+    before += code.size();
+    after += fusion.fuse(code).size();
+  }
+
+  /**
+   * Add another profile's counts to this one.
+   */
+  private void add(InstructionProfile other) {
+    other.singles.forEach((k, v) -> singles.merge(k, v, Integer::sum));
+    other.pairs.forEach((k, v) -> pairs.merge(k, v, Integer::sum));
+    other.triples.forEach((k, v) -> triples.merge(k, v, Integer::sum));
+    programs += other.programs;
+    before += other.before;
+    after += other.after;
+  }
+
+  private static void top(String title, Map<String, Integer> counts,
+                          int total, int limit) {
+    System.out.println(title + ":");
+    counts.entrySet().stream()
+        .sorted(Map.Entry.<String, Integer>comparingByValue().reversed()
+            .thenComparing(Map.Entry.comparingByKey()))
+        .limit(limit)
+        .forEach(e -> System.out.printf("%8d %5.1f%%  %s%n", e.getValue(),
+            100.0 * e.getValue() / Math.max(total, 1), e.getKey()));
+  }
+
+  /**
+   * Print the most frequent sequences and the effect of fusion.
+   *
+   * @param limit how many of each length to list
+   */
+  private void report(int limit) {
+    System.out.printf("== %s: %d programs, %d instructions%n",
+        label, programs, before);
+    if (before == 0) {
+      return;
+    }
+    top("instructions", singles, before, limit);
+    top("pairs", pairs, before, limit);
+    top("triples", triples, before, limit);
+    System.out.printf("superinstructions: %d dispatches before, %d after, " +
+            "%.1f%% fewer%n%n", before, after,
+        100.0 * (before - after) / before);
+  }
+
+  /**
+   * Compile or assemble a file, if it is a program.
+   *
+   * @return the program's instructions, or null if it is not one
+   */
+  private static List<Machine.Instruction> load(Path file)
+      throws IOException {
+    String name = file.getFileName().toString();
+    if (name.endsWith(".denm")) {
+      return InstructionReader.assemble(file.toString());
+    }
+    if (name.endsWith(".txt")) {
+      String text =
+          new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+      List<String> tokens =
+          new ArrayList<>(Arrays.asList(text.trim().split("\\s+")));
+      try {
+        return new ParseTree(tokens).compile();
+      } catch (DendronException e) {
+        System.err.println(file + ": " + e.describe());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Profile some programs.
+   *
+   * @param args optionally -random n, the number of generated programs
+   *             (the default is 20), -top n, how many sequences of each
+   *             length to list (the default is 12), then directories
+   *             or files of programs (the default is assy and source)
+   * @throws IOException if a file cannot be read
+   */
+  public static void main(String[] args) throws IOException {
+    int random = 20;
+    int limit = 12;
+    int i = 0;
+    for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+      if (args[i].equals("-random")) {
+        random = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("-top")) {
+        limit = Integer.parseInt(args[i + 1]);
+      } else {
+        System.err.println("Usage: java InstructionProfile [-random n] " +
+            "[-top n] [directory or file ...]");
+        System.exit(2);
+      }
+    }
+    List<String> places = i < args.length ?
+        Arrays.asList(args).subList(i, args.length) :
+        Arrays.asList("assy", "source");
+
+    List<InstructionProfile> groups = new ArrayList<>();
+    for (String place : places) {
+      InstructionProfile files = new InstructionProfile(place);
+      Path path = Paths.get(place);
+      if (Files.isDirectory(path)) {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+          entries.forEach(paths::add);
+        }
+        paths.sort(null);
+        for (Path file : paths) {
+          List<Machine.Instruction> code = load(file);
+          if (code != null) {
+            files.add(code);
+          }
+        }
+      } else {
+        List<Machine.Instruction> code = load(path);
+        if (code != null) {
+          files.add(code);
+        }
+      }
+      groups.add(files);
+    }
+
+    InstructionProfile tests = new InstructionProfile("DendronTest programs");
+    for (List<String> tokens : DendronTest.programs) {
+      tests.add(new ParseTree(new ArrayList<>(tokens)).compile());
+    }
+    groups.add(tests);
+
+    InstructionProfile generated =
+        new InstructionProfile(random + " generated programs");
+    for (int seed = 1; seed <= random; seed++) {
+      List<String> tokens = new ProgramGenerator(seed).generate().getTokens();
+      generated.add(new ParseTree(new ArrayList<>(tokens)).compile());
+    }
+    groups.add(generated);
+
+    InstructionProfile all = new InstructionProfile("all programs");
+    for (InstructionProfile group : groups) {
+      group.report(limit);
+      all.add(group);
+    }
+    all.report(limit);
+  }
+}
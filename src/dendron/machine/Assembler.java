@@ -0,0 +1,453 @@
+package dendron.machine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A fast assembler for .denm files. It works directly on the bytes of
+ * the file, matches mnemonics without creating strings, and produces a
+ * compact {@link Program}. Each instruction's operands must be on the
+ * same line as its mnemonic; more than one instruction may share a
+ * line. Variables get frame slots in order of first appearance, as in
+ * {@link InstructionReader}.
+ * <p>
+ * Problems are reported as diagnostics of the form
+ * {@code file:line:column: message} (columns count bytes) and the
+ * offending instruction is skipped. Large files are split at line
+ * boundaries and the pieces assembled in parallel; the pieces' symbol
+ * tables and code are then joined in file order, so the result is
+ * exactly what assembling the file in one piece would give.
+ */
+public class Assembler {
+
+  /** the mnemonic for each opcode, or null for UNDERFLOW */
+  private static final String[] MNEMONICS = {
+      "PUSH", "LOAD", "STORE", "ADD", "SUB", "MUL", "DIV", "NEG", "SQRT",
+      "PRINT", null, "DUP",
+      "ADD_CONST", "SUB_CONST", "MUL_CONST", "DIV_CONST",
+      "ADD_LOAD", "SUB_LOAD", "MUL_LOAD", "DIV_LOAD",
+      "LOAD_LOAD_ADD", "LOAD_LOAD_SUB", "LOAD_LOAD_MUL",
+      "PUSH_STORE", "LOAD_PRINT", "INC"
+  };
+  /** the mnemonics' bytes, grouped by length */
+  private static final byte[][][] BY_LENGTH = new byte[16][][];
+  private static final int[][] OPCODES_BY_LENGTH = new int[16][];
+
+  static {
+    for (int length = 0; length < BY_LENGTH.length; length++) {
+      List<Integer> opcodes = new ArrayList<>();
+      for (int opcode = 0; opcode < MNEMONICS.length; opcode++) {
+        if (MNEMONICS[opcode] != null && MNEMONICS[opcode].length() == length) {
+          opcodes.add(opcode);
+        }
+      }
+      BY_LENGTH[length] = new byte[opcodes.size()][];
+      OPCODES_BY_LENGTH[length] = new int[opcodes.size()];
+      for (int i = 0; i < opcodes.size(); i++) {
+        OPCODES_BY_LENGTH[length][i] = opcodes.get(i);
+        BY_LENGTH[length][i] =
+            MNEMONICS[opcodes.get(i)].getBytes(StandardCharsets.US_ASCII);
+      }
+    }
+  }
+
+  /** files smaller than this are assembled in one piece */
+  private static final int PARALLEL_THRESHOLD = 1 << 22;
+
+  private final int pieces;
+  private final List<String> diagnostics = new ArrayList<>();
+
+  /**
+   * Create an assembler that splits large files into one piece
+   * per available processor.
+   */
+  public Assembler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param pieces the most pieces to split a large file into;
+   *               1 assembles every file in one piece
+   */
+  public Assembler(int pieces) {
+    this.pieces = Math.max(1, pieces);
+  }
+
+  /**
+   * Assemble a file.
+   *
+   * @param file a .denm file
+   * @return the assembled program, without any instructions that
+   *         had problems
+   * @throws IOException if the file cannot be read
+   */
+  public Program assemble(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + ": too large");
+      }
+      ByteBuffer text =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return assemble(text, file.toString());
+    }
+  }
+
+  /**
+   * Assemble source text.
+   *
+   * @param text the bytes of the source, from position to limit
+   * @param source the name to use in diagnostics
+   * @return the assembled program, without any instructions that
+   *         had problems
+   */
+  public Program assemble(ByteBuffer text, String source) {
+    int start = text.position();
+    int end = text.limit();
+    int count = end - start < PARALLEL_THRESHOLD ? 1 : pieces;
+    int[] bounds = new int[count + 1];
+    bounds[0] = start;
+    for (int i = 1; i < count; i++) {
+      int at = Math.max(bounds[i - 1], start + (int) ((long) (end - start) * i / count));
+      while (at < end && text.get(at) != '\n') {
+        at++;
+      }
+      bounds[i] = Math.min(end, at + 1);
+    }
+    bounds[count] = end;
+
+    List<Piece> parsed = count == 1 ?
+        Collections.singletonList(new Piece(text, bounds[0], bounds[1])) :
+        IntStream.range(0, count).parallel()
+            .mapToObj(i -> new Piece(text, bounds[i], bounds[i + 1]))
+            .collect(Collectors.toList());
+    return join(parsed, source);
+  }
+
+  /**
+   * @return the problems found by every assembly done so far, in order
+   */
+  public List<String> getDiagnostics() {
+    return Collections.unmodifiableList(diagnostics);
+  }
+
+  /**
+   * Join the pieces' code into one program, renumbering their
+   * variables in order of first appearance across the whole file.
+   */
+  private Program join(List<Piece> parsed, String source) {
+    Program.Builder builder = new Program.Builder();
+    Symbols symbols = new Symbols();
+    int line = 1;
+    for (Piece piece : parsed) {
+      int[] slots = new int[piece.nameCount];
+      for (int i = 0; i < piece.nameCount; i++) {
+        slots[i] = symbols.intern(piece.names[i]);
+      }
+      for (int i = 0; i < piece.problemCount; i++) {
+        long where = piece.problemPlaces[i];
+        diagnostics.add(source + ":" + (line + (int) (where >>> 32)) + ":" +
+            (int) where + ": " + piece.problems.get(i));
+      }
+      int[] code = piece.code;
+      for (int pc = 0; pc < piece.length; ) {
+        int opcode = code[pc++];
+        String kinds = Program.operands(opcode);
+        if (kinds.isEmpty()) {
+          builder.emit(opcode);
+        } else if (kinds.equals("C")) {
+          builder.emitWithConstant(opcode, code[pc++]);
+        } else if (kinds.equals("S")) {
+          int slot = slots[code[pc++]];
+          builder.emitVariable(opcode, symbols.name(slot), slot);
+        } else if (kinds.equals("SS")) {
+          int slot1 = slots[code[pc++]];
+          int slot2 = slots[code[pc++]];
+          builder.emitVariables(opcode, symbols.name(slot1), slot1,
+              symbols.name(slot2), slot2);
+        } else {
+          int slot = slots[code[pc++]];
+          builder.emitVariableWithConstant(opcode, symbols.name(slot), slot,
+              code[pc++]);
+        }
+      }
+      line += piece.lines;
+    }
+    return builder.build();
+  }
+
+  /**
+   * One line-aligned piece of the source, lexed and parsed. Its code
+   * holds constants by value and variables by their index in the
+   * piece's own name table.
+   */
+  private static class Piece {
+    private final ByteBuffer text;
+    private final int end;
+    private int pos;
+
+    int[] code = new int[256];
+    int length = 0;
+    String[] names = new String[16];
+    int nameCount = 0;
+    int lines = 0;
+    final List<String> problems = new ArrayList<>();
+    long[] problemPlaces = new long[4];
+    int problemCount = 0;
+
+    /* Open-addressed table from name bytes to name index. */
+    private byte[][] keys = new byte[64][];
+    private int[] values = new int[64];
+
+    private int lineStart;
+    private final int[] pending = new int[3];
+
+    Piece(ByteBuffer text, int start, int end) {
+      this.text = text;
+      this.end = end;
+      this.pos = start;
+      this.lineStart = start;
+      parse();
+    }
+
+    private void parse() {
+      while (true) {
+        skipBlanks();
+        if (pos == end) {
+          return;
+        }
+        if (text.get(pos) == '\n') {
+          newLine();
+          continue;
+        }
+        instruction();
+      }
+    }
+
+    private void instruction() {
+      int column = pos - lineStart + 1;
+      int start = pos;
+      skipToken();
+      int opcode = mnemonic(start, pos);
+      if (opcode < 0) {
+        problem(column, "illegal assembly instruction " + token(start, pos));
+        return;
+      }
+      String kinds = Program.operands(opcode);
+      // PUSH_STORE is written with its constant first, unlike in the code.
+      boolean swap = opcode == Program.PUSH_STORE;
+      for (int i = 0; i < kinds.length(); i++) {
+        char kind = kinds.charAt(swap ? kinds.length() - 1 - i : i);
+        skipBlanks();
+        if (pos == end || text.get(pos) == '\n') {
+          problem(pos - lineStart + 1, MNEMONICS[opcode] + " is missing " +
+              (kind == 'C' ? "an integer" : "a variable name"));
+          return;
+        }
+        int operandStart = pos;
+        skipToken();
+        if (kind == 'C') {
+          long value = integer(operandStart, pos);
+          if (value == Long.MIN_VALUE) {
+            problem(operandStart - lineStart + 1, "bad integer " +
+                token(operandStart, pos) + " for " + MNEMONICS[opcode]);
+            return;
+          }
+          pending[i] = (int) value;
+        } else {
+          pending[i] = name(operandStart, pos);
+        }
+      }
+      if (swap) {
+        int t = pending[0];
+        pending[0] = pending[1];
+        pending[1] = t;
+      }
+      if (length + 3 >= code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      code[length++] = opcode;
+      for (int i = 0; i < kinds.length(); i++) {
+        code[length++] = pending[i];
+      }
+    }
+
+    private void skipBlanks() {
+      while (pos < end) {
+        byte b = text.get(pos);
+        if (b != ' ' && b != '\t' && b != '\r' && b != '\f' && b != 0x0B) {
+          return;
+        }
+        pos++;
+      }
+    }
+
+    private void skipToken() {
+      while (pos < end) {
+        byte b = text.get(pos);
+        if (b == ' ' || b == '\t' || b == '\n' || b == '\r' ||
+            b == '\f' || b == 0x0B) {
+          return;
+        }
+        pos++;
+      }
+    }
+
+    /**
+     * Skip the rest of the line after a problem.
+     */
+    private void skipLine() {
+      while (pos < end && text.get(pos) != '\n') {
+        pos++;
+      }
+    }
+
+    private void newLine() {
+      pos++;
+      lines++;
+      lineStart = pos;
+    }
+
+    private int mnemonic(int start, int stop) {
+      int length = stop - start;
+      if (length >= BY_LENGTH.length) {
+        return -1;
+      }
+      byte[][] candidates = BY_LENGTH[length];
+      candidates:
+      for (int c = 0; c < candidates.length; c++) {
+        byte[] candidate = candidates[c];
+        for (int i = 0; i < length; i++) {
+          if (candidate[i] != text.get(start + i)) {
+            continue candidates;
+          }
+        }
+        return OPCODES_BY_LENGTH[length][c];
+      }
+      return -1;
+    }
+
+    /**
+     * @return the value, or Long.MIN_VALUE if it is not an int
+     */
+    private long integer(int start, int stop) {
+      int i = start;
+      boolean negative = false;
+      if (text.get(i) == '-' || text.get(i) == '+') {
+        negative = text.get(i) == '-';
+        i++;
+      }
+      if (i == stop || stop - i > 10) {
+        return Long.MIN_VALUE;
+      }
+      long value = 0;
+      for (; i < stop; i++) {
+        int digit = text.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          return Long.MIN_VALUE;
+        }
+        value = value * 10 + digit;
+      }
+      value = negative ? -value : value;
+      return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ?
+          Long.MIN_VALUE : value;
+    }
+
+    /**
+     * @return the index of the name in this piece's table, adding it
+     *         if this is its first appearance
+     */
+    private int name(int start, int stop) {
+      int hash = 0x811C9DC5;
+      for (int i = start; i < stop; i++) {
+        hash = (hash ^ text.get(i)) * 0x01000193;
+      }
+      int mask = keys.length - 1;
+      for (int h = hash & mask; ; h = (h + 1) & mask) {
+        byte[] key = keys[h];
+        if (key == null) {
+          byte[] bytes = new byte[stop - start];
+          for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = text.get(start + i);
+          }
+          return add(bytes, h);
+        }
+        if (key.length == stop - start && matches(key, start)) {
+          return values[h];
+        }
+      }
+    }
+
+    private boolean matches(byte[] key, int start) {
+      for (int i = 0; i < key.length; i++) {
+        if (key[i] != text.get(start + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int add(byte[] bytes, int h) {
+      if (nameCount == names.length) {
+        names = Arrays.copyOf(names, nameCount * 2);
+      }
+      int index = nameCount++;
+      names[index] = new String(bytes, StandardCharsets.UTF_8);
+      keys[h] = bytes;
+      values[h] = index;
+      if (nameCount * 2 > keys.length) {
+        rehash();
+      }
+      return index;
+    }
+
+    private void rehash() {
+      byte[][] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new byte[oldKeys.length * 2][];
+      values = new int[keys.length];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        byte[] key = oldKeys[i];
+        if (key != null) {
+          int hash = 0x811C9DC5;
+          for (byte b : key) {
+            hash = (hash ^ b) * 0x01000193;
+          }
+          int h = hash & mask;
+          while (keys[h] != null) {
+            h = (h + 1) & mask;
+          }
+          keys[h] = key;
+          values[h] = oldValues[i];
+        }
+      }
+    }
+
+    private String token(int start, int stop) {
+      byte[] bytes = new byte[stop - start];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = text.get(start + i);
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void problem(int column, String message) {
+      if (problemCount == problemPlaces.length) {
+        problemPlaces = Arrays.copyOf(problemPlaces, problemCount * 2);
+      }
+      problemPlaces[problemCount++] = ((long) lines << 32) | column;
+      problems.add(message);
+      skipLine();
+    }
+  }
+}
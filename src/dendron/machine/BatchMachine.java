@@ -0,0 +1,579 @@
+package dendron.machine;
+
+import dendron.DendronException;
+import dendron.Errors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one compiled Program over many rows of input at once, for
+ * programs used as a formula applied to every record of a data set.
+ * <p>
+ * The input variables come as int columns, one value per row, and the
+ * output variables go back the same way. Rows are taken a block at a
+ * time, and each instruction is carried out for the whole block
+ * before the next one starts, so the dispatch cost is paid once per
+ * block rather than once per row, and every instruction is a plain
+ * loop over arrays that the JIT compiler can unroll and vectorize.
+ * The stack holds a column per entry rather than a value; STORE swaps
+ * the column into the variable instead of copying it.
+ * <p>
+ * Blocks are independent, so several threads may share them out.
+ * The values a PRINT instruction would print also come back as a
+ * column each, in program order.
+ * <p>
+ * Since a Program has no branches, whether a variable has been
+ * assigned before it is read, and whether the stack underflows, is
+ * the same for every row, and both are checked once, when the
+ * BatchMachine is made. Only division by zero depends on the data;
+ * it is reported for the first row that has one, as if the rows were
+ * run one at a time.
+ */
+public class BatchMachine {
+
+  /** the rows in a block when no size is given */
+  public static final int DEFAULT_BLOCK = 1024;
+
+  private final int[] code;
+  private final int[] constants;
+  private final String[] names;
+  private final BitSet temporaries;
+  private final int maxStack;
+  private final int[] inputs;
+  private final int[] outputs;
+  private final int prints;
+  /**
+   * for each slot, the index of the first instruction that assigns
+   * it, -1 for inputs, or Integer.MAX_VALUE if none does
+   */
+  private final int[] assignedAt;
+
+  private int blockSize = DEFAULT_BLOCK;
+  private int threads = 1;
+
+  /**
+   * Prepare a program for batch runs.
+   *
+   * @param program the compiled program
+   * @param inputs the variables whose values each row supplies
+   * @param outputs the variables whose final values are wanted
+   * @throws IllegalArgumentException if there are no inputs, or a name
+   *         is not a variable of the program, or an output is never
+   *         assigned
+   * @throws DendronException.Execution if the program reads a variable
+   *         that is neither an input nor assigned before, or would
+   *         underflow the stack
+   */
+  public BatchMachine(Program program, List<String> inputs,
+                      List<String> outputs) {
+    if (inputs.isEmpty()) {
+      throw new IllegalArgumentException("no input variables");
+    }
+    this.code = program.code;
+    this.constants = program.constants;
+    this.names = program.names;
+    this.temporaries = program.temporaries;
+    this.maxStack = program.maxStack;
+    this.inputs = slots(inputs);
+    this.outputs = slots(outputs);
+    this.assignedAt = new int[names.length];
+    Arrays.fill(assignedAt, Integer.MAX_VALUE);
+    for (int slot : this.inputs) {
+      assignedAt[slot] = -1;
+    }
+    this.prints = check(program);
+    for (int slot : this.outputs) {
+      if (assignedAt[slot] == Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            names[slot] + " is never assigned");
+      }
+    }
+  }
+
+  private int[] slots(List<String> variables) {
+    List<String> all = Arrays.asList(names);
+    int[] slots = new int[variables.size()];
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = all.indexOf(variables.get(i));
+      if (slots[i] < 0) {
+        throw new IllegalArgumentException(
+            "no variable " + variables.get(i) + " in the program");
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * Find the errors that do not depend on the data, and record where
+   * each variable is first assigned.
+   *
+   * @return the number of PRINT instructions
+   */
+  private int check(Program program) {
+    int prints = 0;
+    int index = 0;
+    for (int pc = 0; pc < code.length; pc += Program.width(code[pc])) {
+      switch (code[pc]) {
+        case Program.LOAD_LOAD_ADD:
+        case Program.LOAD_LOAD_SUB:
+        case Program.LOAD_LOAD_MUL:
+          checkAssigned(code[pc + 1], index);
+          checkAssigned(code[pc + 2], index);
+          break;
+        case Program.LOAD:
+        case Program.ADD_LOAD:
+        case Program.SUB_LOAD:
+        case Program.MUL_LOAD:
+        case Program.DIV_LOAD:
+        case Program.INC:
+          checkAssigned(code[pc + 1], index);
+          break;
+        case Program.LOAD_PRINT:
+          checkAssigned(code[pc + 1], index);
+          prints++;
+          break;
+        case Program.PRINT:
+          prints++;
+          break;
+        case Program.STORE:
+        case Program.PUSH_STORE:
+          assignedAt[code[pc + 1]] =
+              Math.min(assignedAt[code[pc + 1]], index);
+          break;
+        case Program.UNDERFLOW:
+          throw Errors.error(Errors.Type.STACK_UNDERFLOW,
+              program.underflowing(pc)).atInstruction(index);
+      }
+      index++;
+    }
+    return prints;
+  }
+
+  private void checkAssigned(int slot, int index) {
+    if (assignedAt[slot] >= index) {
+      throw Errors.error(Errors.Type.UNINITIALIZED, names[slot])
+          .atInstruction(index);
+    }
+  }
+
+  /**
+   * @param rows how many rows each block holds, at least 1
+   * @return this machine
+   */
+  public BatchMachine setBlockSize(int rows) {
+    if (rows < 1) {
+      throw new IllegalArgumentException("block size: " + rows);
+    }
+    this.blockSize = rows;
+    return this;
+  }
+
+  /**
+   * @param threads how many threads share out the blocks, at least 1
+   * @return this machine
+   */
+  public BatchMachine setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads: " + threads);
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * The output of a batch run.
+   */
+  public static class Result {
+    private final Map<String, int[]> outputs;
+    private final int[][] printed;
+
+    Result(Map<String, int[]> outputs, int[][] printed) {
+      this.outputs = outputs;
+      this.printed = printed;
+    }
+
+    /**
+     * @param variable one of the output variables
+     * @return its final value for each row
+     */
+    public int[] get(String variable) {
+      int[] column = outputs.get(variable);
+      if (column == null) {
+        throw new IllegalArgumentException(variable + " is not an output");
+      }
+      return column;
+    }
+
+    /**
+     * @return the number of values each row prints
+     */
+    public int getPrintCount() {
+      return printed.length;
+    }
+
+    /**
+     * @param n which value, counting the program's PRINTs from 0
+     * @return that value for each row
+     */
+    public int[] getPrinted(int n) {
+      return printed[n];
+    }
+  }
+
+  /**
+   * Run the program once for each row.
+   *
+   * @param columns a column of values for each input variable, in the
+   *                order they were given; all the same length
+   * @return the output variables' values and the printed values
+   * @throws DendronException.Execution if a row divides by zero; the
+   *         exception gives the first such row, and its variables as
+   *         they stood
+   */
+  public Result run(int[]... columns) {
+    if (columns.length != inputs.length) {
+      throw new IllegalArgumentException("expected " + inputs.length +
+          " input columns, got " + columns.length);
+    }
+    int rows = columns[0].length;
+    for (int[] column : columns) {
+      if (column.length != rows) {
+        throw new IllegalArgumentException("input columns differ in length");
+      }
+    }
+    int[][] results = new int[outputs.length][rows];
+    int[][] printed = new int[prints][rows];
+    int blocks = (rows + blockSize - 1) / blockSize;
+    int tasks = Math.min(blocks, threads == 1 ? 1 : 4 * threads);
+
+    List<Callable<DendronException>> work = new ArrayList<>(tasks);
+    for (int t = 0; t < tasks; t++) {
+      int first = (int) ((long) blocks * t / tasks);
+      int last = (int) ((long) blocks * (t + 1) / tasks);
+      work.add(() -> new Worker(columns, results, printed)
+          .run(first * blockSize, Math.min(last * blockSize, rows)));
+    }
+    DendronException error = null;
+    if (tasks == 1) {
+      error = call(work.get(0));
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        for (Future<DendronException> result : pool.invokeAll(work)) {
+          DendronException e = result.get();
+          if (error == null || e != null && e.getRow() < error.getRow()) {
+            error = e;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        pool.shutdown();
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+
+    Map<String, int[]> named = new HashMap<>();
+    for (int i = 0; i < outputs.length; i++) {
+      named.put(names[outputs[i]], results[i]);
+    }
+    return new Result(named, printed);
+  }
+
+  private static DendronException call(Callable<DendronException> task) {
+    try {
+      return task.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Runs blocks one after another, reusing its columns.
+   */
+  private class Worker {
+    private final int[][] columns;
+    private final int[][] results;
+    private final int[][] printed;
+    private final int[][] vars = new int[names.length][blockSize];
+    private final int[][] stack = new int[maxStack][blockSize];
+
+    Worker(int[][] columns, int[][] results, int[][] printed) {
+      this.columns = columns;
+      this.results = results;
+      this.printed = printed;
+    }
+
+    /**
+     * @param from the first row
+     * @param to the row after the last
+     * @return the error in the first row that has one, or null
+     */
+    DendronException run(int from, int to) {
+      for (int start = from; start < to; start += blockSize) {
+        DendronException error = block(start, Math.min(blockSize, to - start));
+        // The block stopped at the first instruction that failed in any
+        // row, but an earlier row may fail at a later instruction. Run
+        // the rows before the failing one again until none of them fails.
+        while (error != null && error.getRow() > start) {
+          DendronException earlier = block(start, error.getRow() - start);
+          if (earlier == null) {
+            break;
+          }
+          error = earlier;
+        }
+        if (error != null) {
+          return error;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Run every instruction over n rows starting at row start.
+     *
+     * @return the error at the first instruction that fails in any of
+     *         the rows, for the first row it fails in, or null
+     */
+    private DendronException block(int start, int n) {
+      for (int i = 0; i < inputs.length; i++) {
+        System.arraycopy(columns[i], start, vars[inputs[i]], 0, n);
+      }
+      int[][] stack = this.stack;
+      int[][] vars = this.vars;
+      int sp = 0;
+      int print = 0;
+      int index = 0;
+      for (int pc = 0; pc < code.length; pc += Program.width(code[pc])) {
+        switch (code[pc]) {
+          case Program.PUSH:
+            Arrays.fill(stack[sp++], 0, n, constants[code[pc + 1]]);
+            break;
+          case Program.LOAD:
+            System.arraycopy(vars[code[pc + 1]], 0, stack[sp++], 0, n);
+            break;
+          case Program.STORE: {
+            int slot = code[pc + 1];
+            int[] column = vars[slot];
+            vars[slot] = stack[--sp];
+            stack[sp] = column;
+            break;
+          }
+          case Program.ADD: {
+            int[] b = stack[--sp];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] += b[i];
+            }
+            break;
+          }
+          case Program.SUB: {
+            int[] b = stack[--sp];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] -= b[i];
+            }
+            break;
+          }
+          case Program.MUL: {
+            int[] b = stack[--sp];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] *= b[i];
+            }
+            break;
+          }
+          case Program.DIV: {
+            int[] b = stack[--sp];
+            int[] a = stack[sp - 1];
+            int zero = divide(a, b, n);
+            if (zero >= 0) {
+              return divideByZero(a[zero], start, zero, index);
+            }
+            break;
+          }
+          case Program.NEG: {
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] = -a[i];
+            }
+            break;
+          }
+          case Program.SQRT: {
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] = (int) Math.sqrt(a[i]);
+            }
+            break;
+          }
+          case Program.PRINT:
+            System.arraycopy(stack[--sp], 0, printed[print++], start, n);
+            break;
+          case Program.DUP:
+            System.arraycopy(stack[sp - 1], 0, stack[sp++], 0, n);
+            break;
+          case Program.ADD_CONST: {
+            int c = constants[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] += c;
+            }
+            break;
+          }
+          case Program.SUB_CONST: {
+            int c = constants[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] -= c;
+            }
+            break;
+          }
+          case Program.MUL_CONST: {
+            int c = constants[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] *= c;
+            }
+            break;
+          }
+          case Program.DIV_CONST: {
+            int c = constants[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            if (c == 0) {
+              return divideByZero(a[0], start, 0, index);
+            }
+            for (int i = 0; i < n; i++) {
+              a[i] /= c;
+            }
+            break;
+          }
+          case Program.ADD_LOAD: {
+            int[] b = vars[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] += b[i];
+            }
+            break;
+          }
+          case Program.SUB_LOAD: {
+            int[] b = vars[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] -= b[i];
+            }
+            break;
+          }
+          case Program.MUL_LOAD: {
+            int[] b = vars[code[pc + 1]];
+            int[] a = stack[sp - 1];
+            for (int i = 0; i < n; i++) {
+              a[i] *= b[i];
+            }
+            break;
+          }
+          case Program.DIV_LOAD: {
+            int[] a = stack[sp - 1];
+            int zero = divide(a, vars[code[pc + 1]], n);
+            if (zero >= 0) {
+              return divideByZero(a[zero], start, zero, index);
+            }
+            break;
+          }
+          case Program.LOAD_LOAD_ADD: {
+            int[] x = vars[code[pc + 1]];
+            int[] y = vars[code[pc + 2]];
+            int[] a = stack[sp++];
+            for (int i = 0; i < n; i++) {
+              a[i] = x[i] + y[i];
+            }
+            break;
+          }
+          case Program.LOAD_LOAD_SUB: {
+            int[] x = vars[code[pc + 1]];
+            int[] y = vars[code[pc + 2]];
+            int[] a = stack[sp++];
+            for (int i = 0; i < n; i++) {
+              a[i] = x[i] - y[i];
+            }
+            break;
+          }
+          case Program.LOAD_LOAD_MUL: {
+            int[] x = vars[code[pc + 1]];
+            int[] y = vars[code[pc + 2]];
+            int[] a = stack[sp++];
+            for (int i = 0; i < n; i++) {
+              a[i] = x[i] * y[i];
+            }
+            break;
+          }
+          case Program.PUSH_STORE:
+            Arrays.fill(vars[code[pc + 1]], 0, n, constants[code[pc + 2]]);
+            break;
+          case Program.LOAD_PRINT:
+            System.arraycopy(vars[code[pc + 1]], 0, printed[print++], start, n);
+            break;
+          case Program.INC: {
+            int c = constants[code[pc + 2]];
+            int[] a = vars[code[pc + 1]];
+            for (int i = 0; i < n; i++) {
+              a[i] += c;
+            }
+            break;
+          }
+        }
+        index++;
+      }
+      for (int i = 0; i < outputs.length; i++) {
+        System.arraycopy(vars[outputs[i]], 0, results[i], start, n);
+      }
+      return null;
+    }
+
+    /**
+     * Divide a by b in place, stopping at the first zero divisor.
+     *
+     * @return the row of that divisor, or -1 if there is none
+     */
+    private int divide(int[] a, int[] b, int n) {
+      for (int i = 0; i < n; i++) {
+        if (b[i] == 0) {
+          return i;
+        }
+        a[i] /= b[i];
+      }
+      return -1;
+    }
+
+    /**
+     * @return the error for a division by zero at a row of the block
+     *         starting at start, with that row's variables
+     */
+    private DendronException divideByZero(int dividend, int start, int row,
+                                          int index) {
+      Map<String, Integer> variables = new HashMap<>();
+      for (int slot = 0; slot < names.length; slot++) {
+        if (assignedAt[slot] < index && !temporaries.get(slot)) {
+          variables.put(names[slot], vars[slot][row]);
+        }
+      }
+      return Errors.error(Errors.Type.DIVIDE_BY_ZERO, dividend + " / 0")
+          .atInstruction(index).atRow(start + row).withVariables(variables);
+    }
+  }
+}
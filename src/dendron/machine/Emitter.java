@@ -0,0 +1,17 @@
+package dendron.machine;
+
+/**
+ * A destination for Machine instructions as they are generated.
+ * Code generators append to one Emitter in a single pass instead of
+ * building and concatenating a list per node.
+ *
+ * @see Program.Builder
+ */
+public interface Emitter {
+  /**
+   * Append an instruction to the code being generated.
+   *
+   * @param instr the next instruction
+   */
+  void emit(Machine.Instruction instr);
+}
@@ -0,0 +1,165 @@
+package dendron.machine;
+
+import dendron.Errors;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The variable storage for a running Dendron program. Values live in a
+ * primitive array indexed by the slot numbers given out by {@link Symbols};
+ * a parallel bitmap records which slots have been assigned so that reads
+ * of uninitialized variables can be reported. The frame also knows
+ * which slots hold compiler temporaries, so that they can be left out
+ * of what it shows.
+ */
+public class Frame {
+
+  private String[] names;
+  private final BitSet temporaries;
+  private int[] values;
+  private long[] initialized;
+  private int size;
+
+  /**
+   * Create a frame with every variable uninitialized and no
+   * compiler temporaries.
+   *
+   * @param names the slot-to-name table; its length is the frame size
+   */
+  public Frame(String[] names) {
+    this(names, new BitSet());
+  }
+
+  /**
+   * Create a frame with every variable uninitialized.
+   *
+   * @param names the slot-to-name table; its length is the frame size
+   * @param temporaries the slots that hold compiler temporaries
+   */
+  public Frame(String[] names, BitSet temporaries) {
+    this.names = names;
+    this.temporaries = (BitSet) temporaries.clone();
+    this.values = new int[names.length];
+    this.initialized = new long[(names.length + 63) >>> 6];
+    this.size = names.length;
+  }
+
+  /**
+   * Create a frame holding one slot for every variable in a table.
+   *
+   * @param symbols the program's resolved variables
+   */
+  public Frame(Symbols symbols) {
+    this(symbols.names(), symbols.temporaries());
+  }
+
+  /**
+   * Fetch a variable's value, reporting an error if it was never assigned.
+   *
+   * @param slot the variable's slot number
+   * @return the variable's current value
+   */
+  public int load(int slot) {
+    if ((initialized[slot >>> 6] & (1L << slot)) == 0) {
+      Errors.report(Errors.Type.UNINITIALIZED, names[slot]);
+    }
+    return values[slot];
+  }
+
+  /**
+   * Give a variable a new value.
+   *
+   * @param slot the variable's slot number
+   * @param value the value to store
+   */
+  public void store(int slot, int value) {
+    values[slot] = value;
+    initialized[slot >>> 6] |= 1L << slot;
+  }
+
+  /**
+   * @param slot a variable's slot number
+   * @return true if the variable has been assigned a value
+   */
+  public boolean isInitialized(int slot) {
+    return (initialized[slot >>> 6] & (1L << slot)) != 0;
+  }
+
+  /**
+   * @return the number of slots in this frame
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param slot a variable's slot number
+   * @return the name of the variable in that slot
+   */
+  public String name(int slot) {
+    return names[slot];
+  }
+
+  /**
+   * @param slot a variable's slot number
+   * @return true if the slot holds a compiler temporary
+   */
+  public boolean isTemporary(int slot) {
+    return temporaries.get(slot);
+  }
+
+  /**
+   * Make room for variables added to the table after this frame
+   * was created. Existing values are kept. Capacity grows
+   * geometrically, so adding variables one at a time is cheap.
+   *
+   * @param symbols the table the frame was created from
+   */
+  public void grow(Symbols symbols) {
+    int needed = symbols.size();
+    if (needed <= size) {
+      return;
+    }
+    if (needed > names.length) {
+      int capacity = Math.max(needed, names.length * 2);
+      names = Arrays.copyOf(names, capacity);
+      values = Arrays.copyOf(values, capacity);
+      initialized = Arrays.copyOf(initialized, (capacity + 63) >>> 6);
+    }
+    for (int slot = size; slot < needed; slot++) {
+      names[slot] = symbols.name(slot);
+      temporaries.set(slot, symbols.isTemporary(slot));
+    }
+    size = needed;
+  }
+
+  /**
+   * Build a name-keyed copy of the assigned variables, for display.
+   *
+   * @return a map from variable name to value, without uninitialized ones
+   */
+  public Map<String, Integer> toMap() {
+    return toMap(true);
+  }
+
+  /**
+   * Build a name-keyed copy of the assigned variables, for display.
+   *
+   * @param temporaries whether to include compiler temporaries
+   * @return a map from variable name to value, without uninitialized ones
+   * @see Symbols#newTemporary()
+   */
+  public Map<String, Integer> toMap(boolean temporaries) {
+    Map<String, Integer> table = new HashMap<>();
+    for (int slot = 0; slot < size; slot++) {
+      if (isInitialized(slot) &&
+          (temporaries || !this.temporaries.get(slot))) {
+        table.put(names[slot], values[slot]);
+      }
+    }
+    return table;
+  }
+}
@@ -1,11 +1,12 @@
 package dendron.machine;
 
+import dendron.DendronException;
+import dendron.Errors;
 import dendron.machine.Machine;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.function.Function;
 
 /**
  * Assemble instructions from a file.
@@ -15,44 +16,35 @@ import java.util.function.Function;
  */
 public class InstructionReader {
 
-    private static Map< String, Function< Scanner, Machine.Instruction> > gen
-            = new HashMap< String, Function< Scanner, Machine.Instruction > >()
-    {{
-        put( "PUSH", in -> { int i = in.nextInt();
-                             return new Machine.PushConst( i ); } );
-        put( "LOAD", in -> { String v = in.next();
-                             return new Machine.Load( v ); } );
-        put( "STORE", in -> { String v = in.next();
-                              return new Machine.Store( v ); } );
-        put( "ADD", in -> new Machine.Add() );
-        put( "SUB", in -> new Machine.Subtract() );
-        put( "MUL", in -> new Machine.Multiply() );
-        put( "DIV", in -> new Machine.Divide() );
-        put( "NEG", in -> new Machine.Negate() );
-        put( "SQRT", in -> new Machine.SquareRoot() );
-        put( "PRINT", in -> new Machine.Print() );
-    }};
-
     /**
      * Read instructions from the named file and translate them
-     * to internal form.
+     * to internal form. Variable names are resolved to frame slots
+     * in order of first appearance. Problems in the file are reported
+     * on standard error, with their line and column, and the
+     * instructions concerned are left out.
      * @param assyFile the name of the text file containing the assembly code
      * @return a list of Machine.Instruction objects, ready to execute
+     * @see Assembler
      */
     public static List< Machine.Instruction > assemble( String assyFile ) {
-        try ( FileInputStream fileStr = new FileInputStream( assyFile ) ) {
-            List< Machine.Instruction > result = new LinkedList<>();
-            Scanner in = new Scanner( fileStr );
-            while ( in.hasNext() ) {
-                String mnemonic = in.next();
-                if ( gen.containsKey( mnemonic ) ) {
-                    result.add( gen.get( mnemonic ).apply( in ) );
-                }
-                else {
-                    System.err.println( "Illegal assembly instr " + mnemonic );
-                }
+        Program program = assembleProgram( assyFile );
+        return program == null ? null : program.toInstructions();
+    }
+
+    /**
+     * Read instructions from the named file and translate them
+     * straight to compact form, as {@link #assemble(String)} does.
+     * @param assyFile the name of the text file containing the assembly code
+     * @return the compiled Program, or null if the file could not be read
+     */
+    public static Program assembleProgram( String assyFile ) {
+        Assembler assembler = new Assembler();
+        try {
+            Program program = assembler.assemble( Paths.get( assyFile ) );
+            for ( String diagnostic : assembler.getDiagnostics() ) {
+                System.err.println( diagnostic );
             }
-            return result;
+            return program;
         }
         catch( IOException ioe ) {
             System.err.println( "Could not open file " + assyFile );
@@ -60,17 +52,88 @@ public class InstructionReader {
         return null;
     }
 
+    /**
+     * Load a binary program file, reporting failure as
+     * {@link #assemble(String)} does.
+     * @param binaryFile the name of a .denb file
+     * @return the program, or null if it could not be loaded
+     */
+    private static Program load( String binaryFile ) {
+        try {
+            return ProgramFile.load( Paths.get( binaryFile ) );
+        }
+        catch( IOException ioe ) {
+            System.err.println( "Could not load file " + binaryFile +
+                                ": " + ioe.getMessage() );
+            System.exit( 1 );
+            return null;
+        }
+    }
+
     /**
      * Assemble and execute some Dendron machine code.
      * @param args the name of the assembly language source file
+     *             (or of a binary program file ending in .denb),
+     *             optionally preceded by -O to run the peephole
+     *             optimizer first and/or -S to use superinstructions
+     *             (their reports go to standard error); the
+     *             dendron.output property can choose an OutputSink
+     *             for standard output
      */
     public static void main( String[] args ) {
-        if ( args.length != 1 ) {
+        OutputSink.install();
+        boolean optimize = false;
+        boolean fuse = false;
+        int first = 0;
+        for ( ; first < args.length - 1; first++ ) {
+            if ( args[ first ].equals( "-O" ) ) {
+                optimize = true;
+            }
+            else if ( args[ first ].equals( "-S" ) ) {
+                fuse = true;
+            }
+            else {
+                break;
+            }
+        }
+        if ( args.length != first + 1 ) {
             System.err.println(
-                    "Usage: java InstructionReader assembly-code-file" );
+                    "Usage: java InstructionReader [-O] [-S] assembly-code-file" );
             System.exit( 1 );
         }
-        List< Machine.Instruction > code = assemble( args[ 0 ] );
-        Machine.execute( code );
+        Program program = args[ first ].endsWith( ProgramFile.EXTENSION ) ?
+                load( args[ first ] ) : assembleProgram( args[ first ] );
+        if ( program == null ) {
+            System.exit( 1 );
+        }
+        try {
+            run( program, optimize, fuse );
+        }
+        catch ( DendronException e ) {
+            Errors.exit( e );
+        }
+    }
+
+    /**
+     * Run a program, first passing it through the optimizers asked for.
+     */
+    private static void run( Program program, boolean optimize,
+                             boolean fuse ) {
+        if ( !optimize && !fuse ) {
+            Machine.execute( program );
+            return;
+        }
+        List< Machine.Instruction > code = program.toInstructions();
+        if ( optimize ) {
+            Peephole peephole = new Peephole();
+            code = peephole.optimize( code );
+            peephole.report( System.err );
+        }
+        if ( fuse ) {
+            Superinstructions superinstructions = new Superinstructions();
+            code = superinstructions.fuse( code );
+            superinstructions.report( System.err );
+        }
+        Machine.execute( Program.of( code ) );
     }
 }
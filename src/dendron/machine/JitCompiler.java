@@ -0,0 +1,537 @@
+package dendron.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a compiled {@link Program} into JVM bytecode, so that
+ * HotSpot can compile it to native code. Only the JDK is needed: the
+ * class files are written by hand and loaded as hidden classes.
+ * <p>
+ * The Machine's value stack maps directly onto the JVM operand stack,
+ * and its arithmetic onto iadd, isub, imul, idiv and ineg. The code is
+ * cut into static "chunk" methods of the form
+ * {@code static void cN(int[] frame, int[] spill, PrintStream out)},
+ * each kept under the size HotSpot is willing to compile. Within a
+ * chunk, every variable used lives in a JVM local: it is read from the
+ * frame array the first time the chunk needs it and written back when
+ * the chunk ends. Values left on the stack when a chunk ends are saved
+ * in the spill array, and the next chunks fetch them from there only
+ * when an instruction pops them, so a deep stack costs nothing extra.
+ * <p>
+ * A Program has no branches, so whether a variable has been assigned
+ * before it is read is known here; a read of an unassigned variable,
+ * like a stack underflow, becomes a call that reports the error,
+ * followed by the end of the generated code. Division by zero is
+ * checked by a call just before each idiv, which first writes back the
+ * variables assigned so far, so that the frame array is up to date if
+ * the division fails. Each such call passes the index of its
+ * instruction in the original program, to be attached to the error.
+ *
+ * @see JitProgram
+ */
+class JitCompiler {
+
+  /** HotSpot does not compile methods of 8000 bytes or more. */
+  private static final int CHUNK_LIMIT = 7000;
+  /** Start a new class before the constant pool or method table fills. */
+  private static final int POOL_LIMIT = 60000;
+  private static final int METHOD_LIMIT = 60000;
+
+  static final String CLASS_NAME = "dendron/machine/JitCode";
+  static final String CHUNK_DESCRIPTOR = "([I[ILjava/io/PrintStream;)V";
+  private static final String HELPERS = "dendron/machine/JitProgram";
+
+  private final Program program;
+  /** for each instruction compiled, its index in the original program */
+  private final int[] original;
+  /** the index of the instruction being translated, among those compiled */
+  private int index;
+  private final List<byte[]> classes = new ArrayList<>();
+  private final List<Integer> chunksPerClass = new ArrayList<>();
+  private ClassBuilder cls;
+
+  /** variables assigned so far, in program order */
+  private final BitSet stored = new BitSet();
+  /** the Machine stack depth at the current point in the program */
+  private int depth = 0;
+  /** how many values at the bottom of the stack are in the spill array */
+  private int base = 0;
+  private boolean trapped = false;
+
+  /* Per-chunk state */
+  private Code code;
+  private int[] localOf;
+  private final List<Integer> chunkSlots = new ArrayList<>();
+  private final BitSet dirty = new BitSet();
+  private int nextLocal;
+  private int chunkMaxDepth;
+
+  JitCompiler(Program program) {
+    this.program = Superinstructions.unfuse(program);
+    this.localOf = new int[this.program.names.length];
+    List<Machine.Instruction> instructions = program.toInstructions();
+    List<Integer> owners = new ArrayList<>();
+    for (int i = 0; i < instructions.size(); i++) {
+      Machine.Instruction instr = instructions.get(i);
+      int parts = instr instanceof Machine.Fused ?
+          ((Machine.Fused) instr).parts().size() : 1;
+      for (int p = 0; p < parts; p++) {
+        owners.add(i);
+      }
+    }
+    this.original = owners.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * @return the class files, in order; chunks run class by class,
+   *         and in method order within a class
+   */
+  List<byte[]> getClasses() {
+    return classes;
+  }
+
+  /**
+   * @return how many chunk methods each class file holds
+   */
+  List<Integer> getChunksPerClass() {
+    return chunksPerClass;
+  }
+
+  /**
+   * @return the deepest the stack can get, which for a program with
+   *         superinstructions is deeper than the program's own figure
+   */
+  int getMaxStack() {
+    return program.maxStack;
+  }
+
+  /**
+   * @return the stack depth when the program ends normally
+   */
+  int getFinalDepth() {
+    return depth;
+  }
+
+  /**
+   * @return the variables the program assigns if it runs to the end
+   */
+  BitSet getStored() {
+    return stored;
+  }
+
+  /**
+   * Generate all the class files.
+   */
+  void compile() {
+    int[] words = program.code;
+    cls = new ClassBuilder();
+    startChunk();
+    index = 0;
+    for (int pc = 0; pc < words.length && !trapped; pc += Program.width(words[pc])) {
+      if (code.length() + epilogueSize() > CHUNK_LIMIT) {
+        endChunk();
+        startChunk();
+      }
+      instruction(words, pc);
+      index++;
+    }
+    endChunk();
+    finishClass();
+  }
+
+  private void instruction(int[] words, int pc) {
+    if (words[pc] != Program.UNDERFLOW) {
+      fill(Program.pops(words[pc]));
+    }
+    switch (words[pc]) {
+      case Program.PUSH:
+        pushInt(program.constants[words[pc + 1]]);
+        push(1);
+        break;
+      case Program.LOAD: {
+        int slot = words[pc + 1];
+        if (!stored.get(slot)) {
+          trap("uninitialized", program.names[slot]);
+          return;
+        }
+        int local = localOf[slot];
+        if (local == 0) {
+          local = allocateLocal(slot);
+          code.op(0x2a);                       // aload_0
+          pushInt(slot);
+          code.op(0x2e);                       // iaload
+          code.op(0x59);                       // dup
+          localOp(0x36, local);                // istore
+          push(3);
+          depth -= 2;
+        } else {
+          localOp(0x15, local);                // iload
+          push(1);
+        }
+        break;
+      }
+      case Program.STORE: {
+        int slot = words[pc + 1];
+        int local = localOf[slot];
+        if (local == 0) {
+          local = allocateLocal(slot);
+        }
+        localOp(0x36, local);                  // istore
+        dirty.set(slot);
+        stored.set(slot);
+        depth--;
+        break;
+      }
+      case Program.ADD:
+        code.op(0x60);
+        depth--;
+        break;
+      case Program.SUB:
+        code.op(0x64);
+        depth--;
+        break;
+      case Program.MUL:
+        code.op(0x68);
+        depth--;
+        break;
+      case Program.DIV:
+        writeBack();
+        dirty.clear();
+        code.op(0x5c);                         // dup2
+        push(2);
+        pushInt(original[index]);
+        push(1);
+        depth -= 3;
+        invokestatic(HELPERS, "checkDivisor", "(III)V");
+        code.op(0x6c);                         // idiv
+        depth--;
+        break;
+      case Program.NEG:
+        code.op(0x74);
+        break;
+      case Program.SQRT:
+        code.op(0x87);                         // i2d
+        push(1);
+        invokestatic("java/lang/Math", "sqrt", "(D)D");
+        code.op(0x8e);                         // d2i
+        depth--;
+        break;
+      case Program.PRINT:
+        code.op(0x2c);                         // aload_2
+        push(1);
+        invokestatic(HELPERS, "print", "(ILjava/io/PrintStream;)V");
+        depth -= 2;
+        break;
+      case Program.DUP:
+        code.op(0x59);
+        push(1);
+        break;
+      case Program.UNDERFLOW:
+        trap("underflow", program.underflowing(pc).toString());
+        break;
+      default:
+        throw new IllegalStateException("bad opcode " + words[pc] + " at " + pc);
+    }
+  }
+
+  /**
+   * End the generated code with a call that reports an error.
+   */
+  private void trap(String helper, String info) {
+    writeBack();
+    code.op(0x13);                             // ldc_w
+    code.u2(cls.string(info));
+    pushInt(original[index]);
+    invokestatic(HELPERS, helper,
+        "(Ljava/lang/String;I)Ljava/lang/RuntimeException;");
+    code.op(0xbf);                             // athrow
+    push(3);
+    trapped = true;
+  }
+
+  /**
+   * Make sure the JVM stack holds the operands the next instruction
+   * pops, fetching them from the spill array if need be.
+   */
+  private void fill(int pops) {
+    int held = depth - base;
+    if (held >= pops) {
+      return;
+    }
+    for (int i = base - (pops - held); i < base; i++) {
+      code.op(0x2b);                           // aload_1
+      pushInt(i);
+      code.op(0x2e);                           // iaload
+      if (held == 1) {
+        code.op(0x5f);                         // swap
+      }
+    }
+    chunkMaxDepth = Math.max(chunkMaxDepth, pops + 2);
+    base -= pops - held;
+  }
+
+  private void startChunk() {
+    code = new Code();
+    nextLocal = 3;
+    chunkMaxDepth = 0;
+  }
+
+  private void endChunk() {
+    if (!trapped) {
+      writeBack();
+      if (depth > base) {
+        int scratch = nextLocal++;
+        for (int i = depth - 1; i >= base; i--) {
+          localOp(0x36, scratch);              // istore
+          code.op(0x2b);                       // aload_1
+          pushInt(i);
+          localOp(0x15, scratch);              // iload
+          code.op(0x4f);                       // iastore
+        }
+        base = depth;
+      }
+      code.op(0xb1);                           // return
+    }
+    chunkMaxDepth += 4;
+    if (cls.poolSize() > POOL_LIMIT || cls.methodCount() >= METHOD_LIMIT) {
+      finishClass();
+      cls = new ClassBuilder();
+    }
+    cls.method("c" + cls.methodCount(), CHUNK_DESCRIPTOR,
+        chunkMaxDepth, nextLocal, code.bytes());
+    for (int slot : chunkSlots) {
+      localOf[slot] = 0;
+    }
+    chunkSlots.clear();
+    dirty.clear();
+  }
+
+  private void finishClass() {
+    if (cls.methodCount() > 0) {
+      classes.add(cls.bytes());
+      chunksPerClass.add(cls.methodCount());
+    }
+  }
+
+  /**
+   * Copy every variable this chunk assigned back into the frame array.
+   */
+  private void writeBack() {
+    for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+      code.op(0x2a);                           // aload_0
+      pushInt(slot);
+      localOp(0x15, localOf[slot]);            // iload
+      code.op(0x4f);                           // iastore
+    }
+    chunkMaxDepth = Math.max(chunkMaxDepth, depth - base + 3);
+  }
+
+  private int epilogueSize() {
+    return dirty.cardinality() * 10 + (depth - base) * 13 + 16;
+  }
+
+  private int allocateLocal(int slot) {
+    localOf[slot] = nextLocal++;
+    chunkSlots.add(slot);
+    return localOf[slot];
+  }
+
+  private void push(int n) {
+    depth += n;
+    chunkMaxDepth = Math.max(chunkMaxDepth, depth - base);
+  }
+
+  private void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      code.op(0x03 + value);                   // iconst_<n>
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      code.op(0x10);                           // bipush
+      code.op(value & 0xff);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      code.op(0x11);                           // sipush
+      code.u2(value & 0xffff);
+    } else {
+      code.op(0x13);                           // ldc_w
+      code.u2(cls.integer(value));
+    }
+  }
+
+  private void localOp(int opcode, int local) {
+    if (local < 256) {
+      code.op(opcode);
+      code.op(local);
+    } else {
+      code.op(0xc4);                           // wide
+      code.op(opcode);
+      code.u2(local);
+    }
+  }
+
+  private void invokestatic(String owner, String name, String descriptor) {
+    code.op(0xb8);
+    code.u2(cls.method(owner, name, descriptor));
+  }
+
+  /**
+   * The bytes of one method's code.
+   */
+  private static class Code {
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+
+    void op(int b) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, length * 2);
+      }
+      bytes[length++] = (byte) b;
+    }
+
+    void u2(int v) {
+      op(v >>> 8);
+      op(v);
+    }
+
+    int length() {
+      return length;
+    }
+
+    byte[] bytes() {
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+
+  /**
+   * A minimal class file writer: a constant pool and a list of
+   * public static methods, with no fields and no superclass code.
+   */
+  private static class ClassBuilder {
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+    private final int thisClass;
+    private final int superClass;
+    private final int codeName;
+
+    ClassBuilder() {
+      thisClass = classRef(CLASS_NAME);
+      superClass = classRef("java/lang/Object");
+      codeName = utf8("Code");
+    }
+
+    int poolSize() {
+      return poolCount;
+    }
+
+    int methodCount() {
+      return methodCount;
+    }
+
+    private int entry(String key, int tag, Object... parts) {
+      Integer index = entries.get(key);
+      if (index != null) {
+        return index;
+      }
+      try {
+        pool.writeByte(tag);
+        for (Object part : parts) {
+          if (tag == 1) {
+            pool.writeUTF((String) part);
+          } else if (tag == 3) {
+            pool.writeInt((Integer) part);
+          } else {
+            pool.writeShort((Integer) part);
+          }
+        }
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+      entries.put(key, poolCount);
+      return poolCount++;
+    }
+
+    int utf8(String s) {
+      return entry("U" + s, 1, s);
+    }
+
+    int integer(int value) {
+      return entry("I" + value, 3, value);
+    }
+
+    int string(String s) {
+      int text = utf8(s);
+      return entry("S" + s, 8, text);
+    }
+
+    int classRef(String name) {
+      int text = utf8(name);
+      return entry("C" + name, 7, text);
+    }
+
+    int method(String owner, String name, String descriptor) {
+      int owned = classRef(owner);
+      int n = utf8(name);
+      int d = utf8(descriptor);
+      int nameAndType = entry("N" + name + descriptor, 12, n, d);
+      return entry("M" + owner + "." + name + descriptor, 10, owned, nameAndType);
+    }
+
+    void method(String name, String descriptor, int maxStack, int maxLocals,
+                byte[] code) {
+      int n = utf8(name);
+      int d = utf8(descriptor);
+      try {
+        methods.writeShort(0x0009);            // public static
+        methods.writeShort(n);
+        methods.writeShort(d);
+        methods.writeShort(1);
+        methods.writeShort(codeName);
+        methods.writeInt(12 + code.length);
+        methods.writeShort(maxStack);
+        methods.writeShort(maxLocals);
+        methods.writeInt(code.length);
+        methods.write(code);
+        methods.writeShort(0);                 // exception table
+        methods.writeShort(0);                 // attributes
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+      methodCount++;
+    }
+
+    byte[] bytes() {
+      try {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(poolCount);
+        out.write(poolBytes.toByteArray());
+        out.writeShort(0x0031);                // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);                     // interfaces
+        out.writeShort(0);                     // fields
+        out.writeShort(methodCount);
+        out.write(methodBytes.toByteArray());
+        out.writeShort(0);                     // attributes
+        return result.toByteArray();
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+    }
+  }
+}
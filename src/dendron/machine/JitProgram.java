@@ -0,0 +1,173 @@
+package dendron.machine;
+
+import dendron.DendronException;
+import dendron.Errors;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A {@link Program} translated to JVM bytecode and loaded as hidden
+ * classes, so that it runs as native code once HotSpot compiles it.
+ * Running it prints exactly what {@link Machine#run(Program)} prints
+ * for the same program, and leaves the same variables behind.
+ * <p>
+ * Compiling costs far more than interpreting a program once; this pays
+ * off for programs that are run many times, or whose code is large.
+ *
+ * @see JitCompiler
+ */
+public class JitProgram {
+
+  private static final MethodType CHUNK_TYPE = MethodType.methodType(
+      void.class, int[].class, int[].class, PrintStream.class);
+
+  private final Program program;
+  private final MethodHandle[] chunks;
+  private final int spill;
+  private final int finalDepth;
+  private final BitSet stored;
+
+  private JitProgram(Program program, MethodHandle[] chunks, int spill,
+                     int finalDepth, BitSet stored) {
+    this.program = program;
+    this.chunks = chunks;
+    this.spill = spill;
+    this.finalDepth = finalDepth;
+    this.stored = stored;
+  }
+
+  /**
+   * Translate a program to bytecode and load it.
+   *
+   * @param program the compiled program
+   * @return the loaded program, ready to run
+   */
+  public static JitProgram compile(Program program) {
+    JitCompiler compiler = new JitCompiler(program);
+    compiler.compile();
+    List<byte[]> classes = compiler.getClasses();
+    int total = 0;
+    for (int count : compiler.getChunksPerClass()) {
+      total += count;
+    }
+    MethodHandle[] chunks = new MethodHandle[total];
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    int next = 0;
+    try {
+      for (int i = 0; i < classes.size(); i++) {
+        Class<?> code = lookup.defineHiddenClass(classes.get(i), true)
+            .lookupClass();
+        for (int c = 0; c < compiler.getChunksPerClass().get(i); c++) {
+          chunks[next++] = lookup.findStatic(code, "c" + c, CHUNK_TYPE);
+        }
+      }
+    } catch (IllegalAccessException | NoSuchMethodException e) {
+      throw new IllegalStateException("generated code did not load", e);
+    }
+    return new JitProgram(program, chunks, compiler.getMaxStack(),
+        compiler.getFinalDepth(), compiler.getStored());
+  }
+
+  /**
+   * Run the program, printing on standard output.
+   *
+   * @return the variables as they stood when the program ended
+   */
+  public Frame execute() {
+    return run(System.out);
+  }
+
+  /**
+   * Run the program and report the contents of its variables.
+   *
+   * @param out where PRINT instructions and the final report go
+   * @return the variables as they stood when the program ended
+   * @throws DendronException.Execution if an instruction fails, with
+   *         its index among the program's instructions and the
+   *         variables as they stood
+   */
+  public Frame run(PrintStream out) {
+    int[] values = new int[program.names.length];
+    int[] spilled = new int[spill];
+    out.println("Executing compiled code...");
+    try {
+      for (MethodHandle chunk : chunks) {
+        chunk.invokeExact(values, spilled, out);
+      }
+    } catch (DendronException e) {
+      throw e.withVariables(assignedBefore(e.getInstruction(), values)
+          .toMap(false));
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+    out.println("Machine: execution ended with " +
+        finalDepth + " items left on the stack.");
+    out.println();
+    Frame frame = new Frame(program.names, program.temporaries);
+    for (int slot = stored.nextSetBit(0); slot >= 0;
+         slot = stored.nextSetBit(slot + 1)) {
+      frame.store(slot, values[slot]);
+    }
+    Errors.dump(frame, out);
+    return frame;
+  }
+
+  /**
+   * Rebuild the variables as they stood when an instruction failed.
+   * The generated code writes its variables back to the frame array
+   * before every instruction that can fail, so the array holds the
+   * value of every variable assigned before it.
+   *
+   * @param index the failing instruction's index in the program
+   * @param values the frame array
+   * @return a frame holding the variables assigned before the instruction
+   */
+  private Frame assignedBefore(int index, int[] values) {
+    Frame frame = new Frame(program.names, program.temporaries);
+    List<Machine.Instruction> instructions = program.toInstructions();
+    for (int i = 0; i < index && i < instructions.size(); i++) {
+      Machine.Instruction instr = instructions.get(i);
+      List<Machine.Instruction> parts = instr instanceof Machine.Fused ?
+          ((Machine.Fused) instr).parts() : List.of(instr);
+      for (Machine.Instruction part : parts) {
+        if (part instanceof Machine.Store) {
+          int slot = ((Machine.Store) part).slot;
+          frame.store(slot, values[slot]);
+        }
+      }
+    }
+    return frame;
+  }
+
+  /*
+   * Helpers called from the generated code.
+   */
+
+  static void checkDivisor(int op1, int op2, int instruction) {
+    if (op2 == 0) {
+      throw Errors.error(Errors.Type.DIVIDE_BY_ZERO, op1 + " / " + op2)
+          .atInstruction(instruction);
+    }
+  }
+
+  static void print(int value, PrintStream out) {
+    OutputSink.println(out, "*** ", value);
+  }
+
+  static RuntimeException uninitialized(String name, int instruction) {
+    return Errors.error(Errors.Type.UNINITIALIZED, name)
+        .atInstruction(instruction);
+  }
+
+  static RuntimeException underflow(String instr, int instruction) {
+    return Errors.error(Errors.Type.STACK_UNDERFLOW, instr)
+        .atInstruction(instruction);
+  }
+}
@@ -1,23 +1,24 @@
 package dendron.machine;
 
+import dendron.DendronException;
 import dendron.Errors;
 
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 
 /**
  * An abstraction of a computing machine that reads instructions
- * and executes them. It has an instruction set, a symbol table
+ * and executes them. It has an instruction set, a frame of slots
  * for variables (instead of general-purpose memory), and a
  * value stack on which calculations are performed.
  * <p>
- * (Everything is static to avoid the need to master the subtleties
- * of nested class instantiation or to pass the symbol table and
- * stack into every instruction when it executes.)
- * <p>
- * THIS CLASS IS INCOMPLETE. The student must add code to it.
+ * Each Machine object is a separate execution context with its own
+ * frame, stack and output stream; the Machine being run is passed to
+ * every instruction when it executes. Instructions hold no run-time
+ * state, so one program may be run by many Machines on many threads
+ * at once.
  *
  * @author James Heliotis
  * @author YOUR NAME HERE
@@ -25,17 +26,36 @@ import java.util.Stack;
 public class Machine {
 
   /**
-   * Do not instatiate this class.
+   * Create a Machine that prints on standard output.
+   */
+  public Machine() {
+    this(System.out);
+  }
+
+  /**
+   * Create a Machine that prints on the given stream.
+   *
+   * @param out where PRINT instructions and the final report go
    */
-  private Machine() {
+  public Machine(PrintStream out) {
+    this.out = out;
   }
 
   public static interface Instruction {
     /**
      * Run this instruction on the Machine, using the Machine's
-     * value stack and symbol table.
+     * value stack and variable frame.
+     *
+     * @param machine the execution context running the program
+     */
+    void execute(Machine machine);
+
+    /**
+     * Append this instruction to a compact Program being built.
+     *
+     * @param code the Program under construction
      */
-    void execute();
+    void encode(Program.Builder code);
 
     /**
      * Show the instruction using text so it can be understood
@@ -47,17 +67,104 @@ public class Machine {
     String toString();
   }
 
-  private static Map<String, Integer> table = null;
-  private static Stack<Integer> stack = null;
+  private final PrintStream out;
+
+  private Frame table = null;
+
+  /**
+   * The value stack. Slots 0 through sp-1 are in use; stack[sp-1]
+   * is the top.
+   */
+  private int[] stack = null;
+  private int sp = 0;
+
+  /**
+   * Reset the Machine to a pristine state, with a frame big enough
+   * for every variable slot the program mentions.
+   *
+   * @param program the program about to be run
+   * @see Machine#run
+   */
+  private void reset(List<Instruction> program) {
+    stack = new int[16];
+    sp = 0;
+    table = new Frame(slotNames(program), temporarySlots(program));
+  }
+
+  /**
+   * Put a value on top of the stack, growing it if it is full.
+   *
+   * @param value the value to push
+   */
+  private void push(int value) {
+    if (sp == stack.length) {
+      stack = Arrays.copyOf(stack, sp * 2);
+    }
+    stack[sp++] = value;
+  }
+
+  /**
+   * Make sure the stack holds enough operands for an instruction.
+   *
+   * @param needed how many values the instruction pops
+   * @param instr the instruction, for the error report
+   */
+  private void require(int needed, Instruction instr) {
+    if (sp < needed) {
+      Errors.report(Errors.Type.STACK_UNDERFLOW, instr);
+    }
+  }
+
+  /**
+   * Recover the slot-to-name table of a program from its LOAD
+   * and STORE instructions.
+   *
+   * @param program a list of Machine instructions
+   * @return the variable names, indexed by slot
+   */
+  static String[] slotNames(List<Instruction> program) {
+    for (Instruction instr : program) {
+      if (instr instanceof Fused) {
+        return slotNames(Superinstructions.unfuse(program));
+      }
+    }
+    int size = 0;
+    for (Instruction instr : program) {
+      if (instr instanceof Load) {
+        size = Math.max(size, ((Load) instr).slot + 1);
+      } else if (instr instanceof Store) {
+        size = Math.max(size, ((Store) instr).slot + 1);
+      }
+    }
+    String[] names = new String[size];
+    for (Instruction instr : program) {
+      if (instr instanceof Load) {
+        names[((Load) instr).slot] = ((Load) instr).v;
+      } else if (instr instanceof Store) {
+        names[((Store) instr).slot] = ((Store) instr).name;
+      }
+    }
+    return names;
+  }
 
   /**
-   * Reset the Machine to a pristine state.
+   * Find the slots a program's STORE instructions mark as compiler
+   * temporaries.
    *
-   * @see Machine#execute
+   * @param program a list of Machine instructions
+   * @return the temporaries' slots
+   * @see Store#Store(String, int, boolean)
    */
-  private static void reset() {
-    stack = new Stack<>();
-    table = new HashMap<>();
+  static BitSet temporarySlots(List<Instruction> program) {
+    BitSet slots = new BitSet();
+    for (Instruction instr : program) {
+      if (instr instanceof Store && ((Store) instr).temporary) {
+        slots.set(((Store) instr).slot);
+      } else if (instr instanceof PushStore && ((PushStore) instr).temporary) {
+        slots.set(((PushStore) instr).slot);
+      }
+    }
+    return slots;
   }
 
   /**
@@ -69,31 +176,258 @@ public class Machine {
    */
   public static void displayInstructions(
       List<Machine.Instruction> program) {
+    displayInstructions(program, false);
+  }
+
+  /**
+   * Generate a listing of a program on standard output, optionally
+   * showing after each superinstruction the instructions it stands for.
+   *
+   * @param program the list of instructions in the program
+   * @param unfused if true, list the parts of each superinstruction,
+   *                indented, after it
+   * @see Fused
+   */
+  public static void displayInstructions(
+      List<Machine.Instruction> program, boolean unfused) {
     System.out.println("\nCompiled code:");
     for (Machine.Instruction instr : program) {
       System.out.println(instr);
+      if (unfused && instr instanceof Fused) {
+        for (Instruction part : ((Fused) instr).parts()) {
+          System.out.println("    | " + part);
+        }
+      }
     }
     System.out.println();
   }
 
+  /**
+   * Generate a listing of a compact program on standard output.
+   * The listing is the same as for the instruction list it was
+   * built from.
+   *
+   * @param program the compiled program
+   */
+  public static void displayInstructions(Program program) {
+    displayInstructions(program.toInstructions());
+  }
+
+  /**
+   * Generate a listing of a compact program on standard output,
+   * optionally showing the parts of each superinstruction.
+   *
+   * @param program the compiled program
+   * @param unfused if true, list the parts of each superinstruction,
+   *                indented, after it
+   */
+  public static void displayInstructions(Program program, boolean unfused) {
+    displayInstructions(program.toInstructions(), unfused);
+  }
+
+  /**
+   * Run a compact program on a fresh Machine that prints on
+   * standard output.
+   *
+   * @param program the compiled program
+   * @see Machine#run(Program)
+   */
+  public static void execute(Program program) {
+    new Machine().run(program);
+  }
+
+  /**
+   * Run a "compiled" program on a fresh Machine that prints on
+   * standard output.
+   *
+   * @param program a list of Machine instructions
+   * @see Machine#run
+   */
+  public static void execute(List<Instruction> program) {
+    new Machine().run(program);
+  }
+
   /**
    * Run a "compiled" program by executing in order each instruction
-   * contained therein.
+   * contained therein. The Machine is reset first, so it may be
+   * reused for any number of programs, one at a time.
    * Report on the final size of the stack (should normally be empty)
-   * and the contents of the symbol table.
+   * and the contents of the variable frame.
    *
    * @param program a list of Machine instructions
+   * @throws DendronException.Execution if an instruction fails, with
+   *         its index and the variables as they stood
    */
-  public static void execute(List<Instruction> program) {
-    reset();
-    System.out.println("Executing compiled code...");
-    for (Instruction instr : program) {
-      instr.execute();
+  public void run(List<Instruction> program) {
+    reset(program);
+    out.println("Executing compiled code...");
+    int index = 0;
+    try {
+      for (Instruction instr : program) {
+        instr.execute(this);
+        index++;
+      }
+    } catch (DendronException e) {
+      throw e.atInstruction(index).withVariables(table.toMap(false));
     }
-    System.out.println("Machine: execution ended with " +
-        stack.size() + " items left on the stack.");
-    System.out.println();
-    Errors.dump(table);
+    out.println("Machine: execution ended with " +
+        sp + " items left on the stack.");
+    out.println();
+    Errors.dump(table, out);
+  }
+
+  /**
+   * Run a compact program with a single dispatch loop. The effect and
+   * the output are the same as running the instruction list the program
+   * was built from.
+   *
+   * @param program the compiled program
+   * @throws DendronException.Execution if an instruction fails, with
+   *         its index among the program's instructions and the
+   *         variables as they stood
+   */
+  public void run(Program program) {
+    int[] code = program.code;
+    int[] constants = program.constants;
+    int[] stack = new int[program.maxStack];
+    Frame frame = new Frame(program.names, program.temporaries);
+    this.table = frame;
+    this.stack = stack;
+    this.sp = 0;
+    int sp = 0;
+    int pc = 0;
+    int end = code.length;
+    out.println("Executing compiled code...");
+    try {
+      while (pc < end) {
+        switch (code[pc++]) {
+          case Program.PUSH:
+            stack[sp++] = constants[code[pc++]];
+            break;
+          case Program.LOAD:
+            stack[sp++] = frame.load(code[pc++]);
+            break;
+          case Program.STORE:
+            frame.store(code[pc++], stack[--sp]);
+            break;
+          case Program.ADD:
+            sp--;
+            stack[sp - 1] += stack[sp];
+            break;
+          case Program.SUB:
+            sp--;
+            stack[sp - 1] -= stack[sp];
+            break;
+          case Program.MUL:
+            sp--;
+            stack[sp - 1] *= stack[sp];
+            break;
+          case Program.DIV: {
+            int op2 = stack[--sp];
+            int op1 = stack[sp - 1];
+            if (op2 == 0) {
+              Errors.report(Errors.Type.DIVIDE_BY_ZERO, (op1 + " / " + op2));
+            }
+            stack[sp - 1] = op1 / op2;
+            break;
+          }
+          case Program.NEG:
+            stack[sp - 1] = -stack[sp - 1];
+            break;
+          case Program.SQRT:
+            stack[sp - 1] = (int) Math.sqrt(stack[sp - 1]);
+            break;
+          case Program.PRINT:
+            OutputSink.println(out, "*** ", stack[--sp]);
+            break;
+          case Program.DUP:
+            stack[sp] = stack[sp - 1];
+            sp++;
+            break;
+          case Program.ADD_CONST:
+            stack[sp - 1] += constants[code[pc++]];
+            break;
+          case Program.SUB_CONST:
+            stack[sp - 1] -= constants[code[pc++]];
+            break;
+          case Program.MUL_CONST:
+            stack[sp - 1] *= constants[code[pc++]];
+            break;
+          case Program.DIV_CONST:
+            stack[sp - 1] = operate(Program.DIV, stack[sp - 1],
+                constants[code[pc++]]);
+            break;
+          case Program.ADD_LOAD:
+            stack[sp - 1] += frame.load(code[pc++]);
+            break;
+          case Program.SUB_LOAD:
+            stack[sp - 1] -= frame.load(code[pc++]);
+            break;
+          case Program.MUL_LOAD:
+            stack[sp - 1] *= frame.load(code[pc++]);
+            break;
+          case Program.DIV_LOAD: {
+            int op2 = frame.load(code[pc++]);
+            stack[sp - 1] = operate(Program.DIV, stack[sp - 1], op2);
+            break;
+          }
+          case Program.LOAD_LOAD_ADD: {
+            int op1 = frame.load(code[pc++]);
+            stack[sp++] = op1 + frame.load(code[pc++]);
+            break;
+          }
+          case Program.LOAD_LOAD_SUB: {
+            int op1 = frame.load(code[pc++]);
+            stack[sp++] = op1 - frame.load(code[pc++]);
+            break;
+          }
+          case Program.LOAD_LOAD_MUL: {
+            int op1 = frame.load(code[pc++]);
+            stack[sp++] = op1 * frame.load(code[pc++]);
+            break;
+          }
+          case Program.PUSH_STORE:
+            frame.store(code[pc], constants[code[pc + 1]]);
+            pc += 2;
+            break;
+          case Program.LOAD_PRINT:
+            OutputSink.println(out, "*** ", frame.load(code[pc++]));
+            break;
+          case Program.INC: {
+            int slot = code[pc];
+            frame.store(slot, frame.load(slot) + constants[code[pc + 1]]);
+            pc += 2;
+            break;
+          }
+          case Program.UNDERFLOW:
+            Errors.report(Errors.Type.STACK_UNDERFLOW,
+                program.underflowing(pc - 1));
+            break;
+        }
+      }
+    } catch (DendronException e) {
+      throw e.atInstruction(program.instructionIndex(pc))
+          .withVariables(frame.toMap(false));
+    }
+    this.sp = sp;
+    out.println("Machine: execution ended with " +
+        sp + " items left on the stack.");
+    out.println();
+    Errors.dump(frame, out);
+  }
+
+  /**
+   * @return the variables as they stood when the last run ended
+   */
+  public Frame getFrame() {
+    return table;
+  }
+
+  /**
+   * @return the number of values left on the stack by the last run
+   */
+  public int stackSize() {
+    return sp;
   }
 
   /**
@@ -104,10 +438,15 @@ public class Machine {
      * Run the microsteps for the ADD instruction.
      */
     @Override
-    public void execute() {
-      int op2 = stack.pop();
-      int op1 = stack.pop();
-      stack.push(op1 + op2);
+    public void execute(Machine m) {
+      m.require(2, this);
+      int op2 = m.stack[--m.sp];
+      m.stack[m.sp - 1] += op2;
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.ADD);
     }
 
     /**
@@ -128,23 +467,56 @@ public class Machine {
     /**
      * stores name of target variable
      */
-    private String name;
+    String name;
+    /**
+     * frame slot of target variable
+     */
+    int slot;
+    /**
+     * whether the target is a compiler temporary
+     */
+    boolean temporary;
 
     /**
      * Create a STORE instruction
      *
      * @param ident the name of the target variable
+     * @param slot the frame slot resolved for the name
+     */
+    public Store(String ident, int slot) {
+      this(ident, slot, false);
+    }
+
+    /**
+     * Create a STORE instruction, marking whether its target is a
+     * compiler temporary, to be left out of the variables a run shows.
+     *
+     * @param ident the name of the target variable
+     * @param slot the frame slot resolved for the name
+     * @param temporary true if the variable is a compiler temporary
+     * @see Symbols#newTemporary()
      */
-    public Store(String ident) {
+    public Store(String ident, int slot, boolean temporary) {
       this.name = ident;
+      this.slot = slot;
+      this.temporary = temporary;
     }
 
     /**
      * Run the microsteps for the STORE instruction.
      */
     @Override
-    public void execute() {
-      table.put(this.name, stack.pop());
+    public void execute(Machine m) {
+      m.require(1, this);
+      m.table.store(this.slot, m.stack[--m.sp]);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariable(Program.STORE, name, slot);
+      if (temporary) {
+        code.temporary(slot);
+      }
     }
 
     /**
@@ -175,8 +547,13 @@ public class Machine {
      * Pushes c to the stack
      */
     @Override
-    public void execute() {
-      stack.push(c);
+    public void execute(Machine m) {
+      m.push(c);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitPush(c);
     }
 
     /**
@@ -192,21 +569,29 @@ public class Machine {
 
   public static class Load implements Instruction {
     String v;
+    int slot;
     /**
-     * Create a PUSH instruction
+     * Create a LOAD instruction
      *
-     * @param v the key to load from the table
+     * @param v the name of the variable to load
+     * @param slot the frame slot resolved for the name
      */
-    public Load(String v) {
+    public Load(String v, int slot) {
       this.v = v;
+      this.slot = slot;
     }
 
     /**
      * Pushes the value of v to the stack
      */
     @Override
-    public void execute() {
-      stack.push(table.get(v));
+    public void execute(Machine m) {
+      m.push(m.table.load(slot));
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariable(Program.LOAD, v, slot);
     }
 
     /**
@@ -225,10 +610,15 @@ public class Machine {
      * Run the microsteps for the SUBTRACT instruction.
      */
     @Override
-    public void execute() {
-      int op2 = stack.pop();
-      int op1 = stack.pop();
-      stack.push(op1 - op2);
+    public void execute(Machine m) {
+      m.require(2, this);
+      int op2 = m.stack[--m.sp];
+      m.stack[m.sp - 1] -= op2;
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.SUB);
     }
 
     /**
@@ -246,10 +636,15 @@ public class Machine {
   public static class Multiply implements Instruction {
 
     @Override
-    public void execute() {
-      int op2 = stack.pop();
-      int op1 = stack.pop();
-      stack.push(op1 * op2);
+    public void execute(Machine m) {
+      m.require(2, this);
+      int op2 = m.stack[--m.sp];
+      m.stack[m.sp - 1] *= op2;
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.MUL);
     }
 
     /**
@@ -268,14 +663,20 @@ public class Machine {
      * Run the microsteps for the DIVIDE instruction.
      */
     @Override
-    public void execute() {
-      int op2 = stack.pop();
-      int op1 = stack.pop();
+    public void execute(Machine m) {
+      m.require(2, this);
+      int op2 = m.stack[--m.sp];
+      int op1 = m.stack[m.sp - 1];
       if(op2 == 0) {
         Errors.report(Errors.Type.DIVIDE_BY_ZERO, (op1 + " / " + op2));
       }
 
-      stack.push(op1 / op2);
+      m.stack[m.sp - 1] = op1 / op2;
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.DIV);
     }
 
     /**
@@ -294,9 +695,14 @@ public class Machine {
      * Run the microsteps for the Negate instruction.
      */
     @Override
-    public void execute() {
-      int op1 = stack.pop();
-      stack.push(-op1);
+    public void execute(Machine m) {
+      m.require(1, this);
+      m.stack[m.sp - 1] = -m.stack[m.sp - 1];
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.NEG);
     }
 
     /**
@@ -316,9 +722,14 @@ public class Machine {
      * Run the microsteps for the SQRT instruction.
      */
     @Override
-    public void execute() {
-      int op1 = stack.pop();
-      stack.push((int) Math.sqrt(op1));
+    public void execute(Machine m) {
+      m.require(1, this);
+      m.stack[m.sp - 1] = (int) Math.sqrt(m.stack[m.sp - 1]);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.SQRT);
     }
 
     /**
@@ -339,10 +750,16 @@ public class Machine {
      * Prints out the top of the stack
      */
     @Override
-    public void execute() {
-      int op1 = stack.pop();
+    public void execute(Machine m) {
+      m.require(1, this);
+      int op1 = m.stack[--m.sp];
+
+      OutputSink.println(m.out, "*** ", op1);
+    }
 
-      System.out.println("*** " + op1);
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.PRINT);
     }
 
     @Override
@@ -350,4 +767,366 @@ public class Machine {
       return "PRINT";
     }
   }
+
+  /**
+   * The DUP instruction, which pushes a second copy of the top value
+   */
+  public static class Dup implements Instruction {
+    /**
+     * Run the microsteps for the DUP instruction.
+     */
+    @Override
+    public void execute(Machine m) {
+      m.require(1, this);
+      m.push(m.stack[m.sp - 1]);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emit(Program.DUP);
+    }
+
+    /**
+     *  Show the DUP instruction as plain text.
+     *
+     * @return "DUP"
+     */
+    @Override
+    public String toString() {
+      return "DUP";
+    }
+  }
+
+  /*
+   * Superinstructions. Each one does the work of a short sequence of
+   * the instructions above with a single dispatch. They are produced
+   * by the Superinstructions pass, which uses them only where the
+   * stack is known to hold enough values, so they report errors just
+   * as the sequences they replace would.
+   */
+
+  /**
+   * An instruction that stands for a sequence of simpler ones
+   *
+   * @see Superinstructions
+   */
+  public static interface Fused extends Instruction {
+    /**
+     * @return the instructions this one does the work of, in order
+     */
+    List<Instruction> parts();
+  }
+
+  /**
+   * @param opcode Program.ADD, SUB, MUL or DIV
+   * @return a new instruction object for the operation
+   */
+  static Instruction operation(int opcode) {
+    switch (opcode) {
+      case Program.ADD:
+        return new Add();
+      case Program.SUB:
+        return new Subtract();
+      case Program.MUL:
+        return new Multiply();
+      default:
+        return new Divide();
+    }
+  }
+
+  /**
+   * Apply a binary operation, reporting division by zero.
+   *
+   * @param opcode Program.ADD, SUB, MUL or DIV
+   * @param op1 the left operand
+   * @param op2 the right operand
+   * @return the result
+   */
+  static int operate(int opcode, int op1, int op2) {
+    switch (opcode) {
+      case Program.ADD:
+        return op1 + op2;
+      case Program.SUB:
+        return op1 - op2;
+      case Program.MUL:
+        return op1 * op2;
+      default:
+        if (op2 == 0) {
+          Errors.report(Errors.Type.DIVIDE_BY_ZERO, (op1 + " / " + op2));
+        }
+        return op1 / op2;
+    }
+  }
+
+  private static String mnemonic(int opcode) {
+    return operation(opcode).toString().substring(0, 3);
+  }
+
+  /**
+   * ADD_CONST, SUB_CONST, MUL_CONST and DIV_CONST: PUSH c followed
+   * by the operation
+   */
+  public static class OperateConst implements Fused {
+    int opcode;
+    int c;
+
+    /**
+     * @param opcode Program.ADD, SUB, MUL or DIV
+     * @param c the right operand
+     */
+    public OperateConst(int opcode, int c) {
+      this.opcode = opcode;
+      this.c = c;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      m.require(1, operation(opcode));
+      m.stack[m.sp - 1] = operate(opcode, m.stack[m.sp - 1], c);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitWithConstant(opcode - Program.ADD + Program.ADD_CONST, c);
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new PushConst(c), operation(opcode));
+    }
+
+    @Override
+    public String toString() {
+      return mnemonic(opcode) + "_CONST\t" + c;
+    }
+  }
+
+  /**
+   * ADD_LOAD, SUB_LOAD, MUL_LOAD and DIV_LOAD: LOAD v followed
+   * by the operation
+   */
+  public static class OperateLoad implements Fused {
+    int opcode;
+    String v;
+    int slot;
+
+    /**
+     * @param opcode Program.ADD, SUB, MUL or DIV
+     * @param v the name of the variable holding the right operand
+     * @param slot the frame slot resolved for the name
+     */
+    public OperateLoad(int opcode, String v, int slot) {
+      this.opcode = opcode;
+      this.v = v;
+      this.slot = slot;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      int op2 = m.table.load(slot);
+      m.require(1, operation(opcode));
+      m.stack[m.sp - 1] = operate(opcode, m.stack[m.sp - 1], op2);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariable(opcode - Program.ADD + Program.ADD_LOAD, v, slot);
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new Load(v, slot), operation(opcode));
+    }
+
+    @Override
+    public String toString() {
+      return mnemonic(opcode) + "_LOAD\t" + v;
+    }
+  }
+
+  /**
+   * LOAD_LOAD_ADD, LOAD_LOAD_SUB and LOAD_LOAD_MUL: LOAD v1, LOAD v2
+   * and the operation
+   */
+  public static class LoadLoadOperate implements Fused {
+    int opcode;
+    String v1;
+    int slot1;
+    String v2;
+    int slot2;
+
+    /**
+     * @param opcode Program.ADD, SUB or MUL
+     * @param v1 the name of the variable holding the left operand
+     * @param slot1 the frame slot resolved for v1
+     * @param v2 the name of the variable holding the right operand
+     * @param slot2 the frame slot resolved for v2
+     */
+    public LoadLoadOperate(int opcode, String v1, int slot1,
+                           String v2, int slot2) {
+      this.opcode = opcode;
+      this.v1 = v1;
+      this.slot1 = slot1;
+      this.v2 = v2;
+      this.slot2 = slot2;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      int op1 = m.table.load(slot1);
+      int op2 = m.table.load(slot2);
+      m.push(operate(opcode, op1, op2));
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariables(opcode - Program.ADD + Program.LOAD_LOAD_ADD,
+          v1, slot1, v2, slot2);
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new Load(v1, slot1), new Load(v2, slot2),
+          operation(opcode));
+    }
+
+    @Override
+    public String toString() {
+      return "LOAD_LOAD_" + mnemonic(opcode) + "\t" + v1 + " " + v2;
+    }
+  }
+
+  /**
+   * PUSH_STORE: PUSH c followed by STORE name
+   */
+  public static class PushStore implements Fused {
+    int c;
+    String name;
+    int slot;
+    boolean temporary;
+
+    /**
+     * @param c the value to store
+     * @param name the name of the target variable
+     * @param slot the frame slot resolved for the name
+     */
+    public PushStore(int c, String name, int slot) {
+      this(c, name, slot, false);
+    }
+
+    /**
+     * @param c the value to store
+     * @param name the name of the target variable
+     * @param slot the frame slot resolved for the name
+     * @param temporary true if the variable is a compiler temporary
+     */
+    public PushStore(int c, String name, int slot, boolean temporary) {
+      this.c = c;
+      this.name = name;
+      this.slot = slot;
+      this.temporary = temporary;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      m.table.store(slot, c);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariableWithConstant(Program.PUSH_STORE, name, slot, c);
+      if (temporary) {
+        code.temporary(slot);
+      }
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new PushConst(c), new Store(name, slot, temporary));
+    }
+
+    @Override
+    public String toString() {
+      return "PUSH_STORE\t" + c + " " + name;
+    }
+  }
+
+  /**
+   * LOAD_PRINT: LOAD v followed by PRINT
+   */
+  public static class LoadPrint implements Fused {
+    String v;
+    int slot;
+
+    /**
+     * @param v the name of the variable to print
+     * @param slot the frame slot resolved for the name
+     */
+    public LoadPrint(String v, int slot) {
+      this.v = v;
+      this.slot = slot;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      OutputSink.println(m.out, "*** ", m.table.load(slot));
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariable(Program.LOAD_PRINT, v, slot);
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new Load(v, slot), new Print());
+    }
+
+    @Override
+    public String toString() {
+      return "LOAD_PRINT\t" + v;
+    }
+  }
+
+  /**
+   * INC: LOAD name, PUSH c, ADD and STORE name, adding a constant
+   * to a variable in place
+   */
+  public static class Increment implements Fused {
+    String name;
+    int slot;
+    int c;
+
+    /**
+     * @param name the name of the variable
+     * @param slot the frame slot resolved for the name
+     * @param c the value to add
+     */
+    public Increment(String name, int slot, int c) {
+      this.name = name;
+      this.slot = slot;
+      this.c = c;
+    }
+
+    @Override
+    public void execute(Machine m) {
+      m.table.store(slot, m.table.load(slot) + c);
+    }
+
+    @Override
+    public void encode(Program.Builder code) {
+      code.emitVariableWithConstant(Program.INC, name, slot, c);
+    }
+
+    @Override
+    public List<Instruction> parts() {
+      return Arrays.asList(new Load(name, slot), new PushConst(c), new Add(),
+          new Store(name, slot));
+    }
+
+    @Override
+    public String toString() {
+      return "INC\t" + name + " " + c;
+    }
+  }
 }
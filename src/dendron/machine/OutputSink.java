@@ -0,0 +1,431 @@
+package dendron.machine;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A PrintStream that collects everything in one large byte buffer and
+ * passes it on only when the buffer fills or is flushed, so printing
+ * costs a copy rather than a system call. What happens to a full
+ * buffer depends on the kind of sink:
+ * <ul>
+ *   <li>{@link #buffered} writes it to a stream on the printing
+ *       thread;</li>
+ *   <li>{@link #async} hands it to a background thread, which writes
+ *       it while printing carries on into a second buffer;</li>
+ *   <li>{@link #discard} only counts it, for benchmarks.</li>
+ * </ul>
+ * The interpreters and machines print values through
+ * {@link #println(PrintStream, String, int)}, which for a sink formats
+ * the int straight into the buffer without building any Strings.
+ * <p>
+ * Since nothing reaches the destination until a flush, the owner must
+ * flush or close a sink when it is done. {@link #install()} takes care
+ * of that for System.out.
+ */
+public class OutputSink extends PrintStream {
+
+  /** the buffer size used when none is given */
+  public static final int DEFAULT_SIZE = 1 << 16;
+
+  private static final byte[] NEWLINE =
+      System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MIN_VALUE =
+      Integer.toString(Integer.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Where a full buffer goes.
+   */
+  private interface Drain {
+    /**
+     * Take the contents of a buffer.
+     *
+     * @param data the buffer
+     * @param length how many bytes of it are in use
+     * @return the buffer to fill next; it may be the same one
+     */
+    byte[] drain(byte[] data, int length) throws IOException;
+
+    /** Wait until everything drained so far has reached its destination. */
+    void flush() throws IOException;
+
+    void close() throws IOException;
+  }
+
+  /**
+   * The bytes printed so far and not yet drained. PrintStream writes
+   * through this, and so does the fast path for ints, so the two stay
+   * in order.
+   */
+  private static class Buffer extends OutputStream {
+    private final Drain drain;
+    private byte[] data;
+    private int count;
+    private long bytes;
+    private long lines;
+
+    Buffer(Drain drain, int size) {
+      this.drain = drain;
+      this.data = new byte[size];
+    }
+
+    private void empty() throws IOException {
+      if (count > 0) {
+        for (int i = 0; i < count; i++) {
+          if (data[i] == '\n') {
+            lines++;
+          }
+        }
+        bytes += count;
+        data = drain.drain(data, count);
+        count = 0;
+      }
+    }
+
+    /** make room for n more bytes, n being at most the buffer size */
+    private void reserve(int n) throws IOException {
+      if (count + n > data.length) {
+        empty();
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      reserve(1);
+      data[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == data.length) {
+          empty();
+        }
+        int n = Math.min(len, data.length - count);
+        System.arraycopy(b, off, data, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    /**
+     * Append a prefix of ASCII characters, a value in decimal and a
+     * line separator.
+     */
+    void writeLine(String prefix, int value) throws IOException {
+      int length = prefix.length();
+      reserve(length + MIN_VALUE.length + NEWLINE.length);
+      for (int i = 0; i < length; i++) {
+        data[count++] = (byte) prefix.charAt(i);
+      }
+      if (value == Integer.MIN_VALUE) {
+        System.arraycopy(MIN_VALUE, 0, data, count, MIN_VALUE.length);
+        count += MIN_VALUE.length;
+      } else {
+        if (value < 0) {
+          data[count++] = '-';
+          value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+          digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+          data[i] = (byte) ('0' + value % 10);
+          value /= 10;
+        }
+        count += digits;
+      }
+      for (byte b : NEWLINE) {
+        data[count++] = b;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      empty();
+      drain.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      drain.close();
+    }
+  }
+
+  private final Buffer buffer;
+
+  private OutputSink(Drain drain, int size) {
+    this(new Buffer(drain, size));
+  }
+
+  private OutputSink(Buffer buffer) {
+    super(buffer, false, StandardCharsets.UTF_8);
+    this.buffer = buffer;
+  }
+
+  /**
+   * Make a sink that writes to a stream on the printing thread.
+   *
+   * @param target where the output goes
+   * @param size the buffer size in bytes, at least 64
+   * @return the sink
+   */
+  public static OutputSink buffered(OutputStream target, int size) {
+    return new OutputSink(new Drain() {
+      @Override
+      public byte[] drain(byte[] data, int length) throws IOException {
+        target.write(data, 0, length);
+        return data;
+      }
+
+      @Override
+      public void flush() throws IOException {
+        target.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        target.close();
+      }
+    }, Math.max(size, 64));
+  }
+
+  /**
+   * Make a sink that writes to a stream on a background thread.
+   * Printing blocks only if the thread falls a whole buffer behind.
+   * Flushing waits until the thread has written everything.
+   *
+   * @param target where the output goes
+   * @param size the size of each of the two buffers, at least 64
+   * @return the sink
+   */
+  public static OutputSink async(OutputStream target, int size) {
+    return new OutputSink(new AsyncDrain(target, Math.max(size, 64)),
+        Math.max(size, 64));
+  }
+
+  /**
+   * Make a sink that throws its output away, counting it.
+   *
+   * @return the sink
+   * @see #getBytes()
+   * @see #getLines()
+   */
+  public static OutputSink discard() {
+    return new OutputSink(new Drain() {
+      @Override
+      public byte[] drain(byte[] data, int length) {
+        return data;
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    }, DEFAULT_SIZE);
+  }
+
+  /**
+   * Replace System.out with the sink named by the dendron.output system
+   * property: "buffered", "async" or "discard". Anything else leaves
+   * System.out alone. The sink is flushed when the JVM exits, including
+   * through System.exit, and dendron.output.size sets its buffer size.
+   * If System.out is a sink already, nothing changes.
+   */
+  public static void install() {
+    if (System.out instanceof OutputSink) {
+      return;
+    }
+    String kind = System.getProperty("dendron.output", "");
+    int size = Integer.getInteger("dendron.output.size", DEFAULT_SIZE);
+    OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+    OutputSink sink;
+    switch (kind) {
+      case "buffered":
+        sink = buffered(stdout, size);
+        break;
+      case "async":
+        sink = async(stdout, size);
+        break;
+      case "discard":
+        sink = discard();
+        break;
+      default:
+        return;
+    }
+    System.out.flush();
+    System.setOut(sink);
+    Runtime.getRuntime().addShutdownHook(new Thread(sink::flush));
+  }
+
+  /**
+   * Print a value on a line of its own after a prefix, as
+   * out.println(prefix + value) would, but without building Strings
+   * when out is a sink.
+   *
+   * @param out where to print
+   * @param prefix ASCII text to put before the value
+   * @param value the value
+   */
+  public static void println(PrintStream out, String prefix, int value) {
+    if (out instanceof OutputSink) {
+      ((OutputSink) out).printValue(prefix, value);
+    } else {
+      out.println(prefix + value);
+    }
+  }
+
+  /**
+   * Print a value on a line of its own after a prefix.
+   *
+   * @param prefix ASCII text to put before the value
+   * @param value the value
+   */
+  public synchronized void printValue(String prefix, int value) {
+    try {
+      buffer.writeLine(prefix, value);
+    } catch (IOException e) {
+      setError();
+    }
+  }
+
+  /**
+   * @return how many bytes have been passed on so far; a flush brings
+   *         this up to date
+   */
+  public synchronized long getBytes() {
+    return buffer.bytes;
+  }
+
+  /**
+   * @return how many lines have been passed on so far; a flush brings
+   *         this up to date
+   */
+  public synchronized long getLines() {
+    return buffer.lines;
+  }
+
+  /**
+   * Hands full buffers to a writer thread, and takes back empty ones.
+   * There are two buffers, so the printing thread fills one while the
+   * writer writes the other.
+   */
+  private static class AsyncDrain implements Drain {
+
+    /** a buffer on its way to the writer */
+    private static class Chunk {
+      final byte[] data;
+      /** how many bytes to write, or FLUSH or STOP */
+      final int length;
+
+      Chunk(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+      }
+    }
+
+    private static final int FLUSH = -1;
+    private static final int STOP = -2;
+
+    private final OutputStream target;
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(2);
+    private final Thread writer;
+    private volatile IOException failure;
+
+    AsyncDrain(OutputStream target, int size) {
+      this.target = target;
+      free.add(new byte[size]);
+      writer = new Thread(this::write, "dendron-output");
+      writer.setDaemon(true);
+      writer.start();
+    }
+
+    private void write() {
+      try {
+        while (true) {
+          Chunk chunk = full.take();
+          if (chunk.length == STOP) {
+            return;
+          }
+          try {
+            if (chunk.length == FLUSH) {
+              target.flush();
+            } else {
+              target.write(chunk.data, 0, chunk.length);
+            }
+          } catch (IOException e) {
+            failure = e;
+          }
+          free.put(chunk.data);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void send(byte[] data, int length) throws IOException {
+      try {
+        full.put(new Chunk(data, length));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+
+    private byte[] take() throws IOException {
+      try {
+        return free.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+
+    @Override
+    public byte[] drain(byte[] data, int length) throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+      send(data, length);
+      return take();
+    }
+
+    /**
+     * Waits for the spare buffer, which means the writer has written
+     * it, then sends it back as a flush request and waits for that.
+     */
+    @Override
+    public void flush() throws IOException {
+      send(take(), FLUSH);
+      free.add(take());
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+      send(null, STOP);
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      target.close();
+    }
+  }
+}
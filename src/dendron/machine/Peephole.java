@@ -0,0 +1,310 @@
+package dendron.machine;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A peephole optimizer for Machine instruction lists. It slides a
+ * small window over the code and replaces short instruction sequences
+ * with cheaper ones that have the same effect, following a table of
+ * rewrite rules. Rewrites can expose further rewrites, so the output
+ * is reduced as far as the enabled rules allow.
+ * <p>
+ * This is a stand-alone stage: its input may come from
+ * {@link dendron.tree.ParseTree#compile()} or from
+ * {@link InstructionReader#assemble(String)}, and its output can be
+ * run by {@link Machine#execute(List)} or turned into a
+ * {@link Program}. A program that would underflow the stack is only
+ * optimized up to the first instruction that could underflow, so
+ * errors are still reported by the same instruction.
+ */
+public class Peephole {
+
+  /**
+   * The rewrite rules. Each one matches a fixed number of
+   * instructions at the end of the code produced so far.
+   */
+  public enum Rule {
+    /** PUSH c / NEG becomes PUSH -c */
+    FOLD_NEGATE("PUSH c / NEG => PUSH -c", 2, 0) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.PushConst &&
+            w.get(1) instanceof Machine.Negate) {
+          return listOf(new Machine.PushConst(
+              -((Machine.PushConst) w.get(0)).c));
+        }
+        return null;
+      }
+    },
+    /** PUSH c / SQRT becomes PUSH sqrt(c) */
+    FOLD_SQRT("PUSH c / SQRT => PUSH sqrt(c)", 2, 0) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.PushConst &&
+            w.get(1) instanceof Machine.SquareRoot) {
+          return listOf(new Machine.PushConst(
+              (int) Math.sqrt(((Machine.PushConst) w.get(0)).c)));
+        }
+        return null;
+      }
+    },
+    /** PUSH a / PUSH b / op becomes PUSH (a op b), except division by 0 */
+    FOLD_BINARY("PUSH a / PUSH b / op => PUSH (a op b)", 3, 0) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (!(w.get(0) instanceof Machine.PushConst &&
+            w.get(1) instanceof Machine.PushConst)) {
+          return null;
+        }
+        int a = ((Machine.PushConst) w.get(0)).c;
+        int b = ((Machine.PushConst) w.get(1)).c;
+        Machine.Instruction op = w.get(2);
+        if (op instanceof Machine.Add) {
+          return listOf(new Machine.PushConst(a + b));
+        } else if (op instanceof Machine.Subtract) {
+          return listOf(new Machine.PushConst(a - b));
+        } else if (op instanceof Machine.Multiply) {
+          return listOf(new Machine.PushConst(a * b));
+        } else if (op instanceof Machine.Divide && b != 0) {
+          return listOf(new Machine.PushConst(a / b));
+        }
+        return null;
+      }
+    },
+    /** NEG / NEG disappears */
+    DOUBLE_NEGATE("NEG / NEG => (nothing)", 2, 1) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.Negate &&
+            w.get(1) instanceof Machine.Negate) {
+          return Collections.emptyList();
+        }
+        return null;
+      }
+    },
+    /** NEG / SUB becomes ADD */
+    NEGATE_SUBTRACT("NEG / SUB => ADD", 2, 2) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.Negate &&
+            w.get(1) instanceof Machine.Subtract) {
+          return listOf(new Machine.Add());
+        }
+        return null;
+      }
+    },
+    /** NEG / ADD becomes SUB */
+    NEGATE_ADD("NEG / ADD => SUB", 2, 2) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.Negate &&
+            w.get(1) instanceof Machine.Add) {
+          return listOf(new Machine.Subtract());
+        }
+        return null;
+      }
+    },
+    /** STORE x / LOAD x becomes DUP / STORE x */
+    STORE_LOAD("STORE x / LOAD x => DUP / STORE x", 2, 1) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.Store &&
+            w.get(1) instanceof Machine.Load &&
+            ((Machine.Store) w.get(0)).slot == ((Machine.Load) w.get(1)).slot) {
+          return listOf(new Machine.Dup(), w.get(0));
+        }
+        return null;
+      }
+    },
+    /** LOAD x / LOAD x becomes LOAD x / DUP */
+    LOAD_LOAD("LOAD x / LOAD x => LOAD x / DUP", 2, 0) {
+      @Override
+      List<Machine.Instruction> rewrite(List<Machine.Instruction> w) {
+        if (w.get(0) instanceof Machine.Load &&
+            w.get(1) instanceof Machine.Load &&
+            ((Machine.Load) w.get(0)).slot == ((Machine.Load) w.get(1)).slot) {
+          return listOf(w.get(0), new Machine.Dup());
+        }
+        return null;
+      }
+    };
+
+    private final String description;
+    private final int width;
+    private final int needs;
+
+    /**
+     * @param description the rewrite, for reports
+     * @param width how many instructions the rule matches
+     * @param needs how many values must already be on the stack
+     *              for the matched instructions not to underflow
+     */
+    Rule(String description, int width, int needs) {
+      this.description = description;
+      this.width = width;
+      this.needs = needs;
+    }
+
+    /**
+     * @param w exactly width instructions
+     * @return the replacement instructions, or null if the rule
+     *         does not match
+     */
+    abstract List<Machine.Instruction> rewrite(List<Machine.Instruction> w);
+
+    @Override
+    public String toString() {
+      return description;
+    }
+  }
+
+  private final Set<Rule> rules;
+  private final Map<Rule, Integer> applied;
+
+  /**
+   * Create an optimizer that uses every rule.
+   */
+  public Peephole() {
+    this(EnumSet.allOf(Rule.class));
+  }
+
+  /**
+   * Create an optimizer that uses only some of the rules.
+   *
+   * @param rules the rules to apply
+   */
+  public Peephole(Set<Rule> rules) {
+    this.rules = EnumSet.copyOf(rules);
+    this.applied = new EnumMap<>(Rule.class);
+  }
+
+  /*
+   * The code produced so far, and the stack depth just before each of
+   * its instructions. The depth after the last one is depth.
+   */
+  private ArrayList<Machine.Instruction> out;
+  private int[] depths;
+  private int depth;
+
+  /**
+   * Optimize a program.
+   *
+   * @param program a list of Machine instructions; it is not changed
+   * @return a new, equivalent list of instructions
+   */
+  public List<Machine.Instruction> optimize(List<Machine.Instruction> program) {
+    out = new ArrayList<>(program.size());
+    depths = new int[16];
+    depth = 0;
+    boolean tracking = true;
+    for (Machine.Instruction instr : program) {
+      if (tracking) {
+        int[] effect = effect(instr);
+        if (effect == null || depth < effect[0]) {
+          tracking = false;
+        } else {
+          append(instr, effect);
+          reduce();
+          continue;
+        }
+      }
+      out.add(instr);
+    }
+    List<Machine.Instruction> result = out;
+    out = null;
+    depths = null;
+    return result;
+  }
+
+  /**
+   * Apply rules to the end of the code until none of them match.
+   */
+  private void reduce() {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Rule rule : rules) {
+        int start = out.size() - rule.width;
+        if (start < 0 || depths[start] < rule.needs) {
+          continue;
+        }
+        List<Machine.Instruction> window = out.subList(start, out.size());
+        List<Machine.Instruction> replacement =
+            rule.rewrite(new ArrayList<>(window));
+        if (replacement != null) {
+          window.clear();
+          depth = depths[start];
+          for (Machine.Instruction instr : replacement) {
+            append(instr, effect(instr));
+          }
+          applied.merge(rule, 1, Integer::sum);
+          changed = true;
+          break;
+        }
+      }
+    }
+  }
+
+  private void append(Machine.Instruction instr, int[] effect) {
+    if (out.size() == depths.length) {
+      depths = Arrays.copyOf(depths, depths.length * 2);
+    }
+    depths[out.size()] = depth;
+    out.add(instr);
+    depth += effect[1] - effect[0];
+  }
+
+  /**
+   * @param instr an instruction
+   * @return how many values it pops and pushes, or null if unknown
+   */
+  static int[] effect(Machine.Instruction instr) {
+    if (instr instanceof Machine.PushConst || instr instanceof Machine.Load) {
+      return new int[]{0, 1};
+    } else if (instr instanceof Machine.Store || instr instanceof Machine.Print) {
+      return new int[]{1, 0};
+    } else if (instr instanceof Machine.Add ||
+        instr instanceof Machine.Subtract ||
+        instr instanceof Machine.Multiply ||
+        instr instanceof Machine.Divide) {
+      return new int[]{2, 1};
+    } else if (instr instanceof Machine.Negate ||
+        instr instanceof Machine.SquareRoot) {
+      return new int[]{1, 1};
+    } else if (instr instanceof Machine.Dup) {
+      return new int[]{1, 2};
+    }
+    return null;
+  }
+
+  private static List<Machine.Instruction> listOf(Machine.Instruction... code) {
+    return Arrays.asList(code);
+  }
+
+  /**
+   * @return how many times each rule has been applied by this optimizer
+   */
+  public Map<Rule, Integer> getApplied() {
+    return Collections.unmodifiableMap(applied);
+  }
+
+  /**
+   * Print how many times each rule has been applied, one rule per line.
+   *
+   * @param report where the report goes
+   */
+  public void report(PrintStream report) {
+    report.println("Peephole rewrites:");
+    for (Map.Entry<Rule, Integer> entry : applied.entrySet()) {
+      report.printf("%6d  %s\n", entry.getValue(), entry.getKey());
+    }
+  }
+}
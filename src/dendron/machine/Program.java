@@ -0,0 +1,542 @@
+package dendron.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled Machine program in compact form: a single int[] stream
+ * of opcodes, each followed by its operand if it has one, together
+ * with a constant pool for PUSH values and a slot-to-name table for
+ * LOAD and STORE, which also records the slots that hold compiler
+ * temporaries. A Program is immutable once built, so it can be
+ * shared by any number of Machines.
+ * <p>
+ * The largest stack depth the code can reach is worked out while the
+ * program is built, so the interpreter loop never has to check for
+ * overflow. An instruction that would pop more values than the stack
+ * can hold at that point is encoded as an UNDERFLOW trap that remembers
+ * the original opcode, so the error is still reported exactly where
+ * the instruction-list form would report it.
+ *
+ * @see Machine#run(Program)
+ */
+public class Program {
+
+  /*
+   * Opcodes. PUSH, LOAD and STORE take one operand. UNDERFLOW takes two:
+   * the opcode it replaced and that opcode's operand, if any.
+   */
+  public static final int PUSH = 0;
+  public static final int LOAD = 1;
+  public static final int STORE = 2;
+  public static final int ADD = 3;
+  public static final int SUB = 4;
+  public static final int MUL = 5;
+  public static final int DIV = 6;
+  public static final int NEG = 7;
+  public static final int SQRT = 8;
+  public static final int PRINT = 9;
+  public static final int UNDERFLOW = 10;
+  public static final int DUP = 11;
+
+  /*
+   * Superinstructions (see Machine.Fused). The _CONST forms take a
+   * constant pool index, the _LOAD forms and LOAD_PRINT a slot, the
+   * LOAD_LOAD_ forms two slots, and PUSH_STORE and INC a slot and a
+   * constant pool index. Each group is in ADD, SUB, MUL, DIV order.
+   */
+  public static final int ADD_CONST = 12;
+  public static final int SUB_CONST = 13;
+  public static final int MUL_CONST = 14;
+  public static final int DIV_CONST = 15;
+  public static final int ADD_LOAD = 16;
+  public static final int SUB_LOAD = 17;
+  public static final int MUL_LOAD = 18;
+  public static final int DIV_LOAD = 19;
+  public static final int LOAD_LOAD_ADD = 20;
+  public static final int LOAD_LOAD_SUB = 21;
+  public static final int LOAD_LOAD_MUL = 22;
+  public static final int PUSH_STORE = 23;
+  public static final int LOAD_PRINT = 24;
+  public static final int INC = 25;
+
+  /** how many values each opcode pops */
+  private static final int[] POPS = {
+      0, 0, 1, 2, 2, 2, 2, 1, 1, 1, 0, 1,
+      1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0
+  };
+  /** how many values each opcode pushes */
+  private static final int[] PUSHES = {
+      1, 1, 0, 1, 1, 1, 1, 1, 1, 0, 0, 2,
+      1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0
+  };
+
+  /**
+   * What each opcode's operands are: C for a constant pool index,
+   * S for a slot. UNDERFLOW is special, and has none listed here.
+   */
+  private static final String[] OPERANDS = {
+      "C", "S", "S", "", "", "", "", "", "", "", "", "",
+      "C", "C", "C", "C", "S", "S", "S", "S", "SS", "SS", "SS", "SC", "S", "SC"
+  };
+
+  final int[] code;
+  final int[] constants;
+  final String[] names;
+  final BitSet temporaries;
+  final int maxStack;
+
+  private Program(int[] code, int[] constants, String[] names,
+                  BitSet temporaries, int maxStack) {
+    this.code = code;
+    this.constants = constants;
+    this.names = names;
+    this.temporaries = temporaries;
+    this.maxStack = maxStack;
+  }
+
+  /**
+   * Rebuild a Program from its parts, as read back from storage,
+   * checking that they are well formed and working out the stack
+   * size the code needs.
+   *
+   * @param code the code stream
+   * @param constants the constant pool
+   * @param names the variable names, indexed by slot
+   * @param temporaries the slots that hold compiler temporaries
+   * @return the Program
+   * @throws IllegalArgumentException if the parts do not make up a
+   *         program that the Machine can run safely
+   */
+  static Program decode(int[] code, int[] constants, String[] names,
+                        BitSet temporaries) {
+    if (temporaries.length() > names.length) {
+      throw new IllegalArgumentException("temporary slot " +
+          (temporaries.length() - 1) + " out of range");
+    }
+    int depth = 0;
+    int maxStack = 0;
+    for (int pc = 0; pc < code.length; pc += width(code[pc])) {
+      int opcode = code[pc];
+      if (opcode < 0 || opcode >= POPS.length) {
+        throw new IllegalArgumentException("bad opcode " + opcode + " at " + pc);
+      }
+      if (pc + width(opcode) > code.length) {
+        throw new IllegalArgumentException("truncated instruction at " + pc);
+      }
+      if (opcode == UNDERFLOW) {
+        int replaced = code[pc + 1];
+        if (replaced < 0 || replaced >= POPS.length || replaced == UNDERFLOW ||
+            !OPERANDS[replaced].isEmpty() &&
+                !validOperand(OPERANDS[replaced].charAt(0), code[pc + 2],
+                    constants, names)) {
+          throw new IllegalArgumentException("bad UNDERFLOW trap at " + pc);
+        }
+        // Execution stops here, so nothing after the trap can run.
+        break;
+      }
+      String operands = OPERANDS[opcode];
+      for (int i = 0; i < operands.length(); i++) {
+        if (!validOperand(operands.charAt(i), code[pc + 1 + i], constants, names)) {
+          throw new IllegalArgumentException("bad operand for opcode " +
+              opcode + " at " + pc);
+        }
+      }
+      if (depth < POPS[opcode]) {
+        throw new IllegalArgumentException("stack underflow at " + pc +
+            " without an UNDERFLOW trap");
+      }
+      depth += PUSHES[opcode] - POPS[opcode];
+      maxStack = Math.max(maxStack, depth);
+    }
+    return new Program(code, constants, names, temporaries, maxStack);
+  }
+
+  private static boolean validOperand(char kind, int operand, int[] constants,
+                                      String[] names) {
+    if (kind == 'C') {
+      return operand >= 0 && operand < constants.length;
+    }
+    return operand >= 0 && operand < names.length && names[operand] != null;
+  }
+
+  /**
+   * Translate a list of instructions to compact form.
+   *
+   * @param program a list of Machine instructions
+   * @return the equivalent compiled Program
+   */
+  public static Program of(List<Machine.Instruction> program) {
+    Builder builder = new Builder();
+    for (Machine.Instruction instr : program) {
+      builder.emit(instr);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Mark the slots that hold compiler temporaries, so that they are
+   * left out of the variables a run shows. A Program built from
+   * instructions has the slots its temporary STOREs name marked
+   * already; this replaces that set.
+   *
+   * @param slots the temporaries' slots, as from
+   *              {@link Symbols#temporaries()}
+   * @return a Program with the same code and those slots marked
+   */
+  public Program withTemporaries(BitSet slots) {
+    BitSet marked = (BitSet) slots.clone();
+    if (marked.length() > names.length) {
+      marked.clear(names.length, marked.length());
+    }
+    return new Program(code, constants, names, marked, maxStack);
+  }
+
+  /**
+   * @param opcode one of the opcode constants in this class
+   * @return the number of ints the instruction occupies in the code,
+   *         counting the opcode itself
+   */
+  public static int width(int opcode) {
+    return opcode == UNDERFLOW ? 3 : 1 + OPERANDS[opcode].length();
+  }
+
+  /**
+   * @param opcode one of the opcode constants in this class, other
+   *               than UNDERFLOW
+   * @return the kinds of its operands, in code order: C for a constant
+   *         pool index, S for a slot
+   */
+  static String operands(int opcode) {
+    return OPERANDS[opcode];
+  }
+
+  /**
+   * @param opcode one of the opcode constants in this class
+   * @return how many values the instruction pops from the stack
+   */
+  static int pops(int opcode) {
+    return POPS[opcode];
+  }
+
+  /**
+   * @return the number of ints in the code stream
+   */
+  public int length() {
+    return code.length;
+  }
+
+  /**
+   * @return the variable names, indexed by slot
+   */
+  public String[] names() {
+    return Arrays.copyOf(names, names.length);
+  }
+
+  /**
+   * Rebuild the instruction at a position in the code stream.
+   * UNDERFLOW traps come back as the instruction they replaced.
+   *
+   * @param pc the index of an opcode in the code stream
+   * @return the instruction object the opcode stands for
+   */
+  public Machine.Instruction instruction(int pc) {
+    int opcode = code[pc];
+    int operand = width(opcode) > 1 ? code[pc + 1] : 0;
+    int second = width(opcode) > 2 ? code[pc + 2] : 0;
+    if (opcode == UNDERFLOW) {
+      opcode = operand;
+      operand = code[pc + 2];
+    }
+    switch (opcode) {
+      case PUSH:
+        return new Machine.PushConst(constants[operand]);
+      case LOAD:
+        return new Machine.Load(names[operand], operand);
+      case STORE:
+        return new Machine.Store(names[operand], operand,
+            temporaries.get(operand));
+      case ADD:
+        return new Machine.Add();
+      case SUB:
+        return new Machine.Subtract();
+      case MUL:
+        return new Machine.Multiply();
+      case DIV:
+        return new Machine.Divide();
+      case NEG:
+        return new Machine.Negate();
+      case SQRT:
+        return new Machine.SquareRoot();
+      case PRINT:
+        return new Machine.Print();
+      case DUP:
+        return new Machine.Dup();
+      case ADD_CONST:
+      case SUB_CONST:
+      case MUL_CONST:
+      case DIV_CONST:
+        return new Machine.OperateConst(opcode - ADD_CONST + ADD,
+            constants[operand]);
+      case ADD_LOAD:
+      case SUB_LOAD:
+      case MUL_LOAD:
+      case DIV_LOAD:
+        return new Machine.OperateLoad(opcode - ADD_LOAD + ADD,
+            names[operand], operand);
+      case LOAD_LOAD_ADD:
+      case LOAD_LOAD_SUB:
+      case LOAD_LOAD_MUL:
+        return new Machine.LoadLoadOperate(opcode - LOAD_LOAD_ADD + ADD,
+            names[operand], operand, names[second], second);
+      case PUSH_STORE:
+        return new Machine.PushStore(constants[second],
+            names[operand], operand, temporaries.get(operand));
+      case LOAD_PRINT:
+        return new Machine.LoadPrint(names[operand], operand);
+      case INC:
+        return new Machine.Increment(names[operand], operand,
+            constants[second]);
+      default:
+        throw new IllegalStateException("bad opcode " + opcode + " at " + pc);
+    }
+  }
+
+  /**
+   * Find the instruction a position in the code stream belongs to.
+   *
+   * @param pc a position just after the opcode of an instruction, or
+   *           after one of its operands
+   * @return the index of that instruction in {@link #toInstructions()}
+   */
+  int instructionIndex(int pc) {
+    int index = 0;
+    for (int at = 0; at + width(code[at]) < pc; at += width(code[at])) {
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * @param pc the index of an UNDERFLOW trap in the code stream
+   * @return the instruction to name in the error report: the one the
+   *         trap replaced, or if that was a superinstruction, the
+   *         operation in it that underflows
+   */
+  Machine.Instruction underflowing(int pc) {
+    Machine.Instruction instr = instruction(pc);
+    return instr instanceof Machine.Fused ?
+        ((Machine.Fused) instr).parts().get(1) : instr;
+  }
+
+  /**
+   * Rebuild the whole program as a list of instruction objects,
+   * for display or for passes that work on that form.
+   *
+   * @return the instructions, in order
+   */
+  public List<Machine.Instruction> toInstructions() {
+    List<Machine.Instruction> result = new ArrayList<>();
+    for (int pc = 0; pc < code.length; ) {
+      result.add(instruction(pc));
+      pc += width(code[pc]);
+    }
+    return result;
+  }
+
+  /**
+   * Accumulates the code stream, constant pool and slot table of
+   * a Program one instruction at a time.
+   *
+   * @see Machine.Instruction#encode(Builder)
+   */
+  public static class Builder implements Emitter {
+    private int[] code = new int[64];
+    private int length = 0;
+    private int[] constants = new int[16];
+    private int constantCount = 0;
+    private final Map<Integer, Integer> constantIndex = new HashMap<>();
+    private String[] names = new String[16];
+    private int nameCount = 0;
+    private final BitSet temporaries = new BitSet();
+    private int depth = 0;
+    private int maxStack = 0;
+    /** Only the first underflow can ever be reached at run time. */
+    private boolean trapped = false;
+
+    /**
+     * Append an instruction object by having it encode itself.
+     *
+     * @param instr the next instruction
+     */
+    @Override
+    public void emit(Machine.Instruction instr) {
+      instr.encode(this);
+    }
+
+    /**
+     * Append an instruction without an operand.
+     *
+     * @param opcode one of the opcode constants in Program
+     */
+    public void emit(int opcode) {
+      if (trap(opcode, 0)) {
+        return;
+      }
+      append(opcode);
+      track(opcode);
+    }
+
+    /**
+     * Append a PUSH of a constant value.
+     *
+     * @param value the value to push
+     */
+    public void emitPush(int value) {
+      emitWithConstant(PUSH, value);
+    }
+
+    /**
+     * Append an instruction whose operand is a constant: PUSH or
+     * one of the _CONST superinstructions.
+     *
+     * @param opcode the instruction's opcode
+     * @param value the constant
+     */
+    public void emitWithConstant(int opcode, int value) {
+      int index = constant(value);
+      if (trap(opcode, index)) {
+        return;
+      }
+      append(opcode);
+      append(index);
+      track(opcode);
+    }
+
+    /**
+     * Append an instruction whose operand is a variable: LOAD, STORE,
+     * LOAD_PRINT or one of the _LOAD superinstructions.
+     *
+     * @param opcode the instruction's opcode
+     * @param name the variable's name
+     * @param slot the variable's frame slot
+     */
+    public void emitVariable(int opcode, String name, int slot) {
+      name(name, slot);
+      if (trap(opcode, slot)) {
+        return;
+      }
+      append(opcode);
+      append(slot);
+      track(opcode);
+    }
+
+    /**
+     * Append one of the LOAD_LOAD_ superinstructions.
+     *
+     * @param opcode the instruction's opcode
+     * @param name1 the first variable's name
+     * @param slot1 the first variable's frame slot
+     * @param name2 the second variable's name
+     * @param slot2 the second variable's frame slot
+     */
+    public void emitVariables(int opcode, String name1, int slot1,
+                              String name2, int slot2) {
+      name(name1, slot1);
+      name(name2, slot2);
+      append(opcode);
+      append(slot1);
+      append(slot2);
+      track(opcode);
+    }
+
+    /**
+     * Append PUSH_STORE or INC.
+     *
+     * @param opcode the instruction's opcode
+     * @param name the variable's name
+     * @param slot the variable's frame slot
+     * @param value the constant
+     */
+    public void emitVariableWithConstant(int opcode, String name, int slot,
+                                         int value) {
+      name(name, slot);
+      append(opcode);
+      append(slot);
+      append(constant(value));
+      track(opcode);
+    }
+
+    /**
+     * Mark a variable already named by an instruction as a compiler
+     * temporary.
+     *
+     * @param slot the variable's frame slot
+     */
+    public void temporary(int slot) {
+      temporaries.set(slot);
+    }
+
+    private int constant(int value) {
+      Integer index = constantIndex.get(value);
+      if (index == null) {
+        if (constantCount == constants.length) {
+          constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        index = constantCount++;
+        constantIndex.put(value, index);
+      }
+      return index;
+    }
+
+    private void name(String name, int slot) {
+      if (slot >= names.length) {
+        names = Arrays.copyOf(names, Math.max(slot + 1, names.length * 2));
+      }
+      names[slot] = name;
+      nameCount = Math.max(nameCount, slot + 1);
+    }
+
+    /**
+     * Replace an instruction with an UNDERFLOW trap if the stack cannot
+     * hold enough operands for it.
+     */
+    private boolean trap(int opcode, int operand) {
+      if (trapped || depth >= POPS[opcode]) {
+        return false;
+      }
+      append(UNDERFLOW);
+      append(opcode);
+      append(operand);
+      trapped = true;
+      return true;
+    }
+
+    private void track(int opcode) {
+      depth += PUSHES[opcode] - POPS[opcode];
+      maxStack = Math.max(maxStack, depth);
+    }
+
+    private void append(int word) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, length * 2);
+      }
+      code[length++] = word;
+    }
+
+    /**
+     * @return the finished Program
+     */
+    public Program build() {
+      return new Program(Arrays.copyOf(code, length),
+          Arrays.copyOf(constants, constantCount),
+          Arrays.copyOf(names, nameCount), (BitSet) temporaries.clone(),
+          maxStack);
+    }
+  }
+}
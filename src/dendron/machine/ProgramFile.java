@@ -0,0 +1,257 @@
+package dendron.machine;
+
+import dendron.DendronException;
+import dendron.Errors;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Reads and writes compiled Programs in a binary file format (.denb),
+ * so that large programs can be loaded without assembling them again.
+ * All numbers are big-endian:
+ * <pre>
+ *   4 bytes   "DENB"
+ *   2 bytes   format version
+ *   2 bytes   reserved, 0
+ *   4 bytes   number of ints in the code stream
+ *   4 bytes   number of constants
+ *   4 bytes   number of variable slots
+ *   code      one int per word, exactly as in a Program
+ *   constants one int each
+ *   names     for each slot, a 2-byte length and that many bytes of
+ *             UTF-8, or length 0xFFFF for a slot with no name
+ *   4 bytes   number of slots that hold compiler temporaries
+ *   slots     one int each, in increasing order
+ * </pre>
+ * Version 1 files, which end after the names, are still read; they
+ * have no temporaries marked.
+ * The loader maps the file into memory and copies the code and
+ * constants out in bulk; the only objects it creates per symbol are
+ * the names. A loaded program is checked before it is returned, so a
+ * damaged file cannot make the Machine misbehave.
+ *
+ * @see Program
+ */
+public class ProgramFile {
+
+  /** the file name extension for binary programs */
+  public static final String EXTENSION = ".denb";
+
+  private static final int MAGIC = 0x44454E42;   // "DENB"
+  private static final int VERSION = 2;
+  private static final int HEADER = 20;
+  private static final int NO_NAME = 0xFFFF;
+
+  private ProgramFile() {
+  }
+
+  /**
+   * Write a program to a file.
+   *
+   * @param program the compiled program
+   * @param file where to write it; any existing file is replaced
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(Program program, Path file) throws IOException {
+    try (OutputStream stream = Files.newOutputStream(file)) {
+      write(program, stream);
+    }
+  }
+
+  /**
+   * Compile a list of instructions and write the result to a file.
+   *
+   * @param program a list of Machine instructions
+   * @param file where to write it; any existing file is replaced
+   * @throws IOException if the file cannot be written
+   */
+  public static void write(List<Machine.Instruction> program, Path file)
+      throws IOException {
+    write(Program.of(program), file);
+  }
+
+  /**
+   * Write a program to a stream. The stream is flushed but not closed.
+   *
+   * @param program the compiled program
+   * @param stream where to write it
+   * @throws IOException if writing fails
+   */
+  public static void write(Program program, OutputStream stream)
+      throws IOException {
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeShort(0);
+    out.writeInt(program.code.length);
+    out.writeInt(program.constants.length);
+    out.writeInt(program.names.length);
+    for (int word : program.code) {
+      out.writeInt(word);
+    }
+    for (int constant : program.constants) {
+      out.writeInt(constant);
+    }
+    for (String name : program.names) {
+      if (name == null) {
+        out.writeShort(NO_NAME);
+      } else {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NO_NAME) {
+          throw new IOException("variable name too long: " + name);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+      }
+    }
+    out.writeInt(program.temporaries.cardinality());
+    for (int slot = program.temporaries.nextSetBit(0); slot >= 0;
+         slot = program.temporaries.nextSetBit(slot + 1)) {
+      out.writeInt(slot);
+    }
+    out.flush();
+  }
+
+  /**
+   * Load a program from a file.
+   *
+   * @param file a file written by {@link #write(Program, Path)}
+   * @return the program, ready to run
+   * @throws IOException if the file cannot be read, or is not a
+   *         well-formed binary program of a version this code knows
+   */
+  public static Program load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER) {
+        throw new IOException(file + ": too short for a binary program");
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(file + ": too large");
+      }
+      MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      return decode(buffer, file.toString());
+    }
+  }
+
+  /**
+   * Decode a binary program held in memory.
+   *
+   * @param buffer the bytes of a binary program, from its position
+   * @param source where the bytes came from, for error messages
+   * @return the program
+   * @throws IOException if the bytes are not a well-formed program
+   */
+  static Program decode(ByteBuffer buffer, String source) throws IOException {
+    if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) {
+      throw new IOException(source + ": not a binary Dendron program");
+    }
+    int version = buffer.getShort() & 0xFFFF;
+    if (version != 1 && version != VERSION) {
+      throw new IOException(source + ": unsupported format version " + version);
+    }
+    buffer.getShort();
+    int codeLength = buffer.getInt();
+    int constantCount = buffer.getInt();
+    int nameCount = buffer.getInt();
+    if (codeLength < 0 || constantCount < 0 || nameCount < 0 ||
+        ((long) codeLength + constantCount) * 4 + 2L * nameCount >
+            buffer.remaining()) {
+      throw new IOException(source + ": truncated");
+    }
+    int[] code = new int[codeLength];
+    int[] constants = new int[constantCount];
+    buffer.asIntBuffer().get(code);
+    buffer.position(buffer.position() + codeLength * 4);
+    buffer.asIntBuffer().get(constants);
+    buffer.position(buffer.position() + constantCount * 4);
+    String[] names = new String[nameCount];
+    for (int i = 0; i < nameCount; i++) {
+      if (buffer.remaining() < 2) {
+        throw new IOException(source + ": truncated");
+      }
+      int length = buffer.getShort() & 0xFFFF;
+      if (length == NO_NAME) {
+        continue;
+      }
+      if (buffer.remaining() < length) {
+        throw new IOException(source + ": truncated");
+      }
+      if (buffer.hasArray()) {
+        names[i] = new String(buffer.array(),
+            buffer.arrayOffset() + buffer.position(), length,
+            StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+      } else {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        names[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+    }
+    BitSet temporaries = new BitSet();
+    if (version > 1) {
+      if (buffer.remaining() < 4) {
+        throw new IOException(source + ": truncated");
+      }
+      int count = buffer.getInt();
+      if (count < 0 || count > nameCount || 4L * count > buffer.remaining()) {
+        throw new IOException(source + ": truncated");
+      }
+      for (int i = 0; i < count; i++) {
+        int slot = buffer.getInt();
+        if (slot < 0 || slot >= nameCount) {
+          throw new IOException(source + ": bad temporary slot " + slot);
+        }
+        temporaries.set(slot);
+      }
+    }
+    try {
+      return Program.decode(code, constants, names, temporaries);
+    } catch (IllegalArgumentException iae) {
+      throw new IOException(source + ": " + iae.getMessage());
+    }
+  }
+
+  /**
+   * Convert an assembly file to a binary program, or run a binary
+   * program.
+   *
+   * @param args "file.denm file.denb" to convert, or "file.denb" to run
+   * @throws IOException if a file cannot be read or written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length == 2) {
+      List<Machine.Instruction> code = InstructionReader.assemble(args[0]);
+      if (code == null) {
+        System.exit(1);
+      }
+      write(code, Paths.get(args[1]));
+    } else if (args.length == 1) {
+      OutputSink.install();
+      try {
+        Machine.execute(load(Paths.get(args[0])));
+      } catch (DendronException e) {
+        Errors.exit(e);
+      }
+    } else {
+      System.err.println(
+          "Usage: java ProgramFile [assembly-code-file] binary-program-file");
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package dendron.machine;
+
+import dendron.DendronException;
+import dendron.Errors;
+
+import java.io.PrintStream;
+
+/**
+ * A register-based alternative to the stack {@link Machine}. It runs
+ * {@link RegisterProgram}s, whose three-address instructions name their
+ * operands directly instead of shuffling them through a value stack.
+ * Its output has the same form as the stack Machine's, so the two can
+ * be run and compared side by side on the same programs.
+ */
+public class RegisterMachine {
+
+  private final PrintStream out;
+  private Frame frame;
+
+  /**
+   * Create a register machine that prints on standard output.
+   */
+  public RegisterMachine() {
+    this(System.out);
+  }
+
+  /**
+   * Create a register machine that prints on the given stream.
+   *
+   * @param out where PRINT instructions and the final report go
+   */
+  public RegisterMachine(PrintStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Run a program on a fresh register machine that prints on
+   * standard output.
+   *
+   * @param program the compiled program
+   */
+  public static void execute(RegisterProgram program) {
+    new RegisterMachine().run(program);
+  }
+
+  /**
+   * Generate a listing of a register program on standard output.
+   *
+   * @param program the compiled program
+   */
+  public static void displayInstructions(RegisterProgram program) {
+    System.out.println("\nCompiled code:");
+    for (String line : program.listing()) {
+      System.out.println(line);
+    }
+    System.out.println();
+  }
+
+  /**
+   * Run a program and report the contents of its variables.
+   *
+   * @param program the compiled program
+   * @throws DendronException.Execution if an instruction fails, with
+   *         its index but without the variables
+   */
+  public void run(RegisterProgram program) {
+    int[] code = program.code;
+    int[] r = new int[program.registers];
+    System.arraycopy(program.constants, 0, r, program.names.length,
+        program.constants.length);
+    out.println("Executing compiled code...");
+    int pc = 0;
+    try {
+      for (; pc < code.length; pc += 4) {
+        int d = code[pc + 1];
+        int a = code[pc + 2];
+        int b = code[pc + 3];
+        switch (code[pc]) {
+          case RegisterProgram.MOV:
+            r[d] = r[a];
+            break;
+          case RegisterProgram.ADD:
+            r[d] = r[a] + r[b];
+            break;
+          case RegisterProgram.SUB:
+            r[d] = r[a] - r[b];
+            break;
+          case RegisterProgram.MUL:
+            r[d] = r[a] * r[b];
+            break;
+          case RegisterProgram.DIV:
+            if (r[b] == 0) {
+              Errors.report(Errors.Type.DIVIDE_BY_ZERO, (r[a] + " / " + r[b]));
+            }
+            r[d] = r[a] / r[b];
+            break;
+          case RegisterProgram.NEG:
+            r[d] = -r[a];
+            break;
+          case RegisterProgram.SQRT:
+            r[d] = (int) Math.sqrt(r[a]);
+            break;
+          case RegisterProgram.PRINT:
+            OutputSink.println(out, "*** ", r[a]);
+            break;
+          case RegisterProgram.UNINIT:
+            Errors.report(Errors.Type.UNINITIALIZED, program.names[a]);
+            break;
+        }
+      }
+    } catch (DendronException e) {
+      // registers do not say which variables are assigned yet
+      throw e.atInstruction(pc / 4);
+    }
+    // There is no stack, so none is ever left over.
+    out.println("Machine: execution ended with 0 items left on the stack.");
+    out.println();
+    frame = new Frame(program.names, program.temporarySlots);
+    for (int slot = program.assigned.nextSetBit(0); slot >= 0;
+         slot = program.assigned.nextSetBit(slot + 1)) {
+      frame.store(slot, r[slot]);
+    }
+    Errors.dump(frame, out);
+  }
+
+  /**
+   * @return the variables as they stood when the last run ended
+   */
+  public Frame getFrame() {
+    return frame;
+  }
+}
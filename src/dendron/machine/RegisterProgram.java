@@ -0,0 +1,254 @@
+package dendron.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled program for the {@link RegisterMachine}: a sequence of
+ * three-address instructions such as ADD r3, r1, r2 that read their
+ * operands from, and write their result to, numbered registers.
+ * <p>
+ * Every instruction takes four ints in the code array: the opcode, the
+ * destination register and two source registers (unused ones are 0).
+ * The register file is laid out as
+ * <ul>
+ *     <li>one register per program variable, numbered by slot,</li>
+ *     <li>then one register per distinct constant, loaded before the
+ *     program starts, so constants need no instructions of their own,</li>
+ *     <li>then the temporaries that hold intermediate results.</li>
+ * </ul>
+ * Reading a variable therefore costs nothing: an instruction simply
+ * names the variable's register as a source.
+ */
+public class RegisterProgram {
+
+  /* Opcodes */
+  public static final int MOV = 0;
+  public static final int ADD = 1;
+  public static final int SUB = 2;
+  public static final int MUL = 3;
+  public static final int DIV = 4;
+  public static final int NEG = 5;
+  public static final int SQRT = 6;
+  public static final int PRINT = 7;
+  /** report the variable in register a as uninitialized */
+  public static final int UNINIT = 8;
+
+  private static final String[] MNEMONICS = {
+      "MOV", "ADD", "SUB", "MUL", "DIV", "NEG", "SQRT", "PRINT", "UNINIT"
+  };
+  /** how many source registers each opcode reads */
+  private static final int[] SOURCES = {1, 2, 2, 2, 2, 1, 1, 1, 0};
+
+  final int[] code;
+  final String[] names;
+  /** the variable slots that hold compiler temporaries */
+  final BitSet temporarySlots;
+  final int[] constants;
+  final int registers;
+  /** the variables the program assigns, all of them if it runs to the end */
+  final BitSet assigned;
+
+  private RegisterProgram(int[] code, String[] names, BitSet temporarySlots,
+                          int[] constants, int registers, BitSet assigned) {
+    this.code = code;
+    this.names = names;
+    this.temporarySlots = temporarySlots;
+    this.constants = constants;
+    this.registers = registers;
+    this.assigned = assigned;
+  }
+
+  /**
+   * @return the number of instructions in the program
+   */
+  public int size() {
+    return code.length / 4;
+  }
+
+  /**
+   * Show the program as text, one instruction per string. Variables
+   * are shown by name, constants by value and temporaries as rN.
+   *
+   * @return the instruction listing
+   */
+  public List<String> listing() {
+    List<String> result = new ArrayList<>(size());
+    for (int pc = 0; pc < code.length; pc += 4) {
+      int opcode = code[pc];
+      StringBuilder line = new StringBuilder(MNEMONICS[opcode]).append('\t');
+      if (opcode == UNINIT) {
+        line.append(register(code[pc + 2]));
+      } else {
+        if (opcode != PRINT) {
+          line.append(register(code[pc + 1])).append(", ");
+        }
+        line.append(register(code[pc + 2]));
+        if (SOURCES[opcode] == 2) {
+          line.append(", ").append(register(code[pc + 3]));
+        }
+      }
+      result.add(line.toString());
+    }
+    return result;
+  }
+
+  private String register(int r) {
+    if (r < names.length) {
+      return names[r];
+    }
+    if (r < names.length + constants.length) {
+      return "#" + constants[r - names.length];
+    }
+    return "r" + (r - names.length - constants.length);
+  }
+
+  /**
+   * Accumulates a RegisterProgram one instruction at a time. Constant
+   * and temporary registers are numbered separately while the program
+   * is being built, and moved into place when it is finished.
+   */
+  public static class Builder {
+    private static final int CONSTANT = 1 << 29;
+    private static final int TEMPORARY = 1 << 30;
+
+    private final String[] names;
+    private final BitSet temporarySlots;
+    private int[] code = new int[64];
+    private int length = 0;
+    private final Map<Integer, Integer> constantIndex = new HashMap<>();
+    private int[] constants = new int[16];
+    private int temporaries = 0;
+    private int liveTemporaries = 0;
+    private final BitSet assigned = new BitSet();
+
+    /**
+     * @param names the program's variable names, indexed by slot
+     */
+    public Builder(String[] names) {
+      this(names, new BitSet());
+    }
+
+    /**
+     * @param names the program's variable names, indexed by slot
+     * @param temporarySlots the slots that hold compiler temporaries
+     */
+    public Builder(String[] names, BitSet temporarySlots) {
+      this.names = names;
+      this.temporarySlots = (BitSet) temporarySlots.clone();
+    }
+
+    /**
+     * @param slot a variable's slot
+     * @return the register that holds the variable
+     */
+    public int variable(int slot) {
+      return slot;
+    }
+
+    /**
+     * @param value a constant
+     * @return the register preloaded with the constant
+     */
+    public int constant(int value) {
+      Integer index = constantIndex.get(value);
+      if (index == null) {
+        index = constantIndex.size();
+        if (index == constants.length) {
+          constants = Arrays.copyOf(constants, index * 2);
+        }
+        constants[index] = value;
+        constantIndex.put(value, index);
+      }
+      return CONSTANT + index;
+    }
+
+    /**
+     * @return the number of temporaries currently in use, to pass
+     *         to {@link #release(int)} later
+     */
+    public int mark() {
+      return liveTemporaries;
+    }
+
+    /**
+     * Allocate a temporary register. Temporaries are handed out and
+     * released in stack order.
+     *
+     * @return the register
+     */
+    public int temporary() {
+      int r = TEMPORARY + liveTemporaries++;
+      temporaries = Math.max(temporaries, liveTemporaries);
+      return r;
+    }
+
+    /**
+     * Free every temporary allocated since a mark.
+     *
+     * @param mark a value returned by {@link #mark()}
+     */
+    public void release(int mark) {
+      liveTemporaries = mark;
+    }
+
+    /**
+     * @param r a register
+     * @return true if it is a temporary
+     */
+    public boolean isTemporary(int r) {
+      return r >= TEMPORARY;
+    }
+
+    /**
+     * Append an instruction.
+     *
+     * @param opcode one of the opcode constants in RegisterProgram
+     * @param d the destination register
+     * @param a the first source register
+     * @param b the second source register
+     */
+    public void emit(int opcode, int d, int a, int b) {
+      if (length + 4 > code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      code[length++] = opcode;
+      code[length++] = d;
+      code[length++] = a;
+      code[length++] = b;
+      if (opcode != PRINT && opcode != UNINIT && d < names.length) {
+        assigned.set(d);
+      }
+    }
+
+    /**
+     * @return the finished program, with every register in its place
+     */
+    public RegisterProgram build() {
+      int constantCount = constantIndex.size();
+      int[] result = Arrays.copyOf(code, length);
+      for (int pc = 0; pc < length; pc += 4) {
+        for (int i = pc + 1; i < pc + 4; i++) {
+          result[i] = place(result[i], constantCount);
+        }
+      }
+      return new RegisterProgram(result, names, temporarySlots,
+          Arrays.copyOf(constants, constantCount),
+          names.length + constantCount + temporaries, assigned);
+    }
+
+    private int place(int r, int constantCount) {
+      if (r >= TEMPORARY) {
+        return names.length + constantCount + (r - TEMPORARY);
+      }
+      if (r >= CONSTANT) {
+        return names.length + (r - CONSTANT);
+      }
+      return r;
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package dendron.machine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The table that resolves Dendron variable names to dense slot numbers.
+ * Slots are handed out in order of first appearance, starting at zero,
+ * so a program with n distinct variables uses slots 0 through n-1.
+ * Once resolved, the interpreters never look at a variable's name again
+ * except to report an error or to dump the final variable values.
+ * <p>
+ * Optimization passes may add temporary variables of their own. The
+ * table records which slots they occupy, and they are left out of the
+ * final variable dump unless it is asked to show them. Their names
+ * begin with {@link #TEMPORARY_PREFIX}, but so may a user's, so the
+ * name says nothing about whether a variable is a temporary.
+ */
+public class Symbols {
+
+  /** the first character of every compiler-generated variable name */
+  public static final String TEMPORARY_PREFIX = "$";
+
+  private final Map<String, Integer> slots;
+  private final BitSet temporarySlots;
+  private int temporaries;
+  private String[] names;
+  private int size;
+
+  /**
+   * Create an empty table.
+   */
+  public Symbols() {
+    slots = new HashMap<>();
+    temporarySlots = new BitSet();
+    names = new String[16];
+    size = 0;
+  }
+
+  /**
+   * Find the slot for a variable, assigning the next free one
+   * if the name has not been seen before.
+   *
+   * @param name the variable's identifier
+   * @return the slot number for the variable
+   */
+  public int intern(String name) {
+    Integer slot = slots.get(name);
+    if (slot != null) {
+      return slot;
+    }
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+    }
+    names[size] = name;
+    slots.put(name, size);
+    return size++;
+  }
+
+  /**
+   * Make up a new variable, with a name that is not yet in the table,
+   * for a value the compiler wants to keep.
+   *
+   * @return the slot number of the new variable
+   */
+  public int newTemporary() {
+    String name;
+    do {
+      name = TEMPORARY_PREFIX + "t" + temporaries++;
+    } while (slots.containsKey(name));
+    int slot = intern(name);
+    temporarySlots.set(slot);
+    return slot;
+  }
+
+  /**
+   * @param slot a slot number previously returned by intern
+   * @return true if the slot was made by {@link #newTemporary()}
+   */
+  public boolean isTemporary(int slot) {
+    return temporarySlots.get(slot);
+  }
+
+  /**
+   * @return a copy of the set of slots that hold compiler temporaries
+   */
+  public BitSet temporaries() {
+    return (BitSet) temporarySlots.clone();
+  }
+
+  /**
+   * @param slot a slot number previously returned by intern
+   * @return the name of the variable occupying that slot
+   */
+  public String name(int slot) {
+    return names[slot];
+  }
+
+  /**
+   * @return the number of slots handed out so far
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return a copy of the slot-to-name table, indexed by slot
+   */
+  public String[] names() {
+    return Arrays.copyOf(names, size);
+  }
+}
@@ -1,6 +1,6 @@
 package dendron.tree;
 
-import java.util.Map;
+import dendron.machine.Frame;
 
 /**
  * A dendron.tree.DendronNode that performs an action but does not
@@ -14,7 +14,7 @@ public interface ActionNode extends DendronNode {
     /**
      * Perform the action represented by this node. Actions are
      * things like changing variable values.
-     * @param symTab the table where variable values are stored
+     * @param frame the storage where variable values are kept
      */
-    void execute( Map< String, Integer > symTab );
+    void execute( Frame frame );
 }
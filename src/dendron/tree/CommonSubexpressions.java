@@ -0,0 +1,318 @@
+package dendron.tree;
+
+import dendron.machine.Symbols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An optimization pass that computes each repeated subexpression only
+ * once, even across statements. Expressions are numbered by structure
+ * (operator plus the numbers of their operands, with + and * operands
+ * in either order counting as the same); a variable read is numbered by
+ * the variable and how many times it has been assigned so far, so an
+ * assignment to one of an expression's inputs makes later copies of it
+ * a different expression.
+ * <p>
+ * When an operation occurs more than once with the same number, the
+ * first occurrence is moved into an assignment to a new compiler
+ * temporary just before its statement, and every occurrence is replaced
+ * by a read of the temporary. Only expressions that cannot report an
+ * error are moved, so errors happen exactly as before. Temporaries are
+ * hidden from the final variable dump unless it is asked to show them.
+ *
+ * @see Symbols#newTemporary()
+ */
+public class CommonSubexpressions {
+
+  /**
+   * The structure of one expression: its operator and the numbers
+   * of its operands (or slot and version, or constant value).
+   */
+  private static final class Key {
+    final char op;
+    final int a;
+    final int b;
+
+    Key(char op, int a, int b) {
+      this.op = op;
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return op == k.op && a == k.a && b == k.b;
+    }
+
+    @Override
+    public int hashCode() {
+      return (op * 31 + a) * 31 + b;
+    }
+  }
+
+  private final Symbols symbols;
+  private final int slots;
+  private final Map<Key, Integer> numbers;
+  private int[] counts;
+  private int[] versions;
+  private Map<ExpressionNode, Integer> numbered;
+  private int reused;
+
+  /**
+   * @param symbols the program's variable table, where the
+   *                temporaries will be added
+   */
+  public CommonSubexpressions(Symbols symbols) {
+    this.symbols = symbols;
+    this.slots = symbols.size();
+    this.numbers = new HashMap<>();
+    this.counts = new int[64];
+    this.reused = 0;
+  }
+
+  /**
+   * Replace repeated subexpressions with temporaries.
+   *
+   * @param actions the statements, in execution order
+   * @return new statements with the same effect; the input is unchanged
+   */
+  public List<ActionNode> eliminate(List<ActionNode> actions) {
+    int[] firstAssigned = new int[slots];
+    Arrays.fill(firstAssigned, Integer.MAX_VALUE);
+    for(int i = 0; i < actions.size(); i++) {
+      if(actions.get(i) instanceof Nodes.Assignment) {
+        int slot = ((Nodes.Assignment) actions.get(i)).slot;
+        firstAssigned[slot] = Math.min(firstAssigned[slot], i);
+      }
+    }
+
+    // First pass: count the independent occurrences of each expression.
+    versions = new int[slots];
+    for(ActionNode action : actions) {
+      ExpressionNode val = value(action);
+      if(val != null) {
+        numbered = new IdentityHashMap<>();
+        number(val);
+        count(val);
+      }
+      assigned(action);
+    }
+
+    // Second pass: rewrite, numbering everything exactly as before.
+    versions = new int[slots];
+    Map<Integer, Integer> temporaries = new HashMap<>();
+    List<ActionNode> result = new ArrayList<>(actions.size());
+    for(int i = 0; i < actions.size(); i++) {
+      ActionNode action = actions.get(i);
+      ExpressionNode val = value(action);
+      if(val != null) {
+        numbered = new IdentityHashMap<>();
+        number(val);
+        ExpressionNode rewritten =
+            rewrite(val, i, firstAssigned, temporaries, result);
+        if(rewritten != val) {
+          action = action instanceof Nodes.Assignment ?
+              new Nodes.Assignment(((Nodes.Assignment) action).name,
+                  ((Nodes.Assignment) action).slot, rewritten) :
+              new Nodes.Print(rewritten);
+        }
+      }
+      result.add(action);
+      assigned(action);
+    }
+    numbered = null;
+    return result;
+  }
+
+  /**
+   * @return how many repeated computations this pass has replaced
+   *         with reads of a temporary
+   */
+  public int getReused() {
+    return reused;
+  }
+
+  private static ExpressionNode value(ActionNode action) {
+    if(action instanceof Nodes.Assignment) {
+      return ((Nodes.Assignment) action).val;
+    }
+    if(action instanceof Nodes.Print) {
+      return ((Nodes.Print) action).val;
+    }
+    return null;
+  }
+
+  private void assigned(ActionNode action) {
+    if(action instanceof Nodes.Assignment) {
+      versions[((Nodes.Assignment) action).slot]++;
+    }
+  }
+
+  /**
+   * Give an expression and all its parts their numbers. The parts are
+   * numbered in postorder, keeping their numbers on a stack, so deep
+   * expressions do not exhaust the call stack.
+   */
+  private void number(ExpressionNode expr) {
+    ArrayList<Integer> operands = new ArrayList<>();
+    for(ExpressionNode node : Nodes.postorder(expr)) {
+      operands.add(numberNode(node, operands));
+    }
+  }
+
+  /**
+   * Give one part of an expression its number.
+   *
+   * @param expr the part
+   * @param operands the numbers of the parts before it in postorder;
+   *                 its operands' are taken off the end
+   * @return its number, or -1 if it has none
+   */
+  private int numberNode(ExpressionNode expr, List<Integer> operands) {
+    Key key;
+    if(expr instanceof Nodes.Constant) {
+      key = new Key('C', ((Nodes.Constant) expr).val, 0);
+    }
+    else if(expr instanceof Nodes.Load) {
+      int slot = ((Nodes.Load) expr).slot;
+      key = new Key('L', slot, versions[slot]);
+    }
+    else if(expr instanceof Nodes.BinaryOperation) {
+      Nodes.BinaryOperation op = (Nodes.BinaryOperation) expr;
+      int b = operands.remove(operands.size() - 1);
+      int a = operands.remove(operands.size() - 1);
+      char o = op.o.charAt(0);
+      if((o == '+' || o == '*') && a > b) {
+        int t = a;
+        a = b;
+        b = t;
+      }
+      key = new Key(o, a, b);
+    }
+    else if(expr instanceof Nodes.UnaryOperation) {
+      Nodes.UnaryOperation op = (Nodes.UnaryOperation) expr;
+      key = new Key(op.o.charAt(0), operands.remove(operands.size() - 1), -1);
+    }
+    else {
+      return -1;
+    }
+    Integer n = numbers.get(key);
+    if(n == null) {
+      n = numbers.size();
+      numbers.put(key, n);
+      if(n == counts.length) {
+        counts = Arrays.copyOf(counts, n * 2);
+      }
+    }
+    numbered.put(expr, n);
+    return n;
+  }
+
+  /**
+   * Count an occurrence of an expression, and of its parts only if
+   * this is its first occurrence (later ones will be replaced whole).
+   */
+  private void count(ExpressionNode expr) {
+    ArrayList<ExpressionNode> pending = new ArrayList<>();
+    pending.add(expr);
+    while(!pending.isEmpty()) {
+      ExpressionNode node = pending.remove(pending.size() - 1);
+      if(!isOperation(node) || ++counts[numbered.get(node)] > 1) {
+        continue;
+      }
+      if(node instanceof Nodes.BinaryOperation) {
+        pending.add(((Nodes.BinaryOperation) node).c2);
+        pending.add(((Nodes.BinaryOperation) node).c1);
+      }
+      else {
+        pending.add(((Nodes.UnaryOperation) node).c);
+      }
+    }
+  }
+
+  /**
+   * Replace the repeated parts of an expression with reads of
+   * temporaries, adding the assignments to new temporaries to the
+   * result. This is a depth-first walk with an explicit stack: a part
+   * is entered (and replaced whole if its temporary already exists),
+   * then its operands are rewritten left to right, then it is left,
+   * which is when it may be moved into a new temporary. A node is on
+   * the stack once to be entered and again, marked, to be left.
+   */
+  private ExpressionNode rewrite(ExpressionNode expr, int statement,
+                                 int[] firstAssigned,
+                                 Map<Integer, Integer> temporaries,
+                                 List<ActionNode> result) {
+    ArrayList<ExpressionNode> pending = new ArrayList<>();
+    BitSet leaving = new BitSet();
+    ArrayList<ExpressionNode> rewritten = new ArrayList<>();
+    pending.add(expr);
+    while(!pending.isEmpty()) {
+      int top = pending.size() - 1;
+      ExpressionNode node = pending.remove(top);
+      if(!isOperation(node)) {
+        rewritten.add(node);
+        continue;
+      }
+      int n = numbered.get(node);
+      if(!leaving.get(top)) {
+        Integer temporary = temporaries.get(n);
+        if(temporary != null) {
+          reused++;
+          rewritten.add(new Nodes.Load(symbols.name(temporary), temporary));
+          continue;
+        }
+        pending.add(node);
+        leaving.set(top);
+        if(node instanceof Nodes.BinaryOperation) {
+          pending.add(((Nodes.BinaryOperation) node).c2);
+          pending.add(((Nodes.BinaryOperation) node).c1);
+        }
+        else {
+          pending.add(((Nodes.UnaryOperation) node).c);
+        }
+        continue;
+      }
+      leaving.clear(top);
+      ExpressionNode done;
+      if(node instanceof Nodes.BinaryOperation) {
+        Nodes.BinaryOperation op = (Nodes.BinaryOperation) node;
+        ExpressionNode c2 = rewritten.remove(rewritten.size() - 1);
+        ExpressionNode c1 = rewritten.remove(rewritten.size() - 1);
+        done = c1 == op.c1 && c2 == op.c2 ?
+            node : new Nodes.BinaryOperation(op.o, c1, c2);
+      }
+      else {
+        Nodes.UnaryOperation op = (Nodes.UnaryOperation) node;
+        ExpressionNode c = rewritten.remove(rewritten.size() - 1);
+        done = c == op.c ? node : new Nodes.UnaryOperation(op.o, c);
+      }
+      if(counts[n] < 2 ||
+          DeadStoreEliminator.canFail(node, statement, firstAssigned)) {
+        rewritten.add(done);
+        continue;
+      }
+      int slot = symbols.newTemporary();
+      String name = symbols.name(slot);
+      result.add(new Nodes.Assignment(name, slot, done, true));
+      temporaries.put(n, slot);
+      rewritten.add(new Nodes.Load(name, slot));
+    }
+    return rewritten.get(0);
+  }
+
+  private static boolean isOperation(ExpressionNode expr) {
+    return expr instanceof Nodes.BinaryOperation ||
+        expr instanceof Nodes.UnaryOperation;
+  }
+}
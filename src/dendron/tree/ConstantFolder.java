@@ -0,0 +1,119 @@
+package dendron.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An optimization pass over a program's statements that folds
+ * operations on constants into a single constant and propagates the
+ * values of variables that are known to hold a constant into later
+ * statements that read them.
+ * <p>
+ * The pass never changes what a program does. A division by a constant
+ * zero is left in place so that DIVIDE_BY_ZERO is still reported when
+ * that statement runs, and reads of variables with no known value
+ * (including uninitialized ones) are left alone. Every assignment is
+ * kept, so the final variable values are unchanged.
+ */
+public class ConstantFolder {
+
+  /** the known value of each slot, valid where known[slot] is set */
+  private int[] values;
+  private boolean[] known;
+
+  /**
+   * @param slots the number of variable slots the program uses
+   */
+  public ConstantFolder(int slots) {
+    values = new int[slots];
+    known = new boolean[slots];
+  }
+
+  /**
+   * Fold and propagate constants through a whole program.
+   *
+   * @param actions the statements, in execution order
+   * @return new statements with the same effect; the input is unchanged
+   */
+  public List<ActionNode> fold(List<ActionNode> actions) {
+    List<ActionNode> result = new ArrayList<>(actions.size());
+    for(ActionNode action : actions) {
+      result.add(fold(action));
+    }
+    return result;
+  }
+
+  /**
+   * Fold one statement, then record what it makes known.
+   *
+   * @param action a statement
+   * @return an equivalent statement
+   */
+  public ActionNode fold(ActionNode action) {
+    if(action instanceof Nodes.Assignment) {
+      Nodes.Assignment assignment = (Nodes.Assignment) action;
+      ExpressionNode val = fold(assignment.val);
+      known[assignment.slot] = val instanceof Nodes.Constant;
+      if(known[assignment.slot]) {
+        values[assignment.slot] = ((Nodes.Constant) val).val;
+      }
+      return new Nodes.Assignment(assignment.name, assignment.slot, val,
+          assignment.temporary);
+    }
+    if(action instanceof Nodes.Print) {
+      return new Nodes.Print(fold(((Nodes.Print) action).val));
+    }
+    return action;
+  }
+
+  /**
+   * Fold an expression bottom-up, keeping the folded operands on a
+   * stack, so that deep expressions do not exhaust the call stack.
+   *
+   * @param expr an expression
+   * @return an equivalent expression with constant parts folded
+   */
+  private ExpressionNode fold(ExpressionNode expr) {
+    ArrayList<ExpressionNode> folded = new ArrayList<>();
+    for(ExpressionNode node : Nodes.postorder(expr)) {
+      folded.add(foldNode(node, folded));
+    }
+    return folded.get(0);
+  }
+
+  /**
+   * @param expr a node of an expression
+   * @param folded the folded forms of the nodes before it in postorder;
+   *               its operands' are taken off the end
+   * @return an equivalent node, with the folded operands
+   */
+  private ExpressionNode foldNode(ExpressionNode expr,
+                                  List<ExpressionNode> folded) {
+    if(expr instanceof Nodes.Load) {
+      Nodes.Load load = (Nodes.Load) expr;
+      return known[load.slot] ? new Nodes.Constant(values[load.slot]) : expr;
+    }
+    if(expr instanceof Nodes.BinaryOperation) {
+      Nodes.BinaryOperation op = (Nodes.BinaryOperation) expr;
+      ExpressionNode c2 = folded.remove(folded.size() - 1);
+      ExpressionNode c1 = folded.remove(folded.size() - 1);
+      if(c1 instanceof Nodes.Constant && c2 instanceof Nodes.Constant &&
+          !(op.o.equals("/") && ((Nodes.Constant) c2).val == 0)) {
+        return new Nodes.Constant(
+            new Nodes.BinaryOperation(op.o, c1, c2).evaluate(null));
+      }
+      return c1 == op.c1 && c2 == op.c2 ?
+          expr : new Nodes.BinaryOperation(op.o, c1, c2);
+    }
+    if(expr instanceof Nodes.UnaryOperation) {
+      Nodes.UnaryOperation op = (Nodes.UnaryOperation) expr;
+      ExpressionNode c = folded.remove(folded.size() - 1);
+      if(c instanceof Nodes.Constant) {
+        return new Nodes.Constant(
+            new Nodes.UnaryOperation(op.o, c).evaluate(null));
+      }
+      return c == op.c ? expr : new Nodes.UnaryOperation(op.o, c);
+    }
+    return expr;
+  }
+}
@@ -0,0 +1,158 @@
+package dendron.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An optimization pass that removes assignments whose values can never
+ * be observed. A backward liveness analysis over the statements finds,
+ * for each assignment, whether any later statement reads the variable
+ * before it is assigned again.
+ * <p>
+ * Print statements are always kept, and so is any assignment whose
+ * expression could report an error (a division by something other than
+ * a nonzero constant, or a read of a variable that may not have been
+ * assigned yet), so errors happen exactly as before. Normally the
+ * last assignment to each variable is kept too, because its value
+ * shows up in the final symbol table dump; in printed-only mode that
+ * dump is not considered observable.
+ */
+public class DeadStoreEliminator {
+
+  private final int slots;
+  private final boolean printedOnly;
+  private int removed;
+
+  /**
+   * @param slots the number of variable slots the program uses
+   * @param printedOnly true if only printed values are observable
+   */
+  public DeadStoreEliminator(int slots, boolean printedOnly) {
+    this.slots = slots;
+    this.printedOnly = printedOnly;
+    this.removed = 0;
+  }
+
+  /**
+   * Remove the dead assignments from a program.
+   *
+   * @param actions the statements, in execution order
+   * @return the statements that remain; the input is unchanged
+   */
+  public List<ActionNode> eliminate(List<ActionNode> actions) {
+    // Forward: where is each variable first assigned?
+    int[] firstAssigned = new int[slots];
+    Arrays.fill(firstAssigned, Integer.MAX_VALUE);
+    for(int i = 0; i < actions.size(); i++) {
+      ActionNode action = actions.get(i);
+      if(action instanceof Nodes.Assignment) {
+        int slot = ((Nodes.Assignment) action).slot;
+        firstAssigned[slot] = Math.min(firstAssigned[slot], i);
+      }
+    }
+
+    // Backward: which variables are live after each statement?
+    BitSet live = new BitSet(slots);
+    BitSet assignedLater = new BitSet(slots);
+    List<ActionNode> kept = new ArrayList<>(actions.size());
+    for(int i = actions.size() - 1; i >= 0; i--) {
+      ActionNode action = actions.get(i);
+      ExpressionNode val;
+      if(action instanceof Nodes.Assignment) {
+        Nodes.Assignment assignment = (Nodes.Assignment) action;
+        val = assignment.val;
+        boolean observed = live.get(assignment.slot) ||
+            (!printedOnly && !assignedLater.get(assignment.slot));
+        if(!observed && !canFail(val, i, firstAssigned)) {
+          removed++;
+          continue;
+        }
+        live.clear(assignment.slot);
+        assignedLater.set(assignment.slot);
+      }
+      else if(action instanceof Nodes.Print) {
+        val = ((Nodes.Print) action).val;
+      }
+      else {
+        kept.add(action);
+        live.set(0, slots);
+        continue;
+      }
+      addUses(val, live);
+      kept.add(action);
+    }
+    Collections.reverse(kept);
+    return kept;
+  }
+
+  /**
+   * @return how many assignments this pass has removed so far
+   */
+  public int getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Mark every variable an expression reads. The nodes are visited
+   * from a stack of their own rather than by recursion, so deep
+   * expressions do not exhaust the call stack.
+   */
+  private static void addUses(ExpressionNode expr, BitSet live) {
+    ArrayList<ExpressionNode> pending = new ArrayList<>();
+    pending.add(expr);
+    while(!pending.isEmpty()) {
+      ExpressionNode node = pending.remove(pending.size() - 1);
+      if(node instanceof Nodes.Load) {
+        live.set(((Nodes.Load) node).slot);
+      }
+      else if(node instanceof Nodes.BinaryOperation) {
+        pending.add(((Nodes.BinaryOperation) node).c1);
+        pending.add(((Nodes.BinaryOperation) node).c2);
+      }
+      else if(node instanceof Nodes.UnaryOperation) {
+        pending.add(((Nodes.UnaryOperation) node).c);
+      }
+    }
+  }
+
+  /**
+   * Decide whether evaluating an expression could report an error.
+   * Like addUses, this walks the expression with an explicit stack.
+   *
+   * @param expr the expression
+   * @param statement the index of the statement containing it
+   * @param firstAssigned the index of each variable's first assignment
+   * @return false only if the expression certainly evaluates quietly
+   */
+  static boolean canFail(ExpressionNode expr, int statement, int[] firstAssigned) {
+    ArrayList<ExpressionNode> pending = new ArrayList<>();
+    pending.add(expr);
+    while(!pending.isEmpty()) {
+      ExpressionNode node = pending.remove(pending.size() - 1);
+      if(node instanceof Nodes.Load) {
+        if(firstAssigned[((Nodes.Load) node).slot] >= statement) {
+          return true;
+        }
+      }
+      else if(node instanceof Nodes.BinaryOperation) {
+        Nodes.BinaryOperation op = (Nodes.BinaryOperation) node;
+        if(op.o.equals("/") && !(op.c2 instanceof Nodes.Constant &&
+            ((Nodes.Constant) op.c2).val != 0)) {
+          return true;
+        }
+        pending.add(op.c2);
+        pending.add(op.c1);
+      }
+      else if(node instanceof Nodes.UnaryOperation) {
+        pending.add(((Nodes.UnaryOperation) node).c);
+      }
+      else if(!(node instanceof Nodes.Constant)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
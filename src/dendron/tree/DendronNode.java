@@ -1,6 +1,8 @@
 package dendron.tree;
 
+import java.util.ArrayList;
 import java.util.List;
+import dendron.machine.Emitter;
 import dendron.machine.Machine;
 
 /**
@@ -18,12 +20,23 @@ public interface DendronNode {
      */
     void infixDisplay();
 
+    /**
+     * Append to an Emitter the instructions that, when executed,
+     * represent the intent of this DendronNode and its descendants.
+     * @param out where the instructions go
+     */
+    void emit( Emitter out );
+
     /**
      * Generate a list of instructions that, when executed, represents
      * the intent of this DendronNode and its descendants.
      * @return the Machine Instructions for this node
      */
-    List<  Machine.Instruction> emit();
+    default List<  Machine.Instruction> emit() {
+        List< Machine.Instruction > code = new ArrayList<>();
+        emit( code::add );
+        return code;
+    }
 }
 
 
@@ -1,11 +1,11 @@
 package dendron.tree;
 
-import java.util.Map;
+import dendron.machine.Frame;
 
 /**
  * An abstraction for all DendronNodes that can be evaluated to
  * get a value back. By definition they do not alter the "state"
- * (symbol table) of the program when evaluated.
+ * (variable frame) of the program when evaluated.
  *
  * @author James Heliotis
  */
@@ -13,8 +13,8 @@ public interface ExpressionNode extends DendronNode {
     /**
      * Evaluate the expression represented by this node.
      *
-     * @param symTab symbol table, if needed, to fetch variable values
+     * @param frame variable storage, if needed, to fetch variable values
      * @return the result of the evaluation
      */
-    int evaluate( Map< String, Integer > symTab );
+    int evaluate( Frame frame );
 }
@@ -1,40 +1,111 @@
 package dendron.tree;
 
 import dendron.Errors;
+import dendron.machine.Emitter;
+import dendron.machine.Frame;
 import dendron.machine.Machine;
+import dendron.machine.OutputSink;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class Nodes {
 
+  /**
+   * List the nodes of an expression in postorder, operands before
+   * their operator, with an explicit stack rather than recursion, so
+   * that arbitrarily deep expressions do not exhaust the Java call
+   * stack. A pass that works bottom-up can then go through the list
+   * keeping its results for operands on a stack of its own: each
+   * operator finds its operands' results on top, the right one above
+   * the left.
+   *
+   * @param root the expression
+   * @return its nodes, each after all of its operands
+   */
+  static List<ExpressionNode> postorder(ExpressionNode root) {
+    // Reverse postorder: visit a node, then its right operand, then
+    // its left; reading the visits backwards gives the postorder.
+    ArrayList<ExpressionNode> pending = new ArrayList<>();
+    ArrayList<ExpressionNode> done = new ArrayList<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      ExpressionNode node = pending.remove(pending.size() - 1);
+      done.add(node);
+      if (node instanceof BinaryOperation) {
+        pending.add(((BinaryOperation) node).c1);
+        pending.add(((BinaryOperation) node).c2);
+      } else if (node instanceof UnaryOperation) {
+        pending.add(((UnaryOperation) node).c);
+      }
+    }
+    Collections.reverse(done);
+    return done;
+  }
+
+  /**
+   * Emit the code for an expression in postorder, without recursion.
+   *
+   * @param root the expression
+   * @param out where the instructions go
+   */
+  static void emit(ExpressionNode root, Emitter out) {
+    for (ExpressionNode node : postorder(root)) {
+      if (node instanceof BinaryOperation) {
+        ((BinaryOperation) node).emitOperator(out);
+      } else if (node instanceof UnaryOperation) {
+        ((UnaryOperation) node).emitOperator(out);
+      } else {
+        node.emit(out);
+      }
+    }
+  }
+
   /**
    * Creates the Action for assignment
    * This action is created when an action tree starts with the character ":="
    */
   public static class Assignment implements ActionNode {
     String name;
+    int slot;
     ExpressionNode val;
+    boolean temporary;
 
     /**
-     * @param name The key for the symbol table
+     * @param name The name of the target variable
+     * @param slot The frame slot resolved for the name
      * @param val The expression that when evaluated will be put
-     *            in to the symbol table
+     *            in to the frame
      */
-    public Assignment(String name, ExpressionNode val) {
+    public Assignment(String name, int slot, ExpressionNode val) {
+      this(name, slot, val, false);
+    }
+
+    /**
+     * @param name The name of the target variable
+     * @param slot The frame slot resolved for the name
+     * @param val The expression that when evaluated will be put
+     *            in to the frame
+     * @param temporary true if the variable is a compiler temporary,
+     *                  so its STORE is marked as one
+     */
+    public Assignment(String name, int slot, ExpressionNode val,
+                      boolean temporary) {
       this.name = name;
+      this.slot = slot;
       this.val = val;
+      this.temporary = temporary;
     }
 
     /**
-     * Puts the evaluated value into the symbol table stored under
-     * the given name found in the constructor.
-     * @param symTab the table where variable values are stored
+     * Puts the evaluated value into the frame slot of
+     * the variable given in the constructor.
+     * @param frame the storage where variable values are kept
      */
     @Override
-    public void execute(Map<String, Integer> symTab) {
-      symTab.put(name, val.evaluate(symTab));
+    public void execute(Frame frame) {
+      frame.store(slot, val.evaluate(frame));
     }
 
     /**
@@ -52,13 +123,12 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>(val.emit());
-      i.add(new Machine.Store(name));
-      return i;
+    public void emit(Emitter out) {
+      Nodes.emit(val, out);
+      out.emit(new Machine.Store(name, slot, temporary));
     }
   }
 
@@ -79,11 +149,11 @@ public class Nodes {
 
     /**
      * Prints the evaluated output of the given expression
-     * @param symTab the table where variable values are stored
+     * @param frame the storage where variable values are kept
      */
     @Override
-    public void execute(Map<String, Integer> symTab) {
-      System.out.println("=== " + val.evaluate(symTab));
+    public void execute(Frame frame) {
+      OutputSink.println(System.out, "=== ", val.evaluate(frame));
     }
 
     /**
@@ -101,13 +171,12 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>(val.emit());
-      i.add(new Machine.Print());
-      return i;
+    public void emit(Emitter out) {
+      Nodes.emit(val, out);
+      out.emit(new Machine.Print());
     }
   }
 
@@ -115,7 +184,7 @@ public class Nodes {
    * Creates a constant then when evaluated returns the given constant
    */
   public static class Constant implements ExpressionNode {
-    private int val;
+    int val;
 
     /**
      *
@@ -127,11 +196,11 @@ public class Nodes {
 
     /**
      *
-     * @param symTab symbol table, if needed, to fetch variable values
+     * @param frame variable storage, if needed, to fetch variable values
      * @return The constant value passed in
      */
     @Override
-    public int evaluate(Map<String, Integer> symTab) {
+    public int evaluate(Frame frame) {
       return val;
     }
 
@@ -144,44 +213,40 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>(0);
-      i.add(new Machine.PushConst(val));
-      return i;
+    public void emit(Emitter out) {
+      out.emit(new Machine.PushConst(val));
     }
   }
 
   /**
-   * Loads a given key from a table
+   * Loads a given variable from the frame
    */
   public static class Load implements ExpressionNode {
-    private String name;
+    String name;
+    int slot;
 
     /**
      *
-     * @param name the key to load from the table
+     * @param name the name of the variable to load
+     * @param slot the frame slot resolved for the name
      */
-    public Load(String name) {
+    public Load(String name, int slot) {
       this.name = name;
+      this.slot = slot;
     }
 
     /**
      *
-     * @param symTab symbol table, if needed, to fetch variable values
-     * @return the value of the passed in key from the symbol table
+     * @param frame variable storage, if needed, to fetch variable values
+     * @return the value of the variable; an uninitialized variable
+     *         is reported by the frame
      */
     @Override
-    public int evaluate(Map<String, Integer> symTab) {
-      try {
-        return symTab.get(name);
-      }
-      catch (Exception e) {
-        Errors.report(Errors.Type.UNINITIALIZED, name);
-        return 0;
-      }
+    public int evaluate(Frame frame) {
+      return frame.load(slot);
     }
 
     /**
@@ -197,13 +262,11 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>(0);
-      i.add(new Machine.Load(name ));
-      return i;
+    public void emit(Emitter out) {
+      out.emit(new Machine.Load(name, slot));
     }
   }
 
@@ -230,21 +293,21 @@ public class Nodes {
 
     /**
      *
-     * @param symTab symbol table, if needed, to fetch variable values
+     * @param frame variable storage, if needed, to fetch variable values
      * @return result of a given operation and the 2 passed in expressions
      */
     @Override
-    public int evaluate(Map<String, Integer> symTab) {
+    public int evaluate(Frame frame) {
       switch (o) {
         case "+":
-          return c1.evaluate(symTab) + c2.evaluate(symTab);
+          return c1.evaluate(frame) + c2.evaluate(frame);
         case "-":
-          return c1.evaluate(symTab) - c2.evaluate(symTab);
+          return c1.evaluate(frame) - c2.evaluate(frame);
         case "*":
-          return c1.evaluate(symTab) * c2.evaluate(symTab);
+          return c1.evaluate(frame) * c2.evaluate(frame);
         case "/":
-          int n = c1.evaluate(symTab);
-          int d = c2.evaluate(symTab);
+          int n = c1.evaluate(frame);
+          int d = c2.evaluate(frame);
           if(d == 0) Errors.report(Errors.Type.DIVIDE_BY_ZERO, n + " / " + d);
           return  n / d;
         default:
@@ -272,31 +335,34 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>();
-      i.addAll(c1.emit());
-      i.addAll(c2.emit());
+    public void emit(Emitter out) {
+      Nodes.emit(this, out);
+    }
+
+    /**
+     * Emit the instruction for the operator alone, its operands'
+     * code having been emitted already
+     */
+    void emitOperator(Emitter out) {
       switch (o) {
         case "+":
-          i.add(new Machine.Add());
+          out.emit(new Machine.Add());
           break;
         case "-":
-          i.add(new Machine.Subtract());
+          out.emit(new Machine.Subtract());
           break;
         case "*":
-          i.add(new Machine.Multiply());
+          out.emit(new Machine.Multiply());
           break;
         case "/":
-          i.add(new Machine.Divide());
+          out.emit(new Machine.Divide());
           break;
         default:
           Errors.report(Errors.Type.ILLEGAL_VALUE, o);
       }
-
-      return i;
     }
 
   }
@@ -321,16 +387,16 @@ public class Nodes {
 
     /**
      *
-     * @param symTab symbol table, if needed, to fetch variable values
+     * @param frame variable storage, if needed, to fetch variable values
      * @return result of a given operation and the passed in expression
      */
     @Override
-    public int evaluate(Map<String, Integer> symTab) {
+    public int evaluate(Frame frame) {
       switch (o) {
         case "_":
-          return -c.evaluate(symTab);
+          return -c.evaluate(frame);
         case "#":
-          return (int) Math.sqrt(c.evaluate(symTab));
+          return (int) Math.sqrt(c.evaluate(frame));
         default:
           Errors.report(Errors.Type.ILLEGAL_VALUE, o);
           return 0;
@@ -353,23 +419,28 @@ public class Nodes {
     /**
      * Creates Instructions for the dendron machine
      *
-     * @return Instructions for the dendron machine to run
+     * @param out where the instructions for the dendron machine go
      */
     @Override
-    public List<Machine.Instruction> emit() {
-      ArrayList<Machine.Instruction> i = new ArrayList<>();
-      i.addAll(c.emit());
+    public void emit(Emitter out) {
+      Nodes.emit(this, out);
+    }
+
+    /**
+     * Emit the instruction for the operator alone, its operand's
+     * code having been emitted already
+     */
+    void emitOperator(Emitter out) {
       switch (o) {
         case "_":
-          i.add(new Machine.Negate());
+          out.emit(new Machine.Negate());
           break;
         case "#":
-          i.add(new Machine.SquareRoot());
+          out.emit(new Machine.SquareRoot());
           break;
         default:
           Errors.report(Errors.Type.ILLEGAL_VALUE, o);
       }
-      return i;
     }
 
   }
@@ -0,0 +1,52 @@
+package dendron.tree;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The optimization passes ParseTree can apply to a program before
+ * interpreting or compiling it. Enabled passes run in the order
+ * they are declared here.
+ *
+ * @see ParseTree#setOptimizations(Set)
+ */
+public enum Optimization {
+  /** fold constant operations and propagate constant variables */
+  CONSTANT_FOLDING,
+  /** compute repeated subexpressions once, into hidden temporaries */
+  COMMON_SUBEXPRESSIONS,
+  /** remove assignments whose values are never observed */
+  DEAD_STORES,
+  /**
+   * with DEAD_STORES, treat only printed values as observable, so
+   * the final variable values need not be kept
+   */
+  PRINTED_ONLY,
+  /**
+   * when compiling to a Program, fuse common instruction sequences
+   * into superinstructions
+   */
+  SUPERINSTRUCTIONS;
+
+  /**
+   * Read the default set of passes from the system properties.
+   * dendron.optimize holds a comma-separated list of pass names in any
+   * case, with - in place of _ allowed (e.g. "constant-folding,dead-stores");
+   * dendron.fold=true also enables CONSTANT_FOLDING.
+   *
+   * @return the passes named by the properties
+   */
+  public static Set<Optimization> fromProperties() {
+    Set<Optimization> passes = EnumSet.noneOf(Optimization.class);
+    String names = System.getProperty("dendron.optimize", "");
+    for(String name : names.split(",")) {
+      if(!name.trim().isEmpty()) {
+        passes.add(valueOf(name.trim().toUpperCase().replace('-', '_')));
+      }
+    }
+    if(Boolean.getBoolean("dendron.fold")) {
+      passes.add(CONSTANT_FOLDING);
+    }
+    return passes;
+  }
+}
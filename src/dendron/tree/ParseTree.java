@@ -1,13 +1,22 @@
 package dendron.tree;
 
+import dendron.DendronException;
 import dendron.Errors;
+import dendron.machine.Emitter;
+import dendron.machine.Frame;
 import dendron.machine.Machine;
+import dendron.machine.Program;
+import dendron.machine.RegisterProgram;
+import dendron.machine.Superinstructions;
+import dendron.machine.Symbols;
 
 import javax.sound.midi.Soundbank;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 
 /**
  * Operations that are done on a Dendron code parse tree.
@@ -18,120 +27,236 @@ import java.util.Map;
  */
 public class ParseTree {
 
-  private Map<String, Integer> sysTab;
-  private List<String> cAction;
+  private Symbols symbols;
   ArrayList<ActionNode> allActions;
 
+  /**
+   * the passes interpret() and compile() apply first; the default
+   * comes from the system properties
+   */
+  private Set<Optimization> optimizations = Optimization.fromProperties();
+
+  /** the statements after the passes last applied, and those passes */
+  private List<ActionNode> optimized;
+  private Set<Optimization> optimizedWith;
+
+  /*
+   * The parse cursor: tokens[pos] is the next token to consume, and
+   * the statement being parsed ends just before tokens[end].
+   */
+  private List<String> tokens;
+  private int pos;
+  private int end;
+
   /**
    * Parse the entire list of program tokens. The program is a
    * sequence of actions (statements), each of which modifies something
    * in the program's set of variables. The resulting parse tree is
-   * stored internally.
+   * stored internally. Every variable name is resolved to a frame slot
+   * as it is parsed.
+   * <p>
+   * Parsing walks a cursor over the token list once; the list is only
+   * copied if it does not support fast random access.
    *
    * @param program the token list (Strings)
+   * @throws DendronException.Syntax for the first error found, with
+   *         the statement and token it was found at
    */
   public ParseTree(List<String> program) {
-    cAction = new ArrayList<>(0);
-    allActions = new ArrayList<>(0);
-    sysTab = new HashMap<>();
+    this(program, null);
+  }
 
-    ArrayList<String> currentAction = new ArrayList<>(0);
+  /**
+   * Parse the entire list of program tokens, collecting every syntax
+   * error rather than stopping at the first. A statement with an error
+   * is left out of the tree and parsing carries on with the next one,
+   * so one pass reports them all. Tokens before the first statement
+   * count as a statement of their own, which is always in error.
+   *
+   * @param program the token list (Strings)
+   * @param errors where the errors go, in the order found, each with
+   *               its statement and token; if null, the first error is
+   *               thrown instead
+   */
+  public ParseTree(List<String> program, List<DendronException> errors) {
+    this(new Symbols());
+    List<String> tokens = program instanceof RandomAccess ?
+        program : new ArrayList<>(program);
 
-    for(int i = 0; i < program.size(); i++) {
-      if(program.get(i).equals(":=") || program.get(i).equals("@")) {
-        if(currentAction.isEmpty()) {
-          currentAction.add(program.get(i));
-        }
-        else {
-          allActions.add(parseAction(currentAction));
-          if(cAction.size() != 0) Errors.report(Errors.Type.EXTRA_TOKENS, cAction.size() + " Tokens remain.");
-          currentAction.clear();
-          currentAction.add(program.get(i));
-        }
+    int size = tokens.size();
+    int start = 0;
+    for(int statement = 0; start < size; statement++) {
+      int stop = start + 1;
+      while(stop < size && !isStatementStart(tokens.get(stop))) {
+        stop++;
       }
-      else {
-        if(currentAction.isEmpty()) Errors.report(Errors.Type.ILLEGAL_VALUE, program.get(i));
-        currentAction.add(program.get(i));
+      try {
+        allActions.add(parseStatement(tokens, start, stop));
+      } catch(DendronException e) {
+        e.atStatement(statement);
+        if(errors == null) {
+          throw e;
+        }
+        errors.add(e);
       }
+      start = stop;
     }
-    allActions.add(parseAction(currentAction));
-    if(cAction.size() != 0) Errors.report(Errors.Type.EXTRA_TOKENS, cAction.size() + " Tokens remain.");
+  }
 
+  /**
+   * Create a tree with no statements yet, whose variables are
+   * resolved in the given table. Used when statements arrive
+   * one at a time.
+   *
+   * @param symbols the variable table to resolve names in
+   */
+  ParseTree(Symbols symbols) {
+    allActions = new ArrayList<>(0);
+    this.symbols = symbols;
+  }
 
+  /**
+   * Parse one complete action (statement) from part of a token list.
+   *
+   * @param tokens the token list
+   * @param start the index of the statement's first token
+   * @param stop the index just after the statement's last token
+   * @return a parse tree for the action
+   */
+  ActionNode parseStatement(List<String> tokens, int start, int stop) {
+    this.tokens = tokens;
+    pos = start;
+    end = stop;
+    try {
+      ActionNode action = parseAction();
+      if(pos != end) Errors.report(Errors.Type.EXTRA_TOKENS, (end - pos) + " Tokens remain.");
+      return action;
+    } catch(DendronException e) {
+      // an illegal value has just been consumed; other errors are at the cursor
+      throw e.atToken(e.getType() == Errors.Type.ILLEGAL_VALUE ? pos - 1 : pos);
+    } finally {
+      this.tokens = null;
+    }
+  }
+
+  /**
+   * @param token a program token
+   * @return true if the token begins a new action (statement)
+   */
+  static boolean isStatementStart(String token) {
+    return token.equals(":=") || token.equals("@");
   }
 
   /**
-   * Parse the next action (statement) in the list.
-   * (This method is not required, just suggested.)
+   * Parse the action (statement) at the cursor, which ends
+   * just before the token at index end.
    *
-   * @param program the list of tokens
    * @return a parse tree for the action
    */
-  private ActionNode parseAction(List<String> program) {
-    switch (program.get(0)){
+  private ActionNode parseAction() {
+    int length = end - pos;
+    switch (tokens.get(pos++)){
       case ":=":
-        if(program.size() < 3) Errors.report(Errors.Type.PREMATURE_END, "Only " + program.size() + " token entered");
-        this.cAction = program.subList(2, program.size());
-          return new Nodes.Assignment(program.get(1), parseExpr());
+        if(length < 3) Errors.report(Errors.Type.PREMATURE_END, "Only " + length + " token entered");
+        String name = tokens.get(pos++);
+        return new Nodes.Assignment(name, symbols.intern(name), parseExpr(length));
       case "@":
-        if(program.size() < 2) Errors.report(Errors.Type.PREMATURE_END, "Only " + program.size() + " token entered");
-        this.cAction = program.subList(1, program.size());
-        return new Nodes.Print(parseExpr());
+        if(length < 2) Errors.report(Errors.Type.PREMATURE_END, "Only " + length + " token entered");
+        return new Nodes.Print(parseExpr(length));
       default:
-        Errors.report(Errors.Type.ILLEGAL_VALUE, program.get(0));
+        Errors.report(Errors.Type.ILLEGAL_VALUE, tokens.get(pos - 1));
         return null;
     }
 
   }
 
   /**
-   * Used to test if a given string is an int by converting it to a char
-   * array and then seeing if all characters are digits. The exception is the
-   * first digit when the number is negative so the first digit can be a "-"
+   * Used to test if a given string is an int by seeing if all
+   * characters are digits. The exception is the first character when
+   * the number is negative so the first character can be a "-"
    * @param s the string to test
    * @return if the string is a number
    */
   public static boolean isInt(String s) {
-    char[] chars = s.toCharArray();
-    if(!Character.isDigit(chars[0]))
-      if(chars[0] != '-') {
+    int length = s.length();
+    if(length == 0 || (length == 1 && s.charAt(0) == '-'))
+      return false;
+    if(!Character.isDigit(s.charAt(0)))
+      if(s.charAt(0) != '-') {
         return false;
       }
 
-    for(int i = 1; i < chars.length; i++) {
-      if(!Character.isDigit(chars[i]))
+    for(int i = 1; i < length; i++) {
+      if(!Character.isDigit(s.charAt(i)))
         return false;
     }
 
     return true;
   }
 
+  /**
+   * An operator whose operands are still being parsed.
+   */
+  private static class Pending {
+    final String o;
+    final boolean binary;
+    ExpressionNode first;
+
+    Pending(String o, boolean binary) {
+      this.o = o;
+      this.binary = binary;
+    }
+  }
 
   /**
-   * Parse the next expression in the list.
-   * (This method is not required, just suggested.)
+   * Parse the expression at the cursor. Prefix notation lets this
+   * be done in one left-to-right sweep with an explicit stack of
+   * operators waiting for operands, so arbitrarily deep expressions
+   * do not exhaust the Java call stack.
    *
-   * @param program the list of tokens
+   * @param length the length of the statement, for error reports
    * @return a parse tree for this expression
    */
-  private ExpressionNode parseExpr() {
-    ActionNode pAction;
-    switch (this.cAction.get(0)){
-      case "+":
-      case "-":
-      case "*":
-      case "/":
-        return new Nodes.BinaryOperation(this.cAction.remove(0), parseExpr(), parseExpr() );
-      case "_":
-      case "#":
-        return new Nodes.UnaryOperation(this.cAction.remove(0), parseExpr());
-    }
+  private ExpressionNode parseExpr(int length) {
+    ArrayDeque<Pending> pending = new ArrayDeque<>();
+    while(true) {
+      if(pos >= end) Errors.report(Errors.Type.PREMATURE_END, "Only " + length + " token entered");
+      String token = tokens.get(pos++);
+      ExpressionNode node;
+      switch (token){
+        case "+":
+        case "-":
+        case "*":
+        case "/":
+          pending.push(new Pending(token, true));
+          continue;
+        case "_":
+        case "#":
+          pending.push(new Pending(token, false));
+          continue;
+        default:
+          if(isInt(token)) {
+            node = new Nodes.Constant(Integer.parseInt(token));
+          }
+          else {
+            node = new Nodes.Load(token, symbols.intern(token));
+          }
+      }
 
-    if(isInt(this.cAction.get(0))) {
-      return new Nodes.Constant(Integer.parseInt(this.cAction.remove(0)));
+      // Hand the finished operand to the operators waiting for it.
+      while(true) {
+        Pending op = pending.peek();
+        if(op == null) return node;
+        if(op.binary && op.first == null) {
+          op.first = node;
+          break;
+        }
+        pending.pop();
+        node = op.binary ?
+            new Nodes.BinaryOperation(op.o, op.first, node) :
+            new Nodes.UnaryOperation(op.o, node);
+      }
     }
-    return new Nodes.Load(this.cAction.remove(0));
-
   }
 
   /**
@@ -149,19 +274,105 @@ public class ParseTree {
     System.out.println();
   }
 
+  /**
+   * Turn the constant folding and propagation pass on or off.
+   * The pass never changes a program's output or final variable values;
+   * displayProgram always shows the program as written.
+   *
+   * @param on true to interpret and compile the folded program
+   * @see ConstantFolder
+   */
+  public void setConstantFolding(boolean on) {
+    if(on) {
+      optimizations.add(Optimization.CONSTANT_FOLDING);
+    }
+    else {
+      optimizations.remove(Optimization.CONSTANT_FOLDING);
+    }
+  }
+
+  /**
+   * Choose the optimization passes interpret() and compile() apply.
+   * displayProgram always shows the program as written.
+   *
+   * @param passes the passes to enable; all others are disabled
+   */
+  public void setOptimizations(Set<Optimization> passes) {
+    optimizations = passes.isEmpty() ?
+        EnumSet.noneOf(Optimization.class) : EnumSet.copyOf(passes);
+  }
+
+  /**
+   * @return the statements to run or compile, after any enabled passes
+   */
+  private List<ActionNode> optimizedActions() {
+    if(optimizations.equals(optimizedWith)) {
+      return optimized;
+    }
+    List<ActionNode> actions = allActions;
+    if(optimizations.contains(Optimization.CONSTANT_FOLDING)) {
+      actions = new ConstantFolder(symbols.size()).fold(actions);
+    }
+    if(optimizations.contains(Optimization.COMMON_SUBEXPRESSIONS)) {
+      actions = new CommonSubexpressions(symbols).eliminate(actions);
+    }
+    if(optimizations.contains(Optimization.DEAD_STORES)) {
+      actions = new DeadStoreEliminator(symbols.size(),
+          optimizations.contains(Optimization.PRINTED_ONLY)).eliminate(actions);
+    }
+    optimized = actions;
+    optimizedWith = EnumSet.copyOf(optimizations);
+    return actions;
+  }
+
+  /**
+   * @return the passes interpret() and compile() apply
+   */
+  public Set<Optimization> getOptimizations() {
+    return optimizations.isEmpty() ?
+        EnumSet.noneOf(Optimization.class) : EnumSet.copyOf(optimizations);
+  }
+
   /**
    * Run the program represented by the tree directly
    *
-   * @see dendron.tree.ActionNode#execute(Map)
+   * @throws DendronException.Execution if a statement fails, with its
+   *         index and the variables as they stood
+   * @see dendron.tree.ActionNode#execute(Frame)
    */
   public void interpret() {
+    List<ActionNode> actions = optimizedActions();
+    Frame frame = new Frame(symbols);
     System.out.println("Interpreting the parse tree...");
-    for(ActionNode a : allActions) {
-      a.execute(this.sysTab);
+    int statement = 0;
+    try {
+      for(ActionNode a : actions) {
+        a.execute(frame);
+        statement++;
+      }
+    } catch(DendronException e) {
+      throw e.atStatement(statement).withVariables(frame.toMap(false));
     }
     System.out.println("Interpretation complete.");
     System.out.println();
-    Errors.dump(this.sysTab);
+    Errors.dump(frame);
+  }
+
+  /**
+   * Turn the program into specialized closures for fast repeated
+   * interpretation.
+   *
+   * @return the specialized program
+   */
+  public SpecializedProgram specialize() {
+    return SpecializedProgram.of(optimizedActions(), symbols);
+  }
+
+  /**
+   * @return the table of variables, by slot, used by this program
+   */
+  public Symbols getSymbols() {
+    return symbols;
   }
 
   /**
@@ -169,14 +380,57 @@ public class ParseTree {
    * the program represented by the tree.
    *
    * @return the Machine.Instruction list
-   * @see Machine.Instruction#execute()
+   * @see #compile(Emitter)
    */
   public List<Machine.Instruction> compile() {
     ArrayList<Machine.Instruction> i = new ArrayList<>();
-    for(ActionNode a : allActions) {
-      i.addAll(a.emit());
-    }
+    compile(i::add);
     return i;
   }
 
+  /**
+   * Generate the machine instructions for the program represented
+   * by the tree, in one pass, into the given Emitter.
+   *
+   * @param out where the instructions go
+   */
+  public void compile(Emitter out) {
+    for(ActionNode a : optimizedActions()) {
+      a.emit(out);
+    }
+  }
+
+  /**
+   * Compile the program represented by the tree into three-address
+   * code for the register machine.
+   *
+   * @return the register program
+   * @see RegisterCompiler
+   */
+  public RegisterProgram compileRegisters() {
+    List<ActionNode> actions = optimizedActions();
+    return new RegisterCompiler(symbols.names(), symbols.temporaries())
+        .compile(actions);
+  }
+
+  /**
+   * Build the compact compiled form of the program represented
+   * by the tree, without an intermediate instruction list unless
+   * superinstructions are enabled.
+   *
+   * @return the compiled Program
+   * @see Optimization#SUPERINSTRUCTIONS
+   */
+  public Program compileProgram() {
+    Program program;
+    if(optimizations.contains(Optimization.SUPERINSTRUCTIONS)) {
+      program = Program.of(new Superinstructions().fuse(compile()));
+    } else {
+      Program.Builder code = new Program.Builder();
+      compile(code);
+      program = code.build();
+    }
+    return program.withTemporaries(symbols.temporaries());
+  }
+
 }
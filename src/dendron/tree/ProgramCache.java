@@ -0,0 +1,300 @@
+package dendron.tree;
+
+import dendron.machine.Program;
+import dendron.machine.ProgramFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of parse trees and compiled Programs, keyed by a hash of
+ * the program's tokens, so that running the same source again skips
+ * parsing, optimizing and compiling it.
+ * <p>
+ * Trees are stored under the SHA-256 of the tokens, and Programs under
+ * the SHA-256 of the tokens together with the optimization passes they
+ * were compiled with. Entries are written to a temporary file and
+ * renamed into place, so several JVMs may share a directory: a reader
+ * sees either a whole entry or none. An entry that cannot be read is
+ * treated as missing and written again.
+ * <p>
+ * The directory is kept under a size limit by deleting the entries
+ * least recently used, judging by modification time, which a hit
+ * brings up to date.
+ *
+ * @see ProgramFile
+ */
+public class ProgramCache {
+
+  /** the size limit used when none is given, in bytes */
+  public static final long DEFAULT_SIZE = 64L << 20;
+
+  /** changes whenever compiled output for the same tokens might change */
+  private static final String KEY_VERSION = "dendron-cache-2";
+
+  /** temporary files older than this were left by a writer that died */
+  private static final long STALE_MILLIS = 60 * 60 * 1000;
+
+  private final Path directory;
+  private final long maxBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** the tokens most recently hashed, by identity, and their hash */
+  private List<String> lastTokens;
+  private byte[] lastDigest;
+
+  /**
+   * Open a cache directory, creating it if need be.
+   *
+   * @param directory where the entries are kept
+   * @param maxBytes the most the entries may occupy in all
+   * @throws IOException if the directory cannot be created
+   */
+  public ProgramCache(Path directory, long maxBytes) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Open the cache named by the system properties. dendron.cache holds
+   * the directory, and dendron.cache.size the size limit in bytes.
+   *
+   * @return the cache, or null if dendron.cache is not set
+   * @throws IOException if the directory cannot be created
+   */
+  public static ProgramCache fromProperties() throws IOException {
+    String dir = System.getProperty("dendron.cache");
+    if (dir == null || dir.isEmpty()) {
+      return null;
+    }
+    return new ProgramCache(Paths.get(dir),
+        Long.getLong("dendron.cache.size", DEFAULT_SIZE));
+  }
+
+  /**
+   * Find the parse tree for a program, parsing it and saving the tree
+   * if it is not in the cache.
+   *
+   * @param tokens the program's tokens
+   * @return the tree, as new ParseTree(tokens) would build it
+   */
+  public ParseTree tree(List<String> tokens) {
+    Path file = entry(digest(tokens), TreeFile.EXTENSION);
+    try {
+      ParseTree tree = TreeFile.read(ByteBuffer.wrap(Files.readAllBytes(file)),
+          file.toString());
+      hit(file);
+      return tree;
+    } catch (IOException e) {
+      misses.incrementAndGet();
+    }
+    ParseTree tree = new ParseTree(tokens);
+    store(file, out -> TreeFile.write(tree, out));
+    return tree;
+  }
+
+  /**
+   * Find the compiled form of a program, compiling it and saving the
+   * result if it is not in the cache.
+   *
+   * @param tokens the program's tokens
+   * @param tree the program's tree, whose optimization settings
+   *             are part of the key
+   * @return the Program, as tree.compileProgram() would build it
+   */
+  public Program program(List<String> tokens, ParseTree tree) {
+    MessageDigest sha = sha256();
+    sha.update(digest(tokens));
+    for (Optimization pass : tree.getOptimizations()) {
+      sha.update((byte) ',');
+      sha.update(pass.name().getBytes(StandardCharsets.UTF_8));
+    }
+    Path file = entry(sha.digest(), ProgramFile.EXTENSION);
+    try {
+      Program program = ProgramFile.load(file);
+      hit(file);
+      return program;
+    } catch (IOException e) {
+      misses.incrementAndGet();
+    }
+    Program program = tree.compileProgram();
+    store(file, out -> ProgramFile.write(program, out));
+    return program;
+  }
+
+  /**
+   * @return how many lookups have found their entry
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return how many lookups have had to parse or compile
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Print the hit and miss counts.
+   *
+   * @param report where the report goes
+   */
+  public void report(PrintStream report) {
+    report.println("Program cache " + directory + ": " +
+        hits.get() + " hits, " + misses.get() + " misses");
+  }
+
+  /**
+   * Something that writes an entry's contents.
+   */
+  private interface Writer {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Write an entry into place. Failing to write an entry is not an
+   * error; the program simply is not cached.
+   */
+  private void store(Path file, Writer writer) {
+    Path temp = null;
+    try {
+      temp = Files.createTempFile(directory, ".", ".part");
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        writer.write(out);
+      }
+      try {
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+      evict();
+    } catch (IOException e) {
+      // leave the entry out
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          // another evict() will find it
+        }
+      }
+    }
+  }
+
+  /**
+   * Count a hit and mark the entry as recently used.
+   */
+  private void hit(Path file) {
+    hits.incrementAndGet();
+    try {
+      Files.setLastModifiedTime(file,
+          FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // another JVM evicted it; the data has already been read
+    }
+  }
+
+  /**
+   * Delete the least recently used entries until the rest fit, and any
+   * temporary files abandoned long ago.
+   */
+  private void evict() throws IOException {
+    List<Path> files = new ArrayList<>();
+    List<BasicFileAttributes> attributes = new ArrayList<>();
+    long total = 0;
+    long now = System.currentTimeMillis();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path file : entries) {
+        String name = file.getFileName().toString();
+        BasicFileAttributes attrs;
+        try {
+          attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (name.endsWith(".part")) {
+          if (now - attrs.lastModifiedTime().toMillis() > STALE_MILLIS) {
+            Files.deleteIfExists(file);
+          }
+        } else if (name.endsWith(ProgramFile.EXTENSION) ||
+            name.endsWith(TreeFile.EXTENSION)) {
+          files.add(file);
+          attributes.add(attrs);
+          total += attrs.size();
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Integer[] order = new Integer[files.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> attributes.get(a).lastModifiedTime()
+        .compareTo(attributes.get(b).lastModifiedTime()));
+    for (int i = 0; i < order.length && total > maxBytes; i++) {
+      Files.deleteIfExists(files.get(order[i]));
+      total -= attributes.get(order[i]).size();
+    }
+  }
+
+  private Path entry(byte[] digest, String extension) {
+    StringBuilder name = new StringBuilder(digest.length * 2 + 5);
+    for (byte b : digest) {
+      name.append(Character.forDigit((b >> 4) & 0xF, 16))
+          .append(Character.forDigit(b & 0xF, 16));
+    }
+    return directory.resolve(name.append(extension).toString());
+  }
+
+  /**
+   * @return the hash of a token list, remembering the last one so
+   *         that looking up a tree and then its program hashes once
+   */
+  private synchronized byte[] digest(List<String> tokens) {
+    if (tokens != lastTokens) {
+      MessageDigest sha = sha256();
+      sha.update(KEY_VERSION.getBytes(StandardCharsets.UTF_8));
+      for (String token : tokens) {
+        sha.update((byte) 0);
+        sha.update(token.getBytes(StandardCharsets.UTF_8));
+      }
+      lastDigest = sha.digest();
+      lastTokens = tokens;
+    }
+    return lastDigest;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is required by every JVM", e);
+    }
+  }
+}
@@ -0,0 +1,519 @@
+package dendron.tree;
+
+import dendron.Errors;
+import dendron.machine.Frame;
+import dendron.machine.Symbols;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes up Dendron programs of any size, for stress and scale testing.
+ * Each program comes with its machine code, in the form the assembler
+ * reads, and with the output every engine must produce for it. The
+ * generator works those out itself, as it goes, so they do not depend
+ * on any of the code under test.
+ * <p>
+ * Generated programs always run without errors. They read only
+ * variables they have already assigned. A divisor that would be zero
+ * is generated as d + 1 instead. The operand of a square root that
+ * would be negative is generated as _(x + 1) instead, which is never
+ * negative, even for the most negative int.
+ * <p>
+ * The same seed and settings always give the same program.
+ */
+public class ProgramGenerator {
+
+  /**
+   * The shape of generated expressions.
+   */
+  public enum Shape {
+    /** both operands of a binary operator are subexpressions */
+    BALANCED,
+    /** the right operand of a binary operator is always a leaf */
+    LEFT_DEEP
+  }
+
+  /** every operator the generator knows */
+  public static final String OPERATORS = "+-*/_#";
+
+  private final Random random;
+  private int statements = 100;
+  private int depth = 3;
+  private Shape shape = Shape.BALANCED;
+  private int variables = 8;
+  private String operators = "++--**/_#";
+  private double printDensity = 0.2;
+
+  /* the state of the program being generated */
+  private Symbols symbols;
+  private int[] values;
+  private int[] assigned;
+  private int assignedCount;
+  private List<String> line;
+  private List<String> code;
+
+  /**
+   * @param seed the random seed
+   */
+  public ProgramGenerator(long seed) {
+    random = new Random(seed);
+  }
+
+  /**
+   * @param statements how many statements each program has
+   * @return this generator
+   */
+  public ProgramGenerator setStatements(int statements) {
+    if(statements < 0) {
+      throw new IllegalArgumentException("statements: " + statements);
+    }
+    this.statements = statements;
+    return this;
+  }
+
+  /**
+   * @param depth how many operators deep each expression is; 0 makes
+   *              every expression a constant or a variable
+   * @return this generator
+   */
+  public ProgramGenerator setDepth(int depth) {
+    if(depth < 0) {
+      throw new IllegalArgumentException("depth: " + depth);
+    }
+    this.depth = depth;
+    return this;
+  }
+
+  /**
+   * @param shape the shape of the expressions
+   * @return this generator
+   */
+  public ProgramGenerator setShape(Shape shape) {
+    this.shape = shape;
+    return this;
+  }
+
+  /**
+   * @param variables how many different variables programs assign
+   * @return this generator
+   */
+  public ProgramGenerator setVariables(int variables) {
+    if(variables < 1) {
+      throw new IllegalArgumentException("variables: " + variables);
+    }
+    this.variables = variables;
+    return this;
+  }
+
+  /**
+   * Choose the operators and how often each is used. Each operator is
+   * used in proportion to the number of times it appears, so "++*"
+   * makes additions twice as common as multiplications.
+   *
+   * @param operators a non-empty string of characters from
+   *                  {@link #OPERATORS}
+   * @return this generator
+   */
+  public ProgramGenerator setOperators(String operators) {
+    if(operators.isEmpty()) {
+      throw new IllegalArgumentException("no operators");
+    }
+    for(char c : operators.toCharArray()) {
+      if(OPERATORS.indexOf(c) < 0) {
+        throw new IllegalArgumentException("unknown operator " + c);
+      }
+    }
+    this.operators = operators;
+    return this;
+  }
+
+  /**
+   * @param printDensity the fraction of statements that print, from
+   *                     0 to 1; the rest are assignments
+   * @return this generator
+   */
+  public ProgramGenerator setPrintDensity(double printDensity) {
+    if(!(printDensity >= 0 && printDensity <= 1)) {
+      throw new IllegalArgumentException("print density: " + printDensity);
+    }
+    this.printDensity = printDensity;
+    return this;
+  }
+
+  /**
+   * Make up the next program.
+   *
+   * @return the program, its machine code and its expected results
+   */
+  public Workload generate() {
+    symbols = new Symbols();
+    values = new int[variables];
+    assigned = new int[variables];
+    assignedCount = 0;
+    List<String> lines = new ArrayList<>(statements);
+    List<String> assembly = new ArrayList<>();
+    List<Integer> printed = new ArrayList<>();
+    int tokenCount = 0;
+    line = new ArrayList<>();
+    code = new ArrayList<>();
+    for(int i = 0; i < statements; i++) {
+      line.clear();
+      code.clear();
+      if(random.nextDouble() < printDensity) {
+        line.add("@");
+        printed.add(expression(depth));
+        code.add("PRINT");
+      } else {
+        String name = "v" + random.nextInt(variables);
+        int slot = symbols.intern(name);
+        line.add(":=");
+        line.add(name);
+        int value = expression(depth);
+        code.add("STORE " + name);
+        if(slot == assignedCount) {
+          assigned[assignedCount++] = slot;
+        }
+        values[slot] = value;
+      }
+      lines.add(String.join(" ", line));
+      tokenCount += line.size();
+      assembly.addAll(code);
+    }
+    Frame frame = new Frame(symbols);
+    for(int slot = 0; slot < symbols.size(); slot++) {
+      frame.store(slot, values[slot]);
+    }
+    return new Workload(lines, tokenCount, assembly, printed, frame);
+  }
+
+  /**
+   * An operator whose operands are still being generated.
+   */
+  private static final class Operator {
+    final char op;
+    final int depth;
+    /** where its first operand's tokens begin in line */
+    final int start;
+    boolean hasLeft = false;
+    int left;
+    /** where its second operand's tokens begin in line */
+    int divisor;
+
+    Operator(char op, int depth, int start) {
+      this.op = op;
+      this.depth = depth;
+      this.start = start;
+    }
+  }
+
+  /**
+   * Generate an expression, appending its tokens to line and its
+   * machine code to code. The operators whose operands are still to
+   * come are kept on a stack rather than in recursive calls, so any
+   * depth can be generated.
+   *
+   * @return the expression's value
+   */
+  private int expression(int depth) {
+    ArrayList<Operator> pending = new ArrayList<>();
+    int value;
+    while(true) {
+      // Go down the first operands to a leaf.
+      for(; depth > 0; depth--) {
+        char op = operators.charAt(random.nextInt(operators.length()));
+        line.add(String.valueOf(op));
+        pending.add(new Operator(op, depth, line.size()));
+      }
+      value = leaf();
+      // Finish the operators whose operands are all there.
+      while(!pending.isEmpty()) {
+        Operator top = pending.get(pending.size() - 1);
+        if(top.op == '_' || top.op == '#') {
+          value = unary(top, value);
+        }
+        else if(!top.hasLeft) {
+          top.hasLeft = true;
+          top.left = value;
+          top.divisor = line.size();
+          if(shape == Shape.BALANCED) {
+            break;
+          }
+          value = binary(top, leaf());
+        }
+        else {
+          value = binary(top, value);
+        }
+        pending.remove(pending.size() - 1);
+      }
+      if(pending.isEmpty()) {
+        return value;
+      }
+      depth = pending.get(pending.size() - 1).depth - 1;
+    }
+  }
+
+  /**
+   * Finish a negation or square root, once its operand is generated.
+   *
+   * @param op the operator
+   * @param value its operand's value
+   * @return the operation's value
+   */
+  private int unary(Operator op, int value) {
+    if(op.op == '_') {
+      code.add("NEG");
+      return -value;
+    }
+    if(value < 0) {
+      line.add(op.start, "+");
+      line.add(op.start, "_");
+      line.add("1");
+      code.add("PUSH  1");
+      code.add("ADD");
+      code.add("NEG");
+      value = -(value + 1);
+    }
+    code.add("SQRT");
+    return (int) Math.sqrt(value);
+  }
+
+  /**
+   * Finish a binary operation, once both operands are generated.
+   *
+   * @param op the operator, holding its left operand's value
+   * @param right its right operand's value
+   * @return the operation's value
+   */
+  private int binary(Operator op, int right) {
+    int left = op.left;
+    switch(op.op) {
+      case '+':
+        code.add("ADD");
+        return left + right;
+      case '-':
+        code.add("SUB");
+        return left - right;
+      case '*':
+        code.add("MUL");
+        return left * right;
+      default:
+        if(right == 0) {
+          line.add(op.divisor, "+");
+          line.add("1");
+          code.add("PUSH  1");
+          code.add("ADD");
+          right = 1;
+        }
+        code.add("DIV");
+        return left / right;
+    }
+  }
+
+  /**
+   * Generate a constant or a read of an assigned variable.
+   *
+   * @return its value
+   */
+  private int leaf() {
+    if(assignedCount > 0 && random.nextBoolean()) {
+      int slot = assigned[random.nextInt(assignedCount)];
+      String name = symbols.name(slot);
+      line.add(name);
+      code.add("LOAD  " + name);
+      return values[slot];
+    }
+    int value = random.nextInt(110) - 10;
+    line.add(Integer.toString(value));
+    code.add("PUSH  " + value);
+    return value;
+  }
+
+  /**
+   * A generated program, its machine code and what running it prints.
+   */
+  public static class Workload {
+    private final List<String> lines;
+    private final int tokenCount;
+    private final List<String> assembly;
+    private final List<Integer> printed;
+    private final Frame frame;
+
+    Workload(List<String> lines, int tokenCount, List<String> assembly,
+             List<Integer> printed, Frame frame) {
+      this.lines = lines;
+      this.tokenCount = tokenCount;
+      this.assembly = assembly;
+      this.printed = printed;
+      this.frame = frame;
+    }
+
+    /**
+     * @return the program's tokens
+     */
+    public List<String> getTokens() {
+      List<String> tokens = new ArrayList<>(tokenCount);
+      for(String statement : lines) {
+        Collections.addAll(tokens, statement.split(" "));
+      }
+      return tokens;
+    }
+
+    /**
+     * @return the program's source text, one statement per line
+     */
+    public List<String> getSource() {
+      return Collections.unmodifiableList(lines);
+    }
+
+    /**
+     * @return the program's machine code, one instruction per line
+     */
+    public List<String> getAssembly() {
+      return Collections.unmodifiableList(assembly);
+    }
+
+    /**
+     * @return the values the program prints, in order
+     */
+    public List<Integer> getPrinted() {
+      return Collections.unmodifiableList(printed);
+    }
+
+    /**
+     * @return the variables as they stand when the program ends
+     */
+    public Frame getFrame() {
+      return frame;
+    }
+
+    /**
+     * @return exactly what running the machine code prints, as
+     *         InstructionReader or Machine.execute would print it
+     */
+    public String machineOutput() {
+      return output("Executing compiled code...", "*** ",
+          "Machine: execution ended with 0 items left on the stack.");
+    }
+
+    /**
+     * @return exactly what interpreting the program prints, as
+     *         ParseTree.interpret would print it
+     */
+    public String treeOutput() {
+      return output("Interpreting the parse tree...", "=== ",
+          "Interpretation complete.");
+    }
+
+    private String output(String first, String prefix, String last) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+      out.println(first);
+      for(int value : printed) {
+        out.println(prefix + value);
+      }
+      out.println(last);
+      out.println();
+      Errors.dump(frame, out);
+      out.flush();
+      return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the program as name.txt, its machine code as name.denm
+     * and the machine's expected output as name.out, the way the
+     * source and assy directories hold them.
+     *
+     * @param directory where the files go; it is created if need be
+     * @param name the files' base name
+     * @throws IOException if a file cannot be written
+     */
+    public void write(Path directory, String name) throws IOException {
+      Files.createDirectories(directory);
+      Files.write(directory.resolve(name + ".txt"), lines,
+          StandardCharsets.UTF_8);
+      Files.write(directory.resolve(name + ".denm"), assembly,
+          StandardCharsets.UTF_8);
+      Files.write(directory.resolve(name + ".out"),
+          machineOutput().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Generate programs into a directory.
+   *
+   * @param args options, then the directory and a base name; the
+   *             options are -seed n, -count n, -statements n,
+   *             -depth n, -shape balanced|left-deep, -variables n,
+   *             -operators ops and -prints fraction. With -count n
+   *             the programs are named name0 to name(n-1).
+   * @throws IOException if a file cannot be written
+   */
+  public static void main(String[] args) throws IOException {
+    long seed = 1;
+    int count = 1;
+    List<String[]> settings = new ArrayList<>();
+    int i = 0;
+    for(; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+      switch(args[i]) {
+        case "-seed":
+          seed = Long.parseLong(args[i + 1]);
+          break;
+        case "-count":
+          count = Integer.parseInt(args[i + 1]);
+          break;
+        default:
+          settings.add(new String[]{args[i], args[i + 1]});
+      }
+    }
+    if(args.length - i != 2) {
+      System.err.println("Usage: java ProgramGenerator [-seed n] " +
+          "[-count n] [-statements n] [-depth n] " +
+          "[-shape balanced|left-deep] [-variables n] [-operators ops] " +
+          "[-prints fraction] directory name");
+      System.exit(1);
+    }
+    ProgramGenerator generator = new ProgramGenerator(seed);
+    for(String[] setting : settings) {
+      String value = setting[1];
+      switch(setting[0]) {
+        case "-statements":
+          generator.setStatements(Integer.parseInt(value));
+          break;
+        case "-depth":
+          generator.setDepth(Integer.parseInt(value));
+          break;
+        case "-shape":
+          generator.setShape(
+              Shape.valueOf(value.toUpperCase().replace('-', '_')));
+          break;
+        case "-variables":
+          generator.setVariables(Integer.parseInt(value));
+          break;
+        case "-operators":
+          generator.setOperators(value);
+          break;
+        case "-prints":
+          generator.setPrintDensity(Double.parseDouble(value));
+          break;
+        default:
+          System.err.println("Unknown option " + setting[0]);
+          System.exit(1);
+      }
+    }
+    Path directory = Paths.get(args[i]);
+    for(int n = 0; n < count; n++) {
+      generator.generate().write(directory,
+          count == 1 ? args[i + 1] : args[i + 1] + n);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package dendron.tree;
+
+import dendron.Errors;
+import dendron.machine.RegisterProgram;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Translates a parse tree into three-address code for the
+ * {@link dendron.machine.RegisterMachine}.
+ * <p>
+ * Variables and constants live in registers of their own, so reading
+ * them takes no instructions; only operations are emitted. The result
+ * of the top operation of an assignment is written straight into the
+ * variable's register. Intermediate results go into temporaries that
+ * are allocated and freed in stack order, so a temporary is reused as
+ * soon as the operation that consumes it has been emitted.
+ * <p>
+ * The program has no branches, so a variable that has not been assigned
+ * by an earlier statement is certainly uninitialized when read; such a
+ * read is compiled into an UNINIT instruction that reports it, at the
+ * point in the evaluation where the other engines would report it.
+ */
+public class RegisterCompiler {
+
+  private final RegisterProgram.Builder code;
+  private final BitSet assigned;
+
+  /**
+   * @param names the program's variable names, indexed by slot
+   */
+  public RegisterCompiler(String[] names) {
+    this(names, new BitSet());
+  }
+
+  /**
+   * @param names the program's variable names, indexed by slot
+   * @param temporaries the slots that hold compiler temporaries
+   */
+  public RegisterCompiler(String[] names, BitSet temporaries) {
+    this.code = new RegisterProgram.Builder(names, temporaries);
+    this.assigned = new BitSet(names.length);
+  }
+
+  /**
+   * Compile a whole program.
+   *
+   * @param actions the statements, in execution order
+   * @return the register program
+   */
+  public RegisterProgram compile(List<ActionNode> actions) {
+    for(ActionNode action : actions) {
+      int mark = code.mark();
+      if(action instanceof Nodes.Assignment) {
+        Nodes.Assignment assignment = (Nodes.Assignment) action;
+        int slot = code.variable(assignment.slot);
+        int r = expression(assignment.val, slot);
+        if(r != slot) {
+          code.emit(RegisterProgram.MOV, slot, r, 0);
+        }
+        assigned.set(assignment.slot);
+      }
+      else if(action instanceof Nodes.Print) {
+        int r = expression(((Nodes.Print) action).val, -1);
+        code.emit(RegisterProgram.PRINT, 0, r, 0);
+      }
+      code.release(mark);
+    }
+    return code.build();
+  }
+
+  /**
+   * Compile an expression. The nodes are compiled in postorder, with
+   * the registers holding the operands' values on a stack, so deep
+   * expressions do not exhaust the Java call stack.
+   *
+   * @param root the expression
+   * @param target the register an operation should leave its result
+   *               in, or -1 to use a temporary
+   * @return the register holding the expression's value
+   */
+  private int expression(ExpressionNode root, int target) {
+    ArrayList<Integer> registers = new ArrayList<>();
+    for(ExpressionNode expr : Nodes.postorder(root)) {
+      registers.add(node(expr, expr == root ? target : -1, registers));
+    }
+    return registers.get(0);
+  }
+
+  /**
+   * Compile one node of an expression.
+   *
+   * @param expr the node
+   * @param target the register an operation should leave its result
+   *               in, or -1 to use a temporary
+   * @param registers the registers holding the values of the nodes
+   *                  before it in postorder; its operands' are taken
+   *                  off the end
+   * @return the register holding the node's value
+   */
+  private int node(ExpressionNode expr, int target, List<Integer> registers) {
+    if(expr instanceof Nodes.Constant) {
+      return code.constant(((Nodes.Constant) expr).val);
+    }
+    if(expr instanceof Nodes.Load) {
+      int slot = ((Nodes.Load) expr).slot;
+      if(!assigned.get(slot)) {
+        code.emit(RegisterProgram.UNINIT, 0, code.variable(slot), 0);
+      }
+      return code.variable(slot);
+    }
+    if(expr instanceof Nodes.BinaryOperation) {
+      Nodes.BinaryOperation op = (Nodes.BinaryOperation) expr;
+      int b = registers.remove(registers.size() - 1);
+      int a = registers.remove(registers.size() - 1);
+      release(b);
+      release(a);
+      int d = target >= 0 ? target : code.temporary();
+      code.emit(binary(op.o), d, a, b);
+      return d;
+    }
+    Nodes.UnaryOperation op = (Nodes.UnaryOperation) expr;
+    int a = registers.remove(registers.size() - 1);
+    release(a);
+    int d = target >= 0 ? target : code.temporary();
+    switch(op.o) {
+      case "_":
+        code.emit(RegisterProgram.NEG, d, a, 0);
+        break;
+      case "#":
+        code.emit(RegisterProgram.SQRT, d, a, 0);
+        break;
+      default:
+        Errors.report(Errors.Type.ILLEGAL_VALUE, op.o);
+    }
+    return d;
+  }
+
+  /**
+   * Free the register holding an operand, if it is a temporary. An
+   * operand that is an operation leaves its value in one temporary,
+   * allocated after those of the operands before it, so freeing an
+   * operation's operands right to left keeps the stack order.
+   */
+  private void release(int operand) {
+    if(code.isTemporary(operand)) {
+      code.release(code.mark() - 1);
+    }
+  }
+
+  private static int binary(String o) {
+    switch(o) {
+      case "+":
+        return RegisterProgram.ADD;
+      case "-":
+        return RegisterProgram.SUB;
+      case "*":
+        return RegisterProgram.MUL;
+      case "/":
+        return RegisterProgram.DIV;
+      default:
+        Errors.report(Errors.Type.ILLEGAL_VALUE, o);
+        return -1;
+    }
+  }
+}
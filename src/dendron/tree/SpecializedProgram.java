@@ -0,0 +1,335 @@
+package dendron.tree;
+
+import dendron.DendronException;
+import dendron.Errors;
+import dendron.machine.Frame;
+import dendron.machine.OutputSink;
+import dendron.machine.Symbols;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A program's statements turned into closures ahead of time, for fast
+ * repeated tree-walking execution. Each closure is specialized for its
+ * operator, so nothing decides which operation to do while the program
+ * runs, and for the shape of its operands: an operand that is a
+ * constant or a variable read is folded into its parent's closure, so
+ * that for example x * 3 is one closure that reads slot x and
+ * multiplies, not three nodes.
+ * <p>
+ * The effect is exactly that of executing the original nodes:
+ * operands are evaluated left to right, division by zero and reads of
+ * uninitialized variables are reported at the same point, and print
+ * statements print the same lines.
+ * <p>
+ * The closures are built without recursion, but each one evaluates its
+ * operands by calling theirs, so running an expression takes Java stack
+ * in proportion to its depth, as interpreting the tree does. On a thread
+ * with the default stack size, expressions some thousands of levels deep
+ * overflow it; the compiled forms have no such limit.
+ *
+ * @see ParseTree#specialize()
+ */
+public class SpecializedProgram {
+
+  /**
+   * A specialized expression.
+   */
+  interface Expr {
+    int evaluate(Frame frame);
+  }
+
+  /**
+   * A specialized statement.
+   */
+  interface Statement {
+    void execute(Frame frame);
+  }
+
+  private final Symbols symbols;
+  private final Statement[] statements;
+
+  private SpecializedProgram(Symbols symbols, Statement[] statements) {
+    this.symbols = symbols;
+    this.statements = statements;
+  }
+
+  /**
+   * Specialize a list of statements.
+   *
+   * @param actions the statements, in execution order
+   * @param symbols the program's variable table
+   * @return the specialized program
+   */
+  public static SpecializedProgram of(List<ActionNode> actions,
+                                      Symbols symbols) {
+    Statement[] statements = new Statement[actions.size()];
+    for(int i = 0; i < statements.length; i++) {
+      statements[i] = statement(actions.get(i));
+    }
+    return new SpecializedProgram(symbols, statements);
+  }
+
+  /**
+   * Run every statement against a frame.
+   *
+   * @param frame the storage where variable values are kept; it must
+   *              have a slot for every variable in the program
+   * @throws DendronException.Execution if a statement fails, with its
+   *         index and the variables as they stood
+   */
+  public void execute(Frame frame) {
+    int i = 0;
+    try {
+      for(; i < statements.length; i++) {
+        statements[i].execute(frame);
+      }
+    } catch(DendronException e) {
+      throw e.atStatement(i).withVariables(frame.toMap(false));
+    }
+  }
+
+  /**
+   * Run the program in a new frame and report, in the same form as
+   * {@link ParseTree#interpret()}.
+   *
+   * @return the variables as they stood when the program ended
+   */
+  public Frame interpret() {
+    Frame frame = new Frame(symbols);
+    System.out.println("Interpreting the parse tree...");
+    execute(frame);
+    System.out.println("Interpretation complete.");
+    System.out.println();
+    Errors.dump(frame);
+    return frame;
+  }
+
+  private static Statement statement(ActionNode action) {
+    if(action instanceof Nodes.Assignment) {
+      Nodes.Assignment assignment = (Nodes.Assignment) action;
+      int slot = assignment.slot;
+      ExpressionNode val = assignment.val;
+      if(val instanceof Nodes.Constant) {
+        int k = ((Nodes.Constant) val).val;
+        return f -> f.store(slot, k);
+      }
+      if(val instanceof Nodes.Load) {
+        int from = ((Nodes.Load) val).slot;
+        return f -> f.store(slot, f.load(from));
+      }
+      Expr e = expression(val);
+      return f -> f.store(slot, e.evaluate(f));
+    }
+    if(action instanceof Nodes.Print) {
+      Expr e = expression(((Nodes.Print) action).val);
+      return f -> OutputSink.println(System.out, "=== ", e.evaluate(f));
+    }
+    return action::execute;
+  }
+
+  /**
+   * Specialize an expression. The closures are built bottom-up, in
+   * postorder, with the operands' closures kept on a stack, so building
+   * takes no Java stack however deep the expression is.
+   */
+  private static Expr expression(ExpressionNode expr) {
+    ArrayList<Expr> built = new ArrayList<>();
+    for(ExpressionNode node : Nodes.postorder(expr)) {
+      built.add(node(node, built));
+    }
+    return built.get(0);
+  }
+
+  /**
+   * Specialize one node of an expression.
+   *
+   * @param expr the node
+   * @param built the closures of the nodes before it in postorder;
+   *              its operands' are taken off the end
+   * @return its closure
+   */
+  private static Expr node(ExpressionNode expr, List<Expr> built) {
+    if(expr instanceof Nodes.Constant) {
+      int k = ((Nodes.Constant) expr).val;
+      return f -> k;
+    }
+    if(expr instanceof Nodes.Load) {
+      int slot = ((Nodes.Load) expr).slot;
+      return f -> f.load(slot);
+    }
+    if(expr instanceof Nodes.BinaryOperation) {
+      Nodes.BinaryOperation op = (Nodes.BinaryOperation) expr;
+      Expr b = built.remove(built.size() - 1);
+      Expr a = built.remove(built.size() - 1);
+      switch(op.o) {
+        case "+":
+          return add(op.c1, a, op.c2, b);
+        case "-":
+          return subtract(op.c1, a, op.c2, b);
+        case "*":
+          return multiply(op.c1, a, op.c2, b);
+        case "/":
+          return divide(op.c1, a, op.c2, b);
+      }
+    }
+    if(expr instanceof Nodes.UnaryOperation) {
+      Nodes.UnaryOperation op = (Nodes.UnaryOperation) expr;
+      Expr c = built.remove(built.size() - 1);
+      switch(op.o) {
+        case "_":
+          return negate(op.c, c);
+        case "#":
+          return f -> (int) Math.sqrt(c.evaluate(f));
+      }
+    }
+    return expr::evaluate;
+  }
+
+  /*
+   * Each operation is given its operands both as nodes, to see whether
+   * they are constants or variable reads that can be folded into it,
+   * and as the closures already built for them.
+   *
+   * Constants cannot fail, so a constant operand of + or * may be moved
+   * to the right without changing the order in which errors happen.
+   */
+
+  private static Expr add(ExpressionNode left, Expr a,
+                          ExpressionNode right, Expr b) {
+    if(left instanceof Nodes.Constant) {
+      ExpressionNode t = left;
+      left = right;
+      right = t;
+      Expr e = a;
+      a = b;
+      b = e;
+    }
+    if(right instanceof Nodes.Constant) {
+      int k = ((Nodes.Constant) right).val;
+      if(left instanceof Nodes.Load) {
+        int s = ((Nodes.Load) left).slot;
+        return f -> f.load(s) + k;
+      }
+      Expr l = a;
+      return f -> l.evaluate(f) + k;
+    }
+    if(left instanceof Nodes.Load) {
+      int s = ((Nodes.Load) left).slot;
+      if(right instanceof Nodes.Load) {
+        int s2 = ((Nodes.Load) right).slot;
+        return f -> f.load(s) + f.load(s2);
+      }
+      Expr r = b;
+      return f -> f.load(s) + r.evaluate(f);
+    }
+    Expr l = a;
+    if(right instanceof Nodes.Load) {
+      int s = ((Nodes.Load) right).slot;
+      return f -> l.evaluate(f) + f.load(s);
+    }
+    Expr r = b;
+    return f -> l.evaluate(f) + r.evaluate(f);
+  }
+
+  private static Expr subtract(ExpressionNode left, Expr a,
+                               ExpressionNode right, Expr b) {
+    if(right instanceof Nodes.Constant) {
+      int k = ((Nodes.Constant) right).val;
+      if(left instanceof Nodes.Load) {
+        int s = ((Nodes.Load) left).slot;
+        return f -> f.load(s) - k;
+      }
+      return f -> a.evaluate(f) - k;
+    }
+    if(left instanceof Nodes.Constant) {
+      int k = ((Nodes.Constant) left).val;
+      if(right instanceof Nodes.Load) {
+        int s = ((Nodes.Load) right).slot;
+        return f -> k - f.load(s);
+      }
+      return f -> k - b.evaluate(f);
+    }
+    if(left instanceof Nodes.Load) {
+      int s = ((Nodes.Load) left).slot;
+      if(right instanceof Nodes.Load) {
+        int s2 = ((Nodes.Load) right).slot;
+        return f -> f.load(s) - f.load(s2);
+      }
+      return f -> f.load(s) - b.evaluate(f);
+    }
+    if(right instanceof Nodes.Load) {
+      int s = ((Nodes.Load) right).slot;
+      return f -> a.evaluate(f) - f.load(s);
+    }
+    return f -> a.evaluate(f) - b.evaluate(f);
+  }
+
+  private static Expr multiply(ExpressionNode left, Expr a,
+                               ExpressionNode right, Expr b) {
+    if(left instanceof Nodes.Constant) {
+      ExpressionNode t = left;
+      left = right;
+      right = t;
+      Expr e = a;
+      a = b;
+      b = e;
+    }
+    if(right instanceof Nodes.Constant) {
+      int k = ((Nodes.Constant) right).val;
+      if(left instanceof Nodes.Load) {
+        int s = ((Nodes.Load) left).slot;
+        return f -> f.load(s) * k;
+      }
+      Expr l = a;
+      return f -> l.evaluate(f) * k;
+    }
+    if(left instanceof Nodes.Load) {
+      int s = ((Nodes.Load) left).slot;
+      if(right instanceof Nodes.Load) {
+        int s2 = ((Nodes.Load) right).slot;
+        return f -> f.load(s) * f.load(s2);
+      }
+      Expr r = b;
+      return f -> f.load(s) * r.evaluate(f);
+    }
+    Expr l = a;
+    if(right instanceof Nodes.Load) {
+      int s = ((Nodes.Load) right).slot;
+      return f -> l.evaluate(f) * f.load(s);
+    }
+    Expr r = b;
+    return f -> l.evaluate(f) * r.evaluate(f);
+  }
+
+  private static Expr divide(ExpressionNode left, Expr a,
+                             ExpressionNode right, Expr b) {
+    if(right instanceof Nodes.Constant && ((Nodes.Constant) right).val != 0) {
+      int k = ((Nodes.Constant) right).val;
+      if(left instanceof Nodes.Load) {
+        int s = ((Nodes.Load) left).slot;
+        return f -> f.load(s) / k;
+      }
+      return f -> a.evaluate(f) / k;
+    }
+    return f -> {
+      int n = a.evaluate(f);
+      int d = b.evaluate(f);
+      if(d == 0) Errors.report(Errors.Type.DIVIDE_BY_ZERO, n + " / " + d);
+      return n / d;
+    };
+  }
+
+  private static Expr negate(ExpressionNode operand, Expr c) {
+    if(operand instanceof Nodes.Load) {
+      int s = ((Nodes.Load) operand).slot;
+      return f -> -f.load(s);
+    }
+    if(operand instanceof Nodes.Constant) {
+      int k = -((Nodes.Constant) operand).val;
+      return f -> k;
+    }
+    return f -> -c.evaluate(f);
+  }
+}
@@ -0,0 +1,122 @@
+package dendron.tree;
+
+import dendron.DendronException;
+import dendron.Errors;
+import dendron.machine.Emitter;
+import dendron.machine.Frame;
+import dendron.machine.Symbols;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A Dendron program read from a stream and handled one statement at
+ * a time. Tokens are cut into statements at each := or @, and every
+ * statement is executed or compiled as soon as it is complete and
+ * then dropped. Memory use therefore depends on the largest single
+ * statement and the number of distinct variables, not on the length
+ * of the program.
+ *
+ * @see ParseTree
+ */
+public class StreamingProgram {
+
+  private final TokenReader source;
+  private final ParseTree parser;
+  private final ArrayList<String> statement;
+  /** the first token of the statement after the current one */
+  private String lookahead;
+  /** how many statements have been parsed */
+  private int count;
+
+  /**
+   * @param in the program text
+   */
+  public StreamingProgram(Reader in) {
+    this.source = new TokenReader(in);
+    this.parser = new ParseTree(new Symbols());
+    this.statement = new ArrayList<>();
+    this.lookahead = source.next();
+    if(lookahead != null && !ParseTree.isStatementStart(lookahead)) {
+      Errors.report(Errors.Type.ILLEGAL_VALUE, lookahead);
+    }
+  }
+
+  /**
+   * @param in the program text, in UTF-8
+   */
+  public StreamingProgram(InputStream in) {
+    this(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Read and parse the next statement.
+   *
+   * @return the statement's parse tree, or null at the end of the program
+   * @throws DendronException.Syntax if the statement is in error; its
+   *         token is counted from the start of the statement
+   */
+  public ActionNode next() {
+    if(lookahead == null) {
+      return null;
+    }
+    statement.clear();
+    statement.add(lookahead);
+    lookahead = source.next();
+    while(lookahead != null && !ParseTree.isStatementStart(lookahead)) {
+      statement.add(lookahead);
+      lookahead = source.next();
+    }
+    try {
+      ActionNode action = parser.parseStatement(statement, 0, statement.size());
+      count++;
+      return action;
+    } catch(DendronException e) {
+      throw e.atStatement(count);
+    }
+  }
+
+  /**
+   * @return the variables seen so far, by slot
+   */
+  public Symbols getSymbols() {
+    return parser.getSymbols();
+  }
+
+  /**
+   * Run the rest of the program, executing each statement as soon
+   * as it has been read. The output is the same as that of
+   * {@link ParseTree#interpret()}.
+   */
+  public void interpret() {
+    Frame frame = new Frame(getSymbols());
+    System.out.println("Interpreting the parse tree...");
+    try {
+      for(ActionNode a = next(); a != null; a = next()) {
+        frame.grow(getSymbols());
+        a.execute(frame);
+      }
+    } catch(DendronException e) {
+      throw e.atStatement(count - 1).withVariables(frame.toMap(false));
+    }
+    System.out.println("Interpretation complete.");
+    System.out.println();
+    Errors.dump(frame);
+  }
+
+  /**
+   * Generate machine instructions for the rest of the program,
+   * passing each statement's code to the Emitter as soon as the
+   * statement has been read.
+   *
+   * @param out where the instructions go
+   */
+  public void compile(Emitter out) {
+    for(ActionNode a = next(); a != null; a = next()) {
+      a.emit(out);
+    }
+  }
+}
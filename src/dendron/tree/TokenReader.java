@@ -0,0 +1,68 @@
+package dendron.tree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+/**
+ * Splits Dendron source text from a character stream into tokens.
+ * Tokens are separated by white space. Only one buffer of characters
+ * and the token being read are held in memory at any time.
+ */
+public class TokenReader {
+
+  private final Reader in;
+  private final char[] buffer;
+  private int next;
+  private int limit;
+  private final StringBuilder token;
+
+  /**
+   * @param in the source text; it is not closed by this class
+   */
+  public TokenReader(Reader in) {
+    this.in = in;
+    this.buffer = new char[1 << 16];
+    this.next = 0;
+    this.limit = 0;
+    this.token = new StringBuilder();
+  }
+
+  /**
+   * Read the next token.
+   *
+   * @return the token, or null if the input is exhausted
+   */
+  public String next() {
+    int c = read();
+    while(c >= 0 && Character.isWhitespace(c)) {
+      c = read();
+    }
+    if(c < 0) {
+      return null;
+    }
+    token.setLength(0);
+    while(c >= 0 && !Character.isWhitespace(c)) {
+      token.append((char) c);
+      c = read();
+    }
+    return token.toString();
+  }
+
+  private int read() {
+    if(next == limit) {
+      try {
+        limit = in.read(buffer, 0, buffer.length);
+      }
+      catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+      next = 0;
+      if(limit <= 0) {
+        limit = 0;
+        return -1;
+      }
+    }
+    return buffer[next++];
+  }
+}
@@ -0,0 +1,290 @@
+package dendron.tree;
+
+import dendron.machine.Symbols;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes parse trees in a compact binary form (.dent), so a
+ * program's tree can be rebuilt without parsing its tokens again.
+ * All numbers are big-endian:
+ * <pre>
+ *   4 bytes   "DENT"
+ *   2 bytes   format version
+ *   2 bytes   reserved, 0
+ *   4 bytes   number of variable slots
+ *   4 bytes   number of ints in the node stream
+ *   names     for each slot, a 2-byte length and that many bytes of UTF-8
+ *   nodes     the statements, each in postorder
+ * </pre>
+ * In the node stream CONST and LOAD are followed by a constant or a
+ * slot, BINARY and UNARY by their operator character, and ASSIGN by a
+ * slot; PRINT stands alone. Trees are written and read with explicit
+ * stacks, so very deep expressions cannot overflow the Java stack.
+ *
+ * @see ProgramCache
+ */
+class TreeFile {
+
+  /** the file name extension for binary trees */
+  static final String EXTENSION = ".dent";
+
+  private static final int MAGIC = 0x44454E54;   // "DENT"
+  private static final int VERSION = 1;
+  private static final int HEADER = 16;
+
+  private static final int CONST = 0;
+  private static final int LOAD = 1;
+  private static final int BINARY = 2;
+  private static final int UNARY = 3;
+  private static final int ASSIGN = 4;
+  private static final int PRINT = 5;
+
+  private TreeFile() {
+  }
+
+  /**
+   * Write the statements of a tree to a stream. The stream is flushed
+   * but not closed.
+   *
+   * @param tree a tree built by parsing
+   * @param stream where to write it
+   * @throws IOException if writing fails, or the tree holds a node of
+   *         a kind this format does not know
+   */
+  static void write(ParseTree tree, OutputStream stream) throws IOException {
+    int[] words = encode(tree.allActions);
+    String[] names = tree.getSymbols().names();
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeShort(0);
+    out.writeInt(names.length);
+    out.writeInt(words.length);
+    for (String name : names) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > 0xFFFF) {
+        throw new IOException("variable name too long: " + name);
+      }
+      out.writeShort(bytes.length);
+      out.write(bytes);
+    }
+    for (int word : words) {
+      out.writeInt(word);
+    }
+    out.flush();
+  }
+
+  /**
+   * Rebuild a tree from its binary form.
+   *
+   * @param buffer the bytes written by {@link #write}, from its position
+   * @param source where the bytes came from, for error messages
+   * @return a tree equal to the one written
+   * @throws IOException if the bytes are not a well-formed tree
+   */
+  static ParseTree read(ByteBuffer buffer, String source) throws IOException {
+    if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC) {
+      throw new IOException(source + ": not a binary Dendron tree");
+    }
+    int version = buffer.getShort() & 0xFFFF;
+    if (version != VERSION) {
+      throw new IOException(source + ": unsupported format version " + version);
+    }
+    buffer.getShort();
+    int nameCount = buffer.getInt();
+    int wordCount = buffer.getInt();
+    if (nameCount < 0 || wordCount < 0 ||
+        2L * nameCount + 4L * wordCount > buffer.remaining()) {
+      throw new IOException(source + ": truncated");
+    }
+    Symbols symbols = new Symbols();
+    String[] names = new String[nameCount];
+    for (int i = 0; i < nameCount; i++) {
+      int length = buffer.remaining() < 2 ? -1 : buffer.getShort() & 0xFFFF;
+      if (length < 0 || buffer.remaining() < length) {
+        throw new IOException(source + ": truncated");
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      names[i] = new String(bytes, StandardCharsets.UTF_8);
+      if (symbols.intern(names[i]) != i) {
+        throw new IOException(source + ": duplicate variable " + names[i]);
+      }
+    }
+    if (4L * wordCount > buffer.remaining()) {
+      throw new IOException(source + ": truncated");
+    }
+    int[] words = new int[wordCount];
+    buffer.asIntBuffer().get(words);
+    ParseTree tree = new ParseTree(symbols);
+    try {
+      decode(words, names, tree.allActions);
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException(source + ": malformed tree: " + e.getMessage());
+    }
+    return tree;
+  }
+
+  /**
+   * @param actions the statements of a tree
+   * @return the node stream for them
+   * @throws IOException if a node is of a kind this format does not know
+   */
+  private static int[] encode(List<ActionNode> actions) throws IOException {
+    int[] words = new int[Math.max(16, actions.size() * 8)];
+    int size = 0;
+    List<ExpressionNode> pending = new ArrayList<>();
+    List<ExpressionNode> done = new ArrayList<>();
+    for (ActionNode action : actions) {
+      ExpressionNode root;
+      if (action instanceof Nodes.Assignment) {
+        root = ((Nodes.Assignment) action).val;
+      } else if (action instanceof Nodes.Print) {
+        root = ((Nodes.Print) action).val;
+      } else {
+        throw new IOException("cannot save statement " + action);
+      }
+      // Reverse postorder: visit a node, then its right operand, then
+      // its left; reading the visits backwards gives the postorder.
+      pending.add(root);
+      while (!pending.isEmpty()) {
+        ExpressionNode node = pending.remove(pending.size() - 1);
+        done.add(node);
+        if (node instanceof Nodes.BinaryOperation) {
+          pending.add(((Nodes.BinaryOperation) node).c1);
+          pending.add(((Nodes.BinaryOperation) node).c2);
+        } else if (node instanceof Nodes.UnaryOperation) {
+          pending.add(((Nodes.UnaryOperation) node).c);
+        }
+      }
+      for (int i = done.size() - 1; i >= 0; i--) {
+        if (size + 2 > words.length) {
+          words = Arrays.copyOf(words, words.length * 2);
+        }
+        ExpressionNode node = done.get(i);
+        if (node instanceof Nodes.Constant) {
+          words[size++] = CONST;
+          words[size++] = ((Nodes.Constant) node).val;
+        } else if (node instanceof Nodes.Load) {
+          words[size++] = LOAD;
+          words[size++] = ((Nodes.Load) node).slot;
+        } else if (node instanceof Nodes.BinaryOperation) {
+          words[size++] = BINARY;
+          words[size++] = ((Nodes.BinaryOperation) node).o.charAt(0);
+        } else if (node instanceof Nodes.UnaryOperation) {
+          words[size++] = UNARY;
+          words[size++] = ((Nodes.UnaryOperation) node).o.charAt(0);
+        } else {
+          throw new IOException("cannot save expression " + node);
+        }
+      }
+      done.clear();
+      if (size + 2 > words.length) {
+        words = Arrays.copyOf(words, words.length * 2);
+      }
+      if (action instanceof Nodes.Assignment) {
+        words[size++] = ASSIGN;
+        words[size++] = ((Nodes.Assignment) action).slot;
+      } else {
+        words[size++] = PRINT;
+      }
+    }
+    return Arrays.copyOf(words, size);
+  }
+
+  /**
+   * Rebuild statements from a node stream.
+   *
+   * @param words the node stream
+   * @param names the variable names, by slot
+   * @param actions where the statements go
+   * @throws IllegalArgumentException if the stream is malformed
+   */
+  private static void decode(int[] words, String[] names,
+                             List<ActionNode> actions) {
+    ExpressionNode[] stack = new ExpressionNode[16];
+    int depth = 0;
+    int pc = 0;
+    while (pc < words.length) {
+      int kind = words[pc++];
+      if (kind == PRINT) {
+        if (depth != 1) {
+          throw new IllegalArgumentException("PRINT at depth " + depth);
+        }
+        actions.add(new Nodes.Print(stack[--depth]));
+        continue;
+      }
+      int operand = words[pc++];
+      switch (kind) {
+        case ASSIGN:
+          if (depth != 1) {
+            throw new IllegalArgumentException("ASSIGN at depth " + depth);
+          }
+          actions.add(new Nodes.Assignment(names[operand], operand,
+              stack[--depth]));
+          continue;
+        case UNARY:
+          if (depth < 1) {
+            throw new IllegalArgumentException("UNARY at depth " + depth);
+          }
+          stack[depth - 1] =
+              new Nodes.UnaryOperation(operator(operand), stack[depth - 1]);
+          continue;
+        case BINARY:
+          if (depth < 2) {
+            throw new IllegalArgumentException("BINARY at depth " + depth);
+          }
+          depth--;
+          stack[depth - 1] = new Nodes.BinaryOperation(operator(operand),
+              stack[depth - 1], stack[depth]);
+          continue;
+        case CONST:
+        case LOAD:
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = kind == CONST ? new Nodes.Constant(operand) :
+              new Nodes.Load(names[operand], operand);
+          continue;
+        default:
+          throw new IllegalArgumentException("unknown node kind " + kind);
+      }
+    }
+    if (depth != 0) {
+      throw new IllegalArgumentException("unfinished statement");
+    }
+  }
+
+  /**
+   * @param c an operator character
+   * @return the operator as the parser spells it
+   */
+  private static String operator(int c) {
+    switch (c) {
+      case '+':
+        return "+";
+      case '-':
+        return "-";
+      case '*':
+        return "*";
+      case '/':
+        return "/";
+      case '_':
+        return "_";
+      case '#':
+        return "#";
+      default:
+        throw new IllegalArgumentException("unknown operator " + c);
+    }
+  }
+}